@@ -8,24 +8,41 @@ import akka.japi.function.Procedure;
 import akka.stream.*;
 import akka.stream.javadsl.*;
 import akka.stream.stage.*;
+import com.google.common.base.Preconditions;
+import me.heng.tool.metrics.LatencyHistogram;
+import me.heng.tool.metrics.LatencyRegistry;
+import me.heng.tool.support.AsyncLazyIterable;
 import me.heng.tool.support.BaseSupport;
+import me.heng.tool.support.ThreadSupport;
 import scala.Tuple2;
 import scala.concurrent.duration.FiniteDuration;
 
 import javax.annotation.Nullable;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Deque;
 import java.util.List;
-import java.util.concurrent.CompletableFuture;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
 
 /**
  * Created by wangdi
@@ -55,6 +72,33 @@ public class AkkaSupport {
         return auditor;
     }
 
+    /**
+     * @param name board 的名字, 可通过 AuditBoard.snapshots() 抓取
+     */
+    public static <E> Graph<FlowShape<E, E>, AuditBoard> auditor(String name) {
+        return new Auditor<>(new AuditBoard(name));
+    }
+
+    /**
+     * 一对 Auditor, 分别放在被测阶段的前后; 两者之间的耗时记录在 LatencyRegistry 的 name 直方图中
+     * 进出的计数分别记在 name.in 和 name.out 两个 board 中
+     *
+     * 耗时按进出顺序配对, 返回的两个 graph 各只能物化一次, 再次物化时抛出 IllegalStateException;
+     * 每个流各自调用 auditorPair, 多个流可以使用相同的 name: 计数在 AuditBoard.snapshots() 中合并, 耗时记在同一个直方图
+     *
+     * @param name
+     * @param <E>
+     * @param <F>
+     * @return first 为入口, second 为出口
+     */
+    public static <E, F> Pair<Graph<FlowShape<E, E>, AuditBoard>, Graph<FlowShape<F, F>, AuditBoard>> auditorPair(
+            String name) {
+        StageLatency latency = new StageLatency(LatencyRegistry.histogram(name));
+        Auditor<E> in = new Auditor<>(new AuditBoard(name + ".in"), latency, true);
+        Auditor<F> out = new Auditor<>(new AuditBoard(name + ".out"), latency, false);
+        return Pair.create(in, out);
+    }
+
     /**
      * 滞留 window * waittings时间, 在window内收集的数据, 批量向下游传递
      * 
@@ -70,6 +114,21 @@ public class AkkaSupport {
         return retention;
     }
 
+    /**
+     * 按时间/数量/字节数批量下发
+     *
+     * @param delay    批次中首个元素最多滞留的毫秒数
+     * @param maxCount 每批的最大数量
+     * @param maxBytes 每批的最大字节数, <=0 表示不限制
+     * @param weigher  元素的字节数
+     * @param <T>
+     * @return
+     */
+    public static <T> GraphStage<FlowShape<T, List<T>>> retain(long delay, int maxCount, long maxBytes,
+            @Nullable ToIntFunction<? super T> weigher) {
+        return new Retention<>(delay, maxCount, maxBytes, weigher, Math.min(maxCount, 64));
+    }
+
     public static <T> Graph<FlowShape<T, List<T>>, NotUsed> batch(final int size) {
         Flow<T, T, NotUsed> flow = Flow.create();
         Flow<T, List, NotUsed> f = flow.batch(size, t -> {
@@ -83,8 +142,29 @@ public class AkkaSupport {
         return (Flow) f;
     }
 
+    /**
+     * 异步分页源转成 Source, 下游拉取时才查询下一页; 每次物化使用新的 iterator
+     *
+     * @param iterable
+     * @param <T>
+     * @return
+     */
+    public static <T> Source<T, NotUsed> source(AsyncLazyIterable<T> iterable) {
+        return Source.single(iterable).flatMapConcat(it -> Source.unfoldAsync(it.iterator(),
+                (AsyncLazyIterable.AsyncIterator<T> pages) -> pages.nextPage().thenApply(page -> {
+                    if (page == null) {
+                        return Optional.<Pair<AsyncLazyIterable.AsyncIterator<T>, List<T>>>empty();
+                    }
+                    List<T> list = new ArrayList<>();
+                    page.forEachRemaining(list::add);
+                    return Optional.of(Pair.create(pages, list));
+                })).mapConcat(list -> list));
+    }
+
     /**
      * 审计员, 总计总数与速率
+     *
+     * 同一个 board 可以被多个 Auditor(比如并行的子流)共享; 成对使用时统计两者之间的阶段耗时, 见 auditorPair
      */
     public static class Auditor<T>
             extends GraphStageWithMaterializedValue<FlowShape<T, T>, AuditBoard> {
@@ -93,12 +173,30 @@ public class AkkaSupport {
         private final Outlet<T> outlet;
         private final FlowShape<T, T> shape;
         private final AuditBoard board;
+        private final StageLatency latency;
+        private final boolean entry;
 
+        /**
+         * @param bundle 旧参数, 不再使用
+         */
         public Auditor(int bundle) {
+            this(new AuditBoard(), null, false);
+        }
+
+        public Auditor(AuditBoard board) {
+            this(board, null, false);
+        }
+
+        /**
+         * @param latency 不为null时, entry 的 Auditor 记录进入时间, 另一个记录离开时间
+         */
+        public Auditor(AuditBoard board, @Nullable StageLatency latency, boolean entry) {
             inlet = Inlet.create("Auditor.in");
             outlet = Outlet.create("Auditor.out");
             shape = FlowShape.of(inlet, outlet);
-            this.board = new AuditBoard(bundle);
+            this.board = board;
+            this.latency = latency;
+            this.entry = entry;
         }
 
         @Override
@@ -109,6 +207,9 @@ public class AkkaSupport {
         @Override
         public Tuple2<GraphStageLogic, AuditBoard> createLogicAndMaterializedValue(
                 Attributes inheritedAttributes) throws Exception {
+            if (latency != null) {
+                latency.claim(entry);
+            }
             GraphStageLogic logic = new GraphStageLogic(shape) {
                 {
                     setHandler(inlet, new AbstractInHandler() {
@@ -116,6 +217,13 @@ public class AkkaSupport {
                         public void onPush() throws Exception {
                             T t = grab(inlet);
                             board.audit(1L);
+                            if (latency != null) {
+                                if (entry) {
+                                    latency.enter();
+                                } else {
+                                    latency.exit();
+                                }
+                            }
                             push(outlet, t);
                         }
                     });
@@ -131,46 +239,212 @@ public class AkkaSupport {
         }
     }
 
+    /**
+     * 成对的 Auditor 之间的耗时, 按进出顺序配对: 第n个离开的元素对应第n个进入的元素
+     *
+     * 适用于一进一出且保序的阶段(map/mapAsync 等); 中间有 filter/batch 或乱序时结果失真, 并行子流共享时为近似值.
+     * 序号属于一次物化, 入口和出口各只允许物化一次, 多次物化会交错序号
+     */
+    public static class StageLatency {
+        private static final int CAPACITY = 4096;
+
+        private final LatencyHistogram histogram;
+        private final AtomicLongArray stamps = new AtomicLongArray(CAPACITY);
+        private final AtomicLong entered = new AtomicLong(0);
+        private final AtomicLong exited = new AtomicLong(0);
+        private final AtomicBoolean entryClaimed = new AtomicBoolean(false);
+        private final AtomicBoolean exitClaimed = new AtomicBoolean(false);
+
+        public StageLatency(LatencyHistogram histogram) {
+            this.histogram = histogram;
+        }
+
+        public LatencyHistogram histogram() {
+            return histogram;
+        }
+
+        void claim(boolean entry) {
+            if (!(entry ? entryClaimed : exitClaimed).compareAndSet(false, true)) {
+                throw new IllegalStateException("auditor pair of " + histogram.name()
+                        + " already materialized, create a new pair for each stream");
+            }
+        }
+
+        void enter() {
+            long seq = entered.getAndIncrement();
+            stamps.lazySet((int) (seq & (CAPACITY - 1)), System.nanoTime());
+        }
+
+        void exit() {
+            long seq = exited.getAndIncrement();
+            if (entered.get() - seq > CAPACITY) {
+                // 在途元素过多, 进入时间已被覆盖
+                return;
+            }
+            long start = stamps.get((int) (seq & (CAPACITY - 1)));
+            histogram.record(Math.max(0, System.nanoTime() - start));
+        }
+    }
+
     private static final String TEMPLATE = "%1$d %2$.1f/s";
 
+    /**
+     * 计数和速率, 可被多个流并发更新
+     *
+     * 计数使用 LongAdder 分散竞争; 速率为 1s/10s/60s 的指数加权移动平均, 每 250ms 在更新或读取时顺带推进
+     * 带名字的 board 可通过 snapshots() 抓取, 同名的 board 合并为一个快照
+     */
     public static class AuditBoard {
-        private final AtomicLong counter;
-        private long count;
-        private long last;
-        private long lastFlag;
-        private final long mask; // 掩码
+        private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+        /**
+         * 长时间没有更新时, 超过这个次数后各速率都已衰减到0附近
+         */
+        private static final int MAX_TICKS = 2400;
+        private static final ConcurrentMap<String, Queue<WeakReference<AuditBoard>>> BOARDS =
+                new ConcurrentHashMap<>();
+
+        private final String name;
+        private final LongAdder counter = new LongAdder();
+        private final LongAdder uncounted = new LongAdder();
+        private final Ewma rate1s = new Ewma(1);
+        private final Ewma rate10s = new Ewma(10);
+        private final Ewma rate60s = new Ewma(60);
+        /**
+         * 保护各速率的推进
+         */
+        private final ReentrantLock tickLock = new ReentrantLock();
+        private volatile long lastTick = System.nanoTime();
+
+        public AuditBoard() {
+            this((String) null);
+        }
 
+        /**
+         * @param bit 旧参数, 不再使用
+         */
         public AuditBoard(int bit) {
-            this.counter = new AtomicLong(0);
-            this.last = now();
-            mask = Long.MAX_VALUE >> (63 - bit) ^ Long.MAX_VALUE;
-            count = 0;
+            this((String) null);
+        }
+
+        /**
+         * @param name 不为null时登记, 可通过 snapshots() 抓取; 同名的 board 合并统计
+         */
+        public AuditBoard(@Nullable String name) {
+            this.name = name;
+            if (name != null) {
+                WeakReference<AuditBoard> ref = new WeakReference<>(this);
+                BOARDS.compute(name, (k, refs) -> {
+                    if (refs == null) {
+                        refs = new ConcurrentLinkedQueue<>();
+                    } else {
+                        refs.removeIf(r -> r.get() == null);
+                    }
+                    refs.add(ref);
+                    return refs;
+                });
+            }
+        }
+
+        public String name() {
+            return name;
         }
 
         /**
          * 总数
          */
         public long count() {
-            return counter.get();
+            return counter.sum();
         }
 
         /**
-         * 当前的速度, 1s计, 在下一个bundle时归零
+         * 当前的速度, 每秒个数, 最近1s的加权平均
          */
         public float speed() {
-            long delta = counter.get() - count;
-            long current = now();
-            return (current == last) || delta == 0 ? 0f : delta * 1000f / (current - last);
+            return (float) rate1s();
+        }
+
+        public double rate1s() {
+            tickIfNecessary();
+            return rate1s.rate();
+        }
+
+        public double rate10s() {
+            tickIfNecessary();
+            return rate10s.rate();
+        }
+
+        public double rate60s() {
+            tickIfNecessary();
+            return rate60s.rate();
         }
 
         public void audit(long count) {
-            /**
-             * 使用位操作, 整除性能比较差
-             */
-            if ((counter.addAndGet(count) & mask) != lastFlag) {
-                last = now();
-                this.count = counter.get();
-                lastFlag = counter.get() & mask;
+            counter.add(count);
+            uncounted.add(count);
+            tickIfNecessary();
+        }
+
+        public Snapshot snapshot() {
+            tickIfNecessary();
+            return new Snapshot(name, count(), rate1s.rate(), rate10s.rate(), rate60s.rate());
+        }
+
+        /**
+         * 所有带名字的 board, 供指标系统定期抓取; 同名的多个 board 计数和速率相加, 顺带移除已被回收的
+         */
+        public static List<Snapshot> snapshots() {
+            List<Snapshot> list = new ArrayList<>(BOARDS.size());
+            for (Map.Entry<String, Queue<WeakReference<AuditBoard>>> entry : BOARDS.entrySet()) {
+                long count = 0;
+                double rate1s = 0;
+                double rate10s = 0;
+                double rate60s = 0;
+                boolean alive = false;
+                for (WeakReference<AuditBoard> ref : entry.getValue()) {
+                    AuditBoard board = ref.get();
+                    if (board == null) {
+                        entry.getValue().remove(ref);
+                        continue;
+                    }
+                    Snapshot snapshot = board.snapshot();
+                    count += snapshot.count();
+                    rate1s += snapshot.rate1s();
+                    rate10s += snapshot.rate10s();
+                    rate60s += snapshot.rate60s();
+                    alive = true;
+                }
+                if (alive) {
+                    list.add(new Snapshot(entry.getKey(), count, rate1s, rate10s, rate60s));
+                } else {
+                    BOARDS.computeIfPresent(entry.getKey(), (k, refs) -> refs.isEmpty() ? null : refs);
+                }
+            }
+            return list;
+        }
+
+        /**
+         * 同一时刻只有一个线程推进各速率; 其他线程拿不到锁时直接返回, 读到的是上一次推进的结果
+         */
+        private void tickIfNecessary() {
+            if (System.nanoTime() - lastTick < TICK_NANOS || !tickLock.tryLock()) {
+                return;
+            }
+            try {
+                long age = System.nanoTime() - lastTick;
+                if (age < TICK_NANOS) {
+                    return;
+                }
+                long ticks = age / TICK_NANOS;
+                lastTick += ticks * TICK_NANOS;
+                long count = uncounted.sumThenReset();
+                for (long i = 0; i < Math.min(ticks, MAX_TICKS); i++) {
+                    rate1s.tick(count);
+                    rate10s.tick(count);
+                    rate60s.tick(count);
+                    count = 0;
+                }
+            } finally {
+                tickLock.unlock();
             }
         }
 
@@ -178,118 +452,214 @@ public class AkkaSupport {
         public String toString() {
             return String.format(TEMPLATE, count(), speed());
         }
+
+        public static class Snapshot {
+            private final String name;
+            private final long count;
+            private final double rate1s;
+            private final double rate10s;
+            private final double rate60s;
+
+            Snapshot(String name, long count, double rate1s, double rate10s, double rate60s) {
+                this.name = name;
+                this.count = count;
+                this.rate1s = rate1s;
+                this.rate10s = rate10s;
+                this.rate60s = rate60s;
+            }
+
+            public String name() {
+                return name;
+            }
+
+            public long count() {
+                return count;
+            }
+
+            public double rate1s() {
+                return rate1s;
+            }
+
+            public double rate10s() {
+                return rate10s;
+            }
+
+            public double rate60s() {
+                return rate60s;
+            }
+
+            @Override
+            public String toString() {
+                return String.format("%s %d %.1f/s %.1f/s %.1f/s", name, count, rate1s, rate10s, rate60s);
+            }
+        }
+
+        /**
+         * 只在持有 tickLock 时写入
+         */
+        static class Ewma {
+            private final double alpha;
+            private volatile double rate;
+            private boolean initialized;
+
+            Ewma(int seconds) {
+                this.alpha = 1 - Math.exp(-(double) TICK_NANOS / TimeUnit.SECONDS.toNanos(seconds));
+            }
+
+            void tick(long count) {
+                double instant = count * (double) TimeUnit.SECONDS.toNanos(1) / TICK_NANOS;
+                if (initialized) {
+                    rate += alpha * (instant - rate);
+                } else {
+                    rate = instant;
+                    initialized = true;
+                }
+            }
+
+            double rate() {
+                return rate;
+            }
+        }
     }
 
     /**
-     * 滞留, 将元素滞留一段时间,批量下发下去
+     * 滞留, 将元素滞留一段时间, 批量下发下去
      *
-     * TODO 实现得不正确,无法使用
+     * 批次在首个元素到达 delay 毫秒后, 或者数量/字节数达到上限时封口; 下游未拉取时最多缓存两批, 之后不再拉取上游
+     * 上游结束或失败时先下发已缓存的批次, 再结束或失败; 状态都在每次物化的 GraphStageLogic 中
      */
     public static class Retention<T> extends GraphStage<FlowShape<T, List<T>>> {
-        private final int window;
+        private static final String TIMER = "retention";
+        private static final int MAX_READY = 2;
+
         private final long delay;
+        private final int maxCount;
+        private final long maxBytes;
+        private final ToIntFunction<? super T> weigher;
+        private final int initSize;
         private final Inlet<T> inlet;
         private final Outlet<List<T>> outlet;
         private final FlowShape<T, List<T>> shape;
-        private final Deque<Pair<Long, List<T>>> deque;
-        private final int initSize;
 
+        /**
+         * 兼容旧参数: 滞留 window * waittings 毫秒, 数量不设上限
+         */
         public Retention(int window, int waittings, int initSize) {
-            this.window = window;
-            this.delay = window * waittings;
-            this.initSize = initSize;
+            this((long) window * waittings, Integer.MAX_VALUE, 0, null, initSize);
+        }
+
+        /**
+         * @param delay    批次中首个元素最多滞留的毫秒数
+         * @param maxCount 每批的最大数量
+         * @param maxBytes 每批的最大字节数, <=0 表示不限制
+         * @param weigher  元素的字节数, maxBytes > 0 时必须提供
+         * @param initSize 批次 list 的初始容量
+         */
+        public Retention(long delay, int maxCount, long maxBytes, @Nullable ToIntFunction<? super T> weigher,
+                         int initSize) {
+            Preconditions.checkArgument(delay > 0, "delay must be positive");
+            Preconditions.checkArgument(maxCount > 0, "maxCount must be positive");
+            Preconditions.checkArgument(maxBytes <= 0 || weigher != null, "weigher required when maxBytes > 0");
+            this.delay = delay;
+            this.maxCount = maxCount;
+            this.maxBytes = maxBytes;
+            this.weigher = weigher;
+            this.initSize = Math.max(1, Math.min(initSize, maxCount));
             inlet = Inlet.create("Retention.in");
             outlet = Outlet.create("Retention.out");
             shape = FlowShape.of(inlet, outlet);
-            deque = new LinkedBlockingDeque<>(waittings);
         }
 
-        /**
-         * 当下游pull/上游push空白一段时间,这时候会造成时间窗口(delay)不准确<br/>
-         * 但保证至少delay之后才向下游发送
-         */
         @Override
         public GraphStageLogic createLogic(Attributes inheritedAttributes) throws Exception {
-            CompletableFuture<Boolean> done = new CompletableFuture<>();
             return new TimerGraphStageLogicWithLogging(shape()) {
+                private final Deque<List<T>> ready = new ArrayDeque<>(MAX_READY + 1);
+                private List<T> current;
+                private long currentBytes;
+                private boolean finishing;
+                private Throwable failure;
+
                 {
                     setHandler(inlet, new AbstractInHandler() {
-                        long lastTime = 0;
-
                         @Override
                         public void onPush() throws Exception {
-                            long currentNow = now();
                             T ele = grab(inlet);
-                            if (deque.isEmpty() || lastTime + window < currentNow) {
-                                lastTime = currentNow;
-                                deque.offerLast(Pair.create(lastTime, new ArrayList<>(initSize)));
+                            if (current == null) {
+                                current = new ArrayList<>(initSize);
+                                scheduleOnce(TIMER, millis(delay));
                             }
-                            deque.peekLast().second().add(ele);
-                            pull(inlet);
+                            current.add(ele);
+                            if (maxBytes > 0) {
+                                currentBytes += weigher.applyAsInt(ele);
+                            }
+                            if (current.size() >= maxCount || (maxBytes > 0 && currentBytes >= maxBytes)) {
+                                seal();
+                            }
+                            tryPull();
                         }
 
                         @Override
                         public void onUpstreamFinish() {
-                            done.complete(true);
+                            finishing = true;
+                            seal();
                         }
 
                         @Override
                         public void onUpstreamFailure(Throwable ex) throws Exception {
-                            super.onUpstreamFailure(ex);
-                            List<List<T>> overdues = removeOverdueList(now() - delay); // 立刻置为过期
-                            if (overdues != null) {
-                                emitMultiple(outlet, overdues.iterator());
-                            }
-                            done.completeExceptionally(ex);
+                            finishing = true;
+                            failure = ex;
+                            seal();
                         }
                     });
                     setHandler(outlet, new AbstractOutHandler() {
                         @Override
                         public void onPull() throws Exception {
-                            if (!hasBeenPulled(inlet)) {
-                                pull(inlet);
-                            }
+                            emitReady();
+                            tryPull();
                         }
                     });
                 }
 
-                private final String Tick = "tick";
-
                 @Override
                 public void preStart() throws Exception {
-                    schedulePeriodicallyWithInitialDelay(Tick, millis(delay), millis(window));
+                    pull(inlet);
                 }
 
                 @Override
                 public void onTimer(Object timerKey) throws Exception {
-                    if (Tick.equals(timerKey)) {
-                        log().debug("Retention.timer triggered");
-                        if (!done.isDone()) {
-                            List<List<T>> overdues = removeOverdueList(now());
-                            if (overdues != null) {
-                                List<T> ts = new ArrayList<>(overdues.size());
-                                for (List<T> overdue : overdues) {
-                                    ts.addAll(overdue);
-                                }
-                                emit(outlet, ts);
-                            }
-                        } else if (done.isCompletedExceptionally()) {
-                            log().warning("Retention.timer exception");
+                    if (TIMER.equals(timerKey)) {
+                        seal();
+                        tryPull();
+                    }
+                }
+
+                private void seal() {
+                    cancelTimer(TIMER);
+                    if (current != null) {
+                        ready.offerLast(current);
+                        current = null;
+                        currentBytes = 0;
+                    }
+                    emitReady();
+                }
+
+                private void emitReady() {
+                    if (!ready.isEmpty() && isAvailable(outlet)) {
+                        push(outlet, ready.pollFirst());
+                    }
+                    if (finishing && ready.isEmpty()) {
+                        if (failure != null) {
+                            failStage(failure);
                         } else {
                             completeStage();
                         }
                     }
                 }
 
-                private List<List<T>> removeOverdueList(long now) {
-                    List<List<T>> overdueList = null;
-                    while (!deque.isEmpty() && deque.peekFirst().first() + delay <= now) {
-                        if (overdueList == null) {
-                            overdueList = new ArrayList<>(1);
-                        }
-                        overdueList.add(deque.removeFirst().second());
+                private void tryPull() {
+                    if (!finishing && ready.size() < MAX_READY && !hasBeenPulled(inlet) && !isClosed(inlet)) {
+                        pull(inlet);
                     }
-                    return overdueList;
                 }
             };
         }
@@ -300,54 +670,80 @@ public class AkkaSupport {
         }
     }
 
-    private static final long now() {
-        return System.currentTimeMillis();
-    }
-
+    public static final int DEFAULT_WINDOW_BUFFER = 10000;
 
     /**
      * 类似 map/reduce一样，将数据量map/reduce减少下游处理压力
+     *
+     * 每 flipTimeout 秒为一个周期, 周期结束时把每个 key 的结果交给 consumer; 元素按 key 预聚合后分到cpu核数个
+ * 并行的 reduce 流(见 ShardedMapReduce), 流只物化一次, consumer 串行调用
      *
      * @param materializer
      * @param filter
-     * @param maxSubstreams 预估最大的子流数量（不可超过该值）
+     * @param maxSubstreams 旧参数, 不再限制 key 的数量
      * @param mapper
      * @param reducer
      * @param flipTimeout
      * @param consumer
-     * @return
+     * @return 队列满时丢弃新元素并计数
      */
-    public static <T> Consumer<T> mapReduceStream(Materializer materializer, Predicate<T> filter,
+    public static <T> QueueProducer<T> mapReduceStream(Materializer materializer, Predicate<T> filter,
             int maxSubstreams, Function<T, String> mapper, BiFunction<T, T, T> reducer,
             int flipTimeout, Consumer<T> consumer) {
+        return mapReduceStream(materializer, filter, maxSubstreams, mapper, reducer, flipTimeout, consumer,
+                QueueProducer.Overflow.DROP_NEWEST);
+    }
 
-        SourceQueueWithComplete<T> sourceQueueWithComplete = mapReduceStreamWithoutAutoFlush(materializer, filter,
-                maxSubstreams, mapper, reducer, consumer);
+    public static <T> QueueProducer<T> mapReduceStream(Materializer materializer, Predicate<T> filter,
+            int maxSubstreams, Function<T, String> mapper, BiFunction<T, T, T> reducer,
+            int flipTimeout, Consumer<T> consumer, QueueProducer.Overflow overflow) {
+        ShardedMapReduce<T> sharded = new ShardedMapReduce<>(materializer, filter, 0, DEFAULT_SHARD_BUFFER,
+                DEFAULT_SHARD_BATCH_KEYS, DEFAULT_SHARD_FLUSH_MILLIS, TimeUnit.SECONDS.toMillis(flipTimeout),
+                ThreadSupport.defaultTimer(), mapper, reducer, serial(consumer));
+        SourceQueueWithComplete<T> q = sharded.asQueue();
+        return new QueueProducer<>(q, DEFAULT_WINDOW_BUFFER, overflow);
+    }
 
-        FiniteDuration delay = seconds(flipTimeout);
-        final SourceQueueWithComplete[] holders = new SourceQueueWithComplete[1];
-        holders[0] = sourceQueueWithComplete;
-        /**
-         * 定时反转，刷新流
-         */
-        Source.tick(delay, delay, 1).to(Sink.foreach(i -> {
-            SourceQueueWithComplete q = holders[0];
-            holders[0] = mapReduceStreamWithoutAutoFlush(materializer, filter, maxSubstreams,
-                    mapper, reducer, consumer);
-            q.complete(); // 将之前的queue置为完成
-        })).run(materializer);
-        return t -> {
-            SourceQueueWithComplete q = holders[0];
-            q.offer(t);
-        };
+    /**
+     * 按到达时间的滚动窗口聚合
+     *
+     * @param size    窗口长度, 毫秒
+     * @param mapper  元素 => key
+     * @param reducer
+     * @param <T>
+     * @return 物化值统计迟到丢弃的元素和已关闭的窗口
+     */
+    public static <T> Graph<FlowShape<T, WindowAggregation.Windowed<T>>, WindowAggregation.Stats> tumblingWindow(
+            long size, Function<T, String> mapper, BiFunction<T, T, T> reducer) {
+        return new WindowAggregation<>(size, size, 0, null, mapper, reducer, DEFAULT_WINDOW_BUFFER);
+    }
+
+    /**
+     * 按元素时间戳的滑动窗口聚合
+     *
+     * @param size      窗口长度, 毫秒
+     * @param slide     窗口间隔, 毫秒
+     * @param lateness  窗口结束后仍接收迟到元素的毫秒数
+     * @param timestamp 元素的时间戳, 毫秒; null 表示使用到达时间
+     * @param mapper    元素 => key
+     * @param reducer
+     * @param <T>
+     * @return 物化值统计迟到丢弃的元素和已关闭的窗口
+     */
+    public static <T> Graph<FlowShape<T, WindowAggregation.Windowed<T>>, WindowAggregation.Stats> slidingWindow(
+            long size, long slide, long lateness, @Nullable ToLongFunction<T> timestamp, Function<T, String> mapper,
+            BiFunction<T, T, T> reducer) {
+        return new WindowAggregation<>(size, slide, lateness, timestamp, mapper, reducer, DEFAULT_WINDOW_BUFFER);
     }
 
     /**
      * 基本功能同 tickBusDecorator，但是没有自动刷新
      *
+     * complete() 之后把每个 key 的结果交给 consumer, 聚合见 ShardedMapReduce
+     *
      * @param materializer
      * @param filter
-     * @param maxSubstreams
+     * @param maxSubstreams 旧参数, 不再限制 key 的数量
      * @param mapper
      * @param reducer
      * @param consumer
@@ -357,24 +753,58 @@ public class AkkaSupport {
     public static <T> SourceQueueWithComplete<T> mapReduceStreamWithoutAutoFlush(
             Materializer materializer, Predicate<T> filter, int maxSubstreams,
             Function<T, String> mapper, BiFunction<T, T, T> reducer, Consumer<T> consumer) {
+        ShardedMapReduce<T> sharded = new ShardedMapReduce<>(materializer, filter, 0, DEFAULT_SHARD_BUFFER,
+                DEFAULT_SHARD_BATCH_KEYS, DEFAULT_SHARD_FLUSH_MILLIS, ThreadSupport.defaultTimer(), mapper, reducer,
+                serial(consumer));
+        return sharded.asQueue();
+    }
 
-        Source<T, SourceQueueWithComplete<T>> queueSrc =
-                Source.queue(10000, OverflowStrategy.backpressure());
+    /**
+     * 各分片并发交出结果, 包装后 consumer 串行调用
+     */
+    private static <T> Consumer<T> serial(Consumer<T> consumer) {
+        Object lock = new Object();
+        return t -> {
+            synchronized (lock) {
+                consumer.accept(t);
+            }
+        };
+    }
 
-        Source<T, SourceQueueWithComplete<T>> flow = queueSrc;
-        if (filter != null) {
-            flow = flow.filter(t -> filter.test(t));
-        }
-        Source<T, SourceQueueWithComplete<T>> mergedStream =
-                flow.groupBy(maxSubstreams, t -> mapper.apply(t))
-                        .reduce((t1, t2) -> reducer.apply(t1, t2)).mergeSubstreams();
-        RunnableGraph<SourceQueueWithComplete<T>> graph =
-                mergedStream.to(Sink.foreach(t -> consumer.accept(t)));
-        return graph.run(materializer);
+    public static final int DEFAULT_SHARD_BUFFER = 16;
+    public static final int DEFAULT_SHARD_BATCH_KEYS = 1024;
+    public static final long DEFAULT_SHARD_FLUSH_MILLIS = 100;
+
+    /**
+     * 分片并行的 map/reduce, 分片数为cpu核数; 调用 complete() 后把每个 key 的结果交给 consumer
+     *
+     * @param materializer
+     * @param filter
+     * @param mapper
+     * @param reducer
+     * @param consumer
+     * @param <T>
+     * @return
+     */
+    public static <T> ShardedMapReduce<T> shardedMapReduce(Materializer materializer, @Nullable Predicate<T> filter,
+            Function<T, String> mapper, BiFunction<T, T, T> reducer, Consumer<T> consumer) {
+        return new ShardedMapReduce<>(materializer, filter, 0, DEFAULT_SHARD_BUFFER, DEFAULT_SHARD_BATCH_KEYS,
+                DEFAULT_SHARD_FLUSH_MILLIS, ThreadSupport.defaultTimer(), mapper, reducer, consumer);
     }
 
-    public static <T> Consumer<T> tickBus(Materializer materializer, @Nullable Predicate<T> filter, int size,
-                                          int timeout, Consumer<Collection<T>> bus) {
+    /**
+     * 每 size 个或每 timeout 毫秒批量交给 bus
+     *
+     * @return 队列满时丢弃新元素并计数
+     */
+    public static <T> QueueProducer<T> tickBus(Materializer materializer, @Nullable Predicate<T> filter, int size,
+                                               int timeout, Consumer<Collection<T>> bus) {
+        return tickBus(materializer, filter, size, timeout, bus, QueueProducer.Overflow.DROP_NEWEST);
+    }
+
+    public static <T> QueueProducer<T> tickBus(Materializer materializer, @Nullable Predicate<T> filter, int size,
+                                               int timeout, Consumer<Collection<T>> bus,
+                                               QueueProducer.Overflow overflow) {
         Source<T, SourceQueueWithComplete<T>> queueSrc =
                 Source.queue(size, OverflowStrategy.backpressure());
         if (filter != null) {
@@ -384,7 +814,7 @@ public class AkkaSupport {
                 queueSrc.groupedWithin(size, millis(timeout));
         Procedure<List<T>> p = l -> bus.accept(l);
         SourceQueueWithComplete<T> q = flow.to(Sink.foreach(p)).run(materializer);
-        return t -> q.offer(t);
+        return new QueueProducer<>(q, size, overflow);
     }
 
     /**
@@ -411,6 +841,17 @@ public class AkkaSupport {
         return q;
     }
 
+    /**
+     * 同 queue, 返回能感知队列满的生产者句柄
+     *
+     * @param bufSize  队列和生产者缓冲的大小
+     * @param overflow 作为 Consumer 使用时缓冲满的处理方式
+     */
+    public static <T> QueueProducer<T> queueProducer(int bufSize, Materializer mat, Consumer<? super T> consumer,
+        Function<Throwable, Boolean> handler, QueueProducer.Overflow overflow) {
+        return new QueueProducer<>(queue(bufSize, mat, consumer, handler), bufSize, overflow);
+    }
+
     public static void main(String... args) throws Exception {
         // testTicBus();
         testMapReduceStream();
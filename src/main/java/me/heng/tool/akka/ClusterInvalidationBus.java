@@ -0,0 +1,82 @@
+package me.heng.tool.akka;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.actor.UntypedActor;
+import akka.cluster.pubsub.DistributedPubSub;
+import akka.cluster.pubsub.DistributedPubSubMediator;
+import me.heng.tool.cache.InvalidationBus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.function.Consumer;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 9:30 PM
+ *
+ * 基于 akka cluster DistributedPubSub 的失效通道, 消息发往集群中所有订阅了同一 channel 的节点
+ *
+ * ActorSystem 需要配置 akka.actor.provider = "akka.cluster.ClusterActorRefProvider";
+ * 失效的 key 需要能被 akka 序列化
+ */
+public class ClusterInvalidationBus implements InvalidationBus {
+
+    private static final Logger logger = LoggerFactory.getLogger(ClusterInvalidationBus.class);
+
+    private static final String TOPIC_PREFIX = "cache-invalidation:";
+
+    private final ActorSystem system;
+    private final ActorRef mediator;
+
+    public ClusterInvalidationBus(ActorSystem system) {
+        this.system = system;
+        this.mediator = DistributedPubSub.get(system).mediator();
+    }
+
+    @Override
+    public void publish(Invalidation invalidation) {
+        mediator.tell(new DistributedPubSubMediator.Publish(TOPIC_PREFIX + invalidation.channel(), invalidation),
+                ActorRef.noSender());
+    }
+
+    @Override
+    public Subscription subscribe(String channel, Consumer<Invalidation> listener) {
+        ActorRef subscriber = system.actorOf(Props.create(Subscriber.class, TOPIC_PREFIX + channel, mediator,
+                listener));
+        // 订阅者停止后 mediator 自动移除订阅
+        return () -> system.stop(subscriber);
+    }
+
+    static class Subscriber extends UntypedActor {
+        private final String topic;
+        private final ActorRef mediator;
+        private final Consumer<Invalidation> listener;
+
+        public Subscriber(String topic, ActorRef mediator, Consumer<Invalidation> listener) {
+            this.topic = topic;
+            this.mediator = mediator;
+            this.listener = listener;
+        }
+
+        @Override
+        public void preStart() {
+            mediator.tell(new DistributedPubSubMediator.Subscribe(topic, getSelf()), getSelf());
+        }
+
+        @Override
+        public void onReceive(Object message) {
+            if (message instanceof Invalidation) {
+                try {
+                    listener.accept((Invalidation) message);
+                } catch (Exception e) {
+                    logger.warn("invalidation listener fail: " + message, e);
+                }
+            } else if (!(message instanceof DistributedPubSubMediator.SubscribeAck)) {
+                unhandled(message);
+            }
+        }
+    }
+}
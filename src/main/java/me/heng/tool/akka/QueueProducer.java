@@ -0,0 +1,354 @@
+package me.heng.tool.akka;
+
+import akka.Done;
+import akka.stream.QueueOfferResult;
+import akka.stream.javadsl.SourceQueueWithComplete;
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 11:10 PM
+ *
+ * akka SourceQueue 的生产者句柄
+ *
+ * SourceQueue 在 backpressure 策略下同时只允许一个未完成的 offer, 直接调用 offer 并忽略结果会在队列满时丢数据;
+ * 这里在前面加一个有界缓冲, 由一个泵依次投递到 SourceQueue, 队列满时调用方可以选择阻塞等待、立即失败或异步等待,
+ * 作为 Consumer 使用时按 Overflow 策略处理
+ */
+public class QueueProducer<T> implements Consumer<T> {
+
+    private static final Logger logger = LoggerFactory.getLogger(QueueProducer.class);
+
+    /**
+     * 缓冲满时 accept 的处理方式
+     */
+    public enum Overflow {
+        /**
+         * 丢弃缓冲中最早的元素, 放入新元素
+         */
+        DROP_OLDEST,
+        /**
+         * 丢弃新元素
+         */
+        DROP_NEWEST,
+        /**
+         * 阻塞直到有空间
+         */
+        BLOCK
+    }
+
+    private final SourceQueueWithComplete<T> queue;
+    private final int capacity;
+    private final Overflow overflow;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Deque<T> buffer;
+    private final Deque<AsyncOffer<T>> waiters = new ArrayDeque<>();
+    private boolean pumping;
+    private boolean closed;
+    private final CompletableFuture<Done> drained = new CompletableFuture<>();
+    /**
+     * 泵的重入计数, 避免同步完成的 offer 递归投递
+     */
+    private final AtomicInteger wip = new AtomicInteger(0);
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder enqueued = new LongAdder();
+
+    /**
+     * @param queue    backpressure 策略的 SourceQueue
+     * @param capacity 缓冲大小
+     * @param overflow accept 时缓冲满的处理方式
+     */
+    public QueueProducer(SourceQueueWithComplete<T> queue, int capacity, Overflow overflow) {
+        Preconditions.checkArgument(capacity > 0, "capacity must be positive");
+        this.queue = queue;
+        this.capacity = capacity;
+        this.overflow = overflow;
+        this.buffer = new ArrayDeque<>(Math.min(capacity, 1024));
+    }
+
+    /**
+     * 按 Overflow 策略放入
+     */
+    @Override
+    public void accept(T t) {
+        switch (overflow) {
+            case BLOCK:
+                try {
+                    offer(t, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    dropped.increment();
+                }
+                break;
+            case DROP_OLDEST:
+                offerDropOldest(t);
+                break;
+            default:
+                tryOffer(t);
+        }
+    }
+
+    /**
+     * 不阻塞
+     *
+     * @return 缓冲满或已关闭时返回false, 计入 dropped
+     */
+    public boolean tryOffer(T t) {
+        lock.lock();
+        try {
+            if (closed || buffer.size() >= capacity) {
+                dropped.increment();
+                return false;
+            }
+            add(t);
+        } finally {
+            lock.unlock();
+        }
+        pump();
+        return true;
+    }
+
+    /**
+     * 缓冲满时最多等待 timeout
+     *
+     * @return 超时或已关闭时返回false, 计入 dropped
+     */
+    public boolean offer(T t, long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (!closed && buffer.size() >= capacity) {
+                if (nanos <= 0) {
+                    dropped.increment();
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            if (closed) {
+                dropped.increment();
+                return false;
+            }
+            add(t);
+        } finally {
+            lock.unlock();
+        }
+        pump();
+        return true;
+    }
+
+    /**
+     * 缓冲满时不阻塞线程, 等有空间时放入
+     *
+     * @return 放入缓冲时以true完成; 关闭时以false完成
+     */
+    public CompletableFuture<Boolean> offerAsync(T t) {
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        lock.lock();
+        try {
+            if (closed) {
+                dropped.increment();
+                future.complete(false);
+                return future;
+            }
+            if (buffer.size() >= capacity || !waiters.isEmpty()) {
+                waiters.offerLast(new AsyncOffer<>(t, future));
+                return future;
+            }
+            add(t);
+        } finally {
+            lock.unlock();
+        }
+        future.complete(true);
+        pump();
+        return future;
+    }
+
+    /**
+     * 不再接收新元素, 缓冲中的元素投递完后结束 SourceQueue
+     *
+     * @return SourceQueue 下游结束时完成
+     */
+    public CompletionStage<Done> complete() {
+        Deque<AsyncOffer<T>> rejected;
+        lock.lock();
+        try {
+            closed = true;
+            rejected = new ArrayDeque<>(waiters);
+            waiters.clear();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (AsyncOffer<T> waiter : rejected) {
+            dropped.increment();
+            waiter.future.complete(false);
+        }
+        pump();
+        return drained.thenCompose(d -> queue.watchCompletion());
+    }
+
+    /**
+     * 已放入缓冲的元素数
+     */
+    public long accepted() {
+        return accepted.sum();
+    }
+
+    /**
+     * 因缓冲满、超时、关闭或 SourceQueue 拒绝而丢弃的元素数
+     */
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * 已投递到 SourceQueue 的元素数
+     */
+    public long enqueued() {
+        return enqueued.sum();
+    }
+
+    /**
+     * 缓冲中和异步等待中的元素数
+     */
+    public int depth() {
+        lock.lock();
+        try {
+            return buffer.size() + waiters.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void offerDropOldest(T t) {
+        lock.lock();
+        try {
+            if (closed) {
+                dropped.increment();
+                return;
+            }
+            if (buffer.size() >= capacity) {
+                buffer.pollFirst();
+                dropped.increment();
+            }
+            add(t);
+        } finally {
+            lock.unlock();
+        }
+        pump();
+    }
+
+    /**
+     * 需持有锁
+     */
+    private void add(T t) {
+        buffer.offerLast(t);
+        accepted.increment();
+    }
+
+    /**
+     * 同时只有一个 offer 在进行; 已完成的 offer 在循环中处理, 未完成的在回调中继续
+     */
+    private void pump() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        do {
+            while (true) {
+                T next;
+                AsyncOffer<T> admitted = null;
+                lock.lock();
+                try {
+                    if (pumping) {
+                        break;
+                    }
+                    next = buffer.pollFirst();
+                    if (next == null) {
+                        if (closed && !drained.isDone()) {
+                            drained.complete(Done.getInstance());
+                            queue.complete();
+                        }
+                        break;
+                    }
+                    pumping = true;
+                    if (!waiters.isEmpty()) {
+                        admitted = waiters.pollFirst();
+                        add(admitted.value);
+                    } else {
+                        notFull.signal();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                if (admitted != null) {
+                    admitted.future.complete(true);
+                }
+                CompletableFuture<QueueOfferResult> future = queue.offer(next).toCompletableFuture();
+                if (!future.isDone()) {
+                    future.whenComplete((r, ex) -> {
+                        onOffered(next, r, ex);
+                        pump();
+                    });
+                    break;
+                }
+                QueueOfferResult r = null;
+                Throwable ex = null;
+                try {
+                    r = future.join();
+                } catch (Throwable e) {
+                    ex = e;
+                }
+                onOffered(next, r, ex);
+            }
+        } while (wip.decrementAndGet() != 0);
+    }
+
+    private void onOffered(T t, QueueOfferResult r, Throwable ex) {
+        if (ex == null && QueueOfferResult.enqueued().equals(r)) {
+            enqueued.increment();
+        } else {
+            dropped.increment();
+            logger.warn("queue offer fail: " + (ex != null ? ex : r) + ", element: " + t);
+        }
+        lock.lock();
+        try {
+            pumping = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "QueueProducer{accepted=" + accepted() + ", dropped=" + dropped() + ", enqueued=" + enqueued()
+                + ", depth=" + depth() + '}';
+    }
+
+    private static class AsyncOffer<T> {
+        final T value;
+        final CompletableFuture<Boolean> future;
+
+        AsyncOffer(T value, CompletableFuture<Boolean> future) {
+            this.value = value;
+            this.future = future;
+        }
+    }
+}
@@ -0,0 +1,473 @@
+package me.heng.tool.akka;
+
+import akka.Done;
+import akka.japi.Pair;
+import akka.stream.Materializer;
+import akka.stream.OverflowStrategy;
+import akka.stream.QueueOfferResult;
+import akka.stream.javadsl.Keep;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import akka.stream.javadsl.SourceQueueWithComplete;
+import com.google.common.base.Preconditions;
+import me.heng.tool.future.Timer;
+import me.heng.tool.support.FutureSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 10:10 PM
+ *
+ * 分片的 map/reduce: 按 key 的 hash 分到 N 个并行的 reduce 流, 每个流一个 actor
+ *
+ * 元素先在调用线程中按 key 预聚合到当前分片的 Chunk, Chunk 满 batchKeys 个 key 或到达 flushMillis 时整体投递;
+ * 每个分片同时只有一个 Chunk 在投递, 投递期间到达的元素继续合并到下一个 Chunk, 内存只随 key 的数量增长.
+ * offer 合并后立即完成, 分片积压(上一个 Chunk 投递中且当前 Chunk 已满)时要等当前 Chunk 被接收才完成, 调用方可据此感知背压.
+ * 定时投递只在有未投递的 Chunk 时安排, 全部分片空闲后不再占用定时器.
+ *
+ * epochMillis > 0 时每个周期把各分片本周期的结果交给 consumer 并清空, 周期的边界以分片内 Chunk 的切换为准;
+ * 不同分片的 consumer 调用可能并发.
+ * 预聚合的 key 仍是 mapper 返回的 String: 换成 long 等原始类型的 key 需要调用方保证无冲突, 这里只把 hash 存成 int 数组
+ */
+public class ShardedMapReduce<T> {
+
+    private static final Logger logger = LoggerFactory.getLogger(ShardedMapReduce.class);
+
+    private final Predicate<T> filter;
+    private final Function<T, String> mapper;
+    private final BiFunction<T, T, T> reducer;
+    private final int batchKeys;
+    private final Shard<T>[] shards;
+    private final CompletableFuture<Done> done;
+    private final Timer timer;
+    private final long flushMillis;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final long epochNanos;
+    private long nextEpoch;
+    private final LongAdder chunks = new LongAdder();
+    private volatile boolean completed;
+
+    /**
+     * @param materializer
+     * @param filter      可为null
+     * @param shards      reduce 流的数量, <=0 时为cpu核数
+     * @param bufferSize  每个分片队列可缓存的 Chunk 数
+     * @param batchKeys   Chunk 中的 key 达到该数量时投递
+     * @param flushMillis 未满的 Chunk 最多等待的毫秒数
+     * @param timer       定时投递未满的 Chunk
+     * @param mapper      元素 => key
+     * @param reducer
+     * @param consumer    complete() 之后每个 key 的最终结果
+     */
+    public ShardedMapReduce(Materializer materializer, @Nullable Predicate<T> filter, int shards, int bufferSize,
+                            int batchKeys, long flushMillis, Timer timer, Function<T, String> mapper,
+                            BiFunction<T, T, T> reducer, Consumer<T> consumer) {
+        this(materializer, filter, shards, bufferSize, batchKeys, flushMillis, 0, timer, mapper, reducer, consumer);
+    }
+
+    /**
+     * @param epochMillis 每个周期的毫秒数, 周期结束时把本周期每个 key 的结果交给 consumer; <=0 表示只在 complete() 之后
+     * @see #ShardedMapReduce(Materializer, Predicate, int, int, int, long, Timer, Function, BiFunction, Consumer)
+     */
+    public ShardedMapReduce(Materializer materializer, @Nullable Predicate<T> filter, int shards, int bufferSize,
+                            int batchKeys, long flushMillis, long epochMillis, Timer timer,
+                            Function<T, String> mapper, BiFunction<T, T, T> reducer, Consumer<T> consumer) {
+        Preconditions.checkArgument(batchKeys > 0, "batchKeys must be positive");
+        Preconditions.checkArgument(flushMillis > 0, "flushMillis must be positive");
+        int n = shards > 0 ? shards : Runtime.getRuntime().availableProcessors();
+        this.filter = filter;
+        this.mapper = mapper;
+        this.reducer = reducer;
+        this.batchKeys = batchKeys;
+        this.timer = timer;
+        this.flushMillis = flushMillis;
+        this.epochNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, epochMillis));
+        this.shards = newShardArray(n);
+        CompletableFuture<?>[] finished = new CompletableFuture<?>[n];
+        for (int i = 0; i < n; i++) {
+            Shard<T> shard = new Shard<>(materializer, bufferSize, batchKeys, reducer, consumer, chunks);
+            this.shards[i] = shard;
+            finished[i] = shard.finished;
+        }
+        this.done = CompletableFuture.allOf(finished).thenApply(v -> Done.getInstance());
+        if (epochNanos > 0) {
+            nextEpoch = System.nanoTime() + epochNanos;
+            scheduleEpoch();
+        }
+    }
+
+    /**
+     * @return 合并后以 enqueued 完成; 分片积压时要等元素所在的 Chunk 被接收才完成; complete() 之后为 dropped;
+     * mapper 返回 null 时以 NullPointerException 失败
+     */
+    public CompletionStage<QueueOfferResult> offer(T t) {
+        if (completed) {
+            return CompletableFuture.completedFuture(QueueOfferResult.dropped());
+        }
+        if (filter != null && !filter.test(t)) {
+            return CompletableFuture.completedFuture(QueueOfferResult.enqueued());
+        }
+        String key = mapper.apply(t);
+        if (key == null) {
+            return FutureSupport.completeExceptionally(new NullPointerException("null key of " + t));
+        }
+        int hash = Chunk.spread(key.hashCode());
+        Shard<T> shard = shards[(hash & Integer.MAX_VALUE) % shards.length];
+        CompletableFuture<QueueOfferResult> result = null;
+        synchronized (shard) {
+            // 与 complete() 竞争时, 以锁内的状态为准
+            if (shard.completing) {
+                return CompletableFuture.completedFuture(QueueOfferResult.dropped());
+            }
+            shard.pending.merge(key, hash, t, reducer);
+            shard.dirty = true;
+            if (shard.pending.size() >= batchKeys) {
+                if (shard.inFlight) {
+                    result = shard.pendingResult;
+                } else {
+                    shard.send();
+                }
+            }
+        }
+        if (!flushScheduled.get()) {
+            scheduleFlush();
+        }
+        return result != null ? result : CompletableFuture.completedFuture(QueueOfferResult.enqueued());
+    }
+
+    /**
+     * 立刻投递所有分片中未满的 Chunk
+     */
+    public void flush() {
+        flushShards();
+    }
+
+    /**
+     * 投递剩余的 Chunk 后结束各分片, 之后 offer 的元素被丢弃
+     *
+     * @return 所有分片的结果都交给 consumer 之后完成
+     */
+    public CompletionStage<Done> complete() {
+        completed = true;
+        for (Shard<T> shard : shards) {
+            synchronized (shard) {
+                shard.completing = true;
+                shard.send();
+                shard.completeIfIdle();
+            }
+        }
+        return done;
+    }
+
+    /**
+     * 结束各分片, 未投递的元素被丢弃
+     */
+    public void fail(Throwable ex) {
+        completed = true;
+        for (Shard<T> shard : shards) {
+            synchronized (shard) {
+                shard.completing = true;
+                shard.queue.fail(ex);
+            }
+        }
+    }
+
+    /**
+     * 作为 SourceQueue 使用, 以便接在 QueueProducer 后面
+     */
+    public SourceQueueWithComplete<T> asQueue() {
+        return new SourceQueueWithComplete<T>() {
+            @Override
+            public CompletionStage<QueueOfferResult> offer(T elem) {
+                return ShardedMapReduce.this.offer(elem);
+            }
+
+            @Override
+            public CompletionStage<Done> watchCompletion() {
+                return done;
+            }
+
+            @Override
+            public void complete() {
+                ShardedMapReduce.this.complete();
+            }
+
+            @Override
+            public void fail(Throwable ex) {
+                ShardedMapReduce.this.fail(ex);
+            }
+        };
+    }
+
+    public int shards() {
+        return shards.length;
+    }
+
+    /**
+     * 已投递到分片队列的 Chunk 数
+     */
+    public long chunks() {
+        return chunks.sum();
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <T> Shard<T>[] newShardArray(int n) {
+        return (Shard<T>[]) new Shard[n];
+    }
+
+    /**
+     * @return 是否还有未投递的元素(上一个 Chunk 投递中时 send 不会投递)
+     */
+    private boolean flushShards() {
+        boolean remaining = false;
+        for (Shard<T> shard : shards) {
+            synchronized (shard) {
+                shard.send();
+                remaining |= shard.hasPending();
+            }
+        }
+        return remaining;
+    }
+
+    /**
+     * 先清除标记再投递: offer 合并后看到标记仍在, 说明之后一定还有一次投递
+     */
+    private void scheduleFlush() {
+        if (completed || !flushScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        timer.newTimeout(() -> {
+            flushScheduled.set(false);
+            if (!completed && flushShards()) {
+                scheduleFlush();
+            }
+        }, flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 只由构造方法和定时器线程调用, 按固定频率安排
+     */
+    private void scheduleEpoch() {
+        if (completed) {
+            return;
+        }
+        long delay = Math.max(0L, nextEpoch - System.nanoTime());
+        timer.newTimeout(() -> {
+            nextEpoch += epochNanos;
+            closeEpoch();
+            scheduleEpoch();
+        }, delay, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 给本周期有数据的分片的当前 Chunk 打上周期结束标记, 分片收到后交出结果
+     */
+    private void closeEpoch() {
+        for (Shard<T> shard : shards) {
+            synchronized (shard) {
+                if (!shard.completing && shard.dirty) {
+                    shard.dirty = false;
+                    shard.pending.epochEnd = true;
+                    shard.send();
+                }
+            }
+        }
+    }
+
+    private static class Shard<T> {
+        private final SourceQueueWithComplete<Chunk<T>> queue;
+        private final int batchKeys;
+        private final CompletableFuture<Done> finished = new CompletableFuture<>();
+        private final LongAdder chunks;
+        private Chunk<T> pending = new Chunk<>();
+        private CompletableFuture<QueueOfferResult> pendingResult = new CompletableFuture<>();
+        private boolean inFlight;
+        private boolean completing;
+        /**
+         * 本周期是否合并过元素
+         */
+        private boolean dirty;
+        /**
+         * 本周期已接收的结果, 只在分片的流中访问
+         */
+        private Chunk<T> acc = new Chunk<>();
+
+        Shard(Materializer materializer, int bufferSize, int batchKeys, BiFunction<T, T, T> reducer,
+              Consumer<T> consumer, LongAdder chunks) {
+            this.batchKeys = batchKeys;
+            this.chunks = chunks;
+            Source<Chunk<T>, SourceQueueWithComplete<Chunk<T>>> source =
+                    Source.queue(bufferSize, OverflowStrategy.backpressure());
+            Sink<Chunk<T>, CompletionStage<Done>> sink = Sink.foreach(chunk -> {
+                acc.mergeAll(chunk, reducer);
+                if (chunk.epochEnd) {
+                    Chunk<T> epoch = acc;
+                    acc = new Chunk<>();
+                    try {
+                        epoch.forEach(consumer);
+                    } catch (Throwable e) {
+                        logger.error("sharded reduce consumer fail", e);
+                    }
+                }
+            });
+            Pair<SourceQueueWithComplete<Chunk<T>>, CompletionStage<Done>> pair =
+                    source.toMat(sink, Keep.both()).run(materializer);
+            this.queue = pair.first();
+            pair.second().whenComplete((d, ex) -> {
+                if (ex != null) {
+                    logger.error("sharded reduce fail", ex);
+                    finished.completeExceptionally(ex);
+                    return;
+                }
+                try {
+                    acc.forEach(consumer);
+                    finished.complete(Done.getInstance());
+                } catch (Throwable e) {
+                    finished.completeExceptionally(e);
+                }
+            });
+        }
+
+        /**
+         * 需持有 this 的锁
+         */
+        boolean hasPending() {
+            return pending.size() > 0 || pending.epochEnd;
+        }
+
+        /**
+         * 需持有 this 的锁; 上一个 Chunk 未被接收时不投递, 等它完成后再投递
+         */
+        void send() {
+            if (inFlight || !hasPending()) {
+                return;
+            }
+            Chunk<T> chunk = pending;
+            CompletableFuture<QueueOfferResult> result = pendingResult;
+            pending = new Chunk<>();
+            pendingResult = new CompletableFuture<>();
+            inFlight = true;
+            queue.offer(chunk).whenComplete((r, ex) -> {
+                if (ex != null) {
+                    result.completeExceptionally(ex);
+                } else {
+                    if (QueueOfferResult.enqueued().equals(r)) {
+                        chunks.increment();
+                    }
+                    result.complete(r);
+                }
+                synchronized (this) {
+                    inFlight = false;
+                    if (completing || pending.epochEnd || pending.size() >= batchKeys) {
+                        send();
+                    }
+                    completeIfIdle();
+                }
+            });
+        }
+
+        void completeIfIdle() {
+            if (completing && !inFlight && !hasPending()) {
+                pendingResult.complete(QueueOfferResult.enqueued());
+                queue.complete();
+            }
+        }
+    }
+
+    /**
+     * 预聚合的容器: 开放寻址的 hash 表, key 的 hash 存在 int 数组中, 不为每个 key 分配 Entry
+     */
+    static final class Chunk<T> {
+        private static final int INITIAL_CAPACITY = 16;
+
+        private int[] hashes = new int[INITIAL_CAPACITY];
+        private String[] keys = new String[INITIAL_CAPACITY];
+        private Object[] values = new Object[INITIAL_CAPACITY];
+        private int size;
+        /**
+         * 周期内的最后一个 Chunk
+         */
+        boolean epochEnd;
+
+        static int spread(int h) {
+            return h ^ (h >>> 16);
+        }
+
+        int size() {
+            return size;
+        }
+
+        @SuppressWarnings("unchecked")
+        void merge(String key, int hash, T value, BiFunction<T, T, T> reducer) {
+            int mask = keys.length - 1;
+            int i = hash & mask;
+            while (keys[i] != null) {
+                if (hashes[i] == hash && keys[i].equals(key)) {
+                    values[i] = reducer.apply((T) values[i], value);
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            hashes[i] = hash;
+            values[i] = value;
+            if (++size * 4 > keys.length * 3) {
+                resize();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        Chunk<T> mergeAll(Chunk<T> other, BiFunction<T, T, T> reducer) {
+            for (int i = 0; i < other.keys.length; i++) {
+                if (other.keys[i] != null) {
+                    merge(other.keys[i], other.hashes[i], (T) other.values[i], reducer);
+                }
+            }
+            return this;
+        }
+
+        @SuppressWarnings("unchecked")
+        void forEach(Consumer<T> consumer) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != null) {
+                    consumer.accept((T) values[i]);
+                }
+            }
+        }
+
+        private void resize() {
+            int[] oldHashes = hashes;
+            String[] oldKeys = keys;
+            Object[] oldValues = values;
+            int capacity = oldKeys.length * 2;
+            hashes = new int[capacity];
+            keys = new String[capacity];
+            values = new Object[capacity];
+            int mask = capacity - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldKeys[j] != null) {
+                    int i = oldHashes[j] & mask;
+                    while (keys[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = oldKeys[j];
+                    hashes[i] = oldHashes[j];
+                    values[i] = oldValues[j];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package me.heng.tool.akka;
+
+import akka.stream.Attributes;
+import akka.stream.FlowShape;
+import akka.stream.Inlet;
+import akka.stream.Outlet;
+import akka.stream.stage.AbstractInHandler;
+import akka.stream.stage.AbstractOutHandler;
+import akka.stream.stage.GraphStageLogic;
+import akka.stream.stage.GraphStageWithMaterializedValue;
+import akka.stream.stage.TimerGraphStageLogicWithLogging;
+import com.google.common.base.Preconditions;
+import scala.Tuple2;
+
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 10:40 PM
+ *
+ * 按时间窗口分 key 聚合, 窗口到期时下发每个 key 的聚合结果; 一次物化长期运行, 窗口在原地关闭
+ *
+ * 窗口按 slide 对齐, slide == size 时为滚动窗口, 否则为滑动窗口(一个元素属于 size/slide 个窗口).
+ * 时间取元素自带的时间戳(没有时用到达时间); 窗口在 end + lateness 之后才关闭, 在此之前迟到的元素仍计入,
+ * 之后到达的元素被丢弃并计数, 计数见物化值 Stats.
+ * 只为最早的窗口安排一次定时, 在它的 end + lateness 到期关闭, 之后再为下一个窗口安排
+ */
+public class WindowAggregation<T>
+        extends GraphStageWithMaterializedValue<FlowShape<T, WindowAggregation.Windowed<T>>, WindowAggregation.Stats> {
+
+    private static final String CLOSE = "window-close";
+
+    private final long size;
+    private final long slide;
+    private final long lateness;
+    private final ToLongFunction<T> timestamp;
+    private final Function<T, String> mapper;
+    private final BiFunction<T, T, T> reducer;
+    private final int maxBuffered;
+    private final Inlet<T> inlet = Inlet.create("WindowAggregation.in");
+    private final Outlet<Windowed<T>> outlet = Outlet.create("WindowAggregation.out");
+    private final FlowShape<T, Windowed<T>> shape = FlowShape.of(inlet, outlet);
+
+    /**
+     * @param size        窗口长度, 毫秒
+     * @param slide       窗口间隔, 毫秒, 不超过 size
+     * @param lateness    窗口结束后继续接收迟到元素的毫秒数
+     * @param timestamp   元素的时间戳(毫秒), null 表示使用到达时间
+     * @param mapper      元素 => key
+     * @param reducer
+     * @param maxBuffered 等待下游拉取的结果超过该数量时不再拉取上游
+     */
+    public WindowAggregation(long size, long slide, long lateness, @Nullable ToLongFunction<T> timestamp,
+                             Function<T, String> mapper, BiFunction<T, T, T> reducer, int maxBuffered) {
+        Preconditions.checkArgument(size > 0, "size must be positive");
+        Preconditions.checkArgument(slide > 0 && slide <= size, "slide must be in (0, size]");
+        Preconditions.checkArgument(lateness >= 0, "lateness must not be negative");
+        Preconditions.checkArgument(maxBuffered > 0, "maxBuffered must be positive");
+        this.size = size;
+        this.slide = slide;
+        this.lateness = lateness;
+        this.timestamp = timestamp;
+        this.mapper = mapper;
+        this.reducer = reducer;
+        this.maxBuffered = maxBuffered;
+    }
+
+    @Override
+    public FlowShape<T, Windowed<T>> shape() {
+        return shape;
+    }
+
+    @Override
+    public Tuple2<GraphStageLogic, Stats> createLogicAndMaterializedValue(Attributes inheritedAttributes)
+            throws Exception {
+        Stats stats = new Stats();
+        GraphStageLogic logic = new TimerGraphStageLogicWithLogging(shape) {
+            /**
+             * 窗口起点 => 该窗口内每个 key 的聚合结果
+             */
+            private final TreeMap<Long, Map<String, T>> windows = new TreeMap<>();
+            private final Deque<Windowed<T>> buffer = new ArrayDeque<>();
+            /**
+             * 已安排的关闭时间, 没有时为 Long.MAX_VALUE
+             */
+            private long closeAt = Long.MAX_VALUE;
+            private boolean finishing;
+
+            {
+                setHandler(inlet, new AbstractInHandler() {
+                    @Override
+                    public void onPush() throws Exception {
+                        T t = grab(inlet);
+                        long now = System.currentTimeMillis();
+                        long ts = timestamp == null ? now : timestamp.applyAsLong(t);
+                        String key = mapper.apply(t);
+                        boolean accepted = false;
+                        for (long start = ts - Math.floorMod(ts, slide); start > ts - size; start -= slide) {
+                            if (start + size + lateness <= now) {
+                                // 更早的窗口都已关闭
+                                break;
+                            }
+                            windows.computeIfAbsent(start, s -> new HashMap<>()).merge(key, t, reducer);
+                            accepted = true;
+                        }
+                        if (!accepted) {
+                            stats.late.increment();
+                        }
+                        closeWindows(now);
+                        tryPull();
+                    }
+
+                    @Override
+                    public void onUpstreamFinish() {
+                        finishing = true;
+                        closeWindows(Long.MAX_VALUE);
+                    }
+                });
+                setHandler(outlet, new AbstractOutHandler() {
+                    @Override
+                    public void onPull() throws Exception {
+                        emitBuffered();
+                        tryPull();
+                    }
+                });
+            }
+
+            @Override
+            public void preStart() throws Exception {
+                pull(inlet);
+            }
+
+            @Override
+            public void onTimer(Object timerKey) throws Exception {
+                if (CLOSE.equals(timerKey)) {
+                    closeAt = Long.MAX_VALUE;
+                    closeWindows(System.currentTimeMillis());
+                }
+            }
+
+            private void closeWindows(long now) {
+                while (!windows.isEmpty() && (now == Long.MAX_VALUE
+                        || windows.firstKey() + size + lateness <= now)) {
+                    Map.Entry<Long, Map<String, T>> window = windows.pollFirstEntry();
+                    long start = window.getKey();
+                    for (Map.Entry<String, T> entry : window.getValue().entrySet()) {
+                        buffer.offerLast(new Windowed<>(start, start + size, entry.getKey(), entry.getValue()));
+                    }
+                    stats.closed.increment();
+                }
+                if (!finishing) {
+                    scheduleClose();
+                }
+                emitBuffered();
+            }
+
+            /**
+             * 最早的窗口变化时重新安排; 同一个 key 的定时会替换之前的
+             */
+            private void scheduleClose() {
+                if (windows.isEmpty()) {
+                    if (closeAt != Long.MAX_VALUE) {
+                        cancelTimer(CLOSE);
+                        closeAt = Long.MAX_VALUE;
+                    }
+                    return;
+                }
+                long due = windows.firstKey() + size + lateness;
+                if (due != closeAt) {
+                    closeAt = due;
+                    scheduleOnce(CLOSE, AkkaSupport.millis(Math.max(0L, due - System.currentTimeMillis())));
+                }
+            }
+
+            private void emitBuffered() {
+                if (!buffer.isEmpty() && isAvailable(outlet)) {
+                    push(outlet, buffer.pollFirst());
+                }
+                if (finishing && buffer.isEmpty()) {
+                    completeStage();
+                }
+            }
+
+            private void tryPull() {
+                if (buffer.size() < maxBuffered && !hasBeenPulled(inlet) && !isClosed(inlet)) {
+                    pull(inlet);
+                }
+            }
+        };
+        return new Tuple2<>(logic, stats);
+    }
+
+    /**
+     * 一次物化的统计
+     */
+    public static class Stats {
+        private final LongAdder late = new LongAdder();
+        private final LongAdder closed = new LongAdder();
+
+        /**
+         * 所属窗口都已关闭而被丢弃的元素数
+         */
+        public long late() {
+            return late.sum();
+        }
+
+        /**
+         * 已关闭的窗口数
+         */
+        public long closed() {
+            return closed.sum();
+        }
+
+        @Override
+        public String toString() {
+            return "WindowAggregation.Stats{late=" + late() + ", closed=" + closed() + '}';
+        }
+    }
+
+    /**
+     * 一个窗口中一个 key 的聚合结果
+     */
+    public static class Windowed<T> {
+        private final long start;
+        private final long end;
+        private final String key;
+        private final T value;
+
+        public Windowed(long start, long end, String key, T value) {
+            this.start = start;
+            this.end = end;
+            this.key = key;
+            this.value = value;
+        }
+
+        /**
+         * 窗口起点(含), 毫秒
+         */
+        public long start() {
+            return start;
+        }
+
+        /**
+         * 窗口终点(不含), 毫秒
+         */
+        public long end() {
+            return end;
+        }
+
+        public String key() {
+            return key;
+        }
+
+        public T value() {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return "Windowed{[" + start + ", " + end + ") " + key + "=" + value + '}';
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package me.heng.tool.cache;
+
+import me.heng.tool.future.Timer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 8:30 PM
+ *
+ * 合并多个调用方的单key加载为批量加载
+ *
+ * 请求的key先进入队列, 凑满 maxBatchSize 或等待超过 maxLinger 后作为一批交给 loader;
+ * 同一个key在排队或加载中时, 后来的请求共享同一个future
+ */
+public class BatchLoader<K, V> {
+
+    private final Function<Collection<K>, Map<K, V>> loader;
+    private final int maxBatchSize;
+    private final long lingerNanos;
+    private final Executor executor;
+    private final Timer timer;
+
+    /**
+     * 排队中和加载中的key
+     */
+    private final ConcurrentHashMap<K, CompletableFuture<V>> futures = new ConcurrentHashMap<>();
+    /**
+     * 以下字段由 this 保护
+     */
+    private List<K> queued = new ArrayList<>();
+    private Timer.Timeout linger;
+
+    private final AtomicLong batches = new AtomicLong(0);
+    private final AtomicLong loadedKeys = new AtomicLong(0);
+    private final AtomicLong coalesced = new AtomicLong(0);
+
+    /**
+     * @param loader       返回的map中缺少的key视为不存在, 值为null
+     * @param maxBatchSize 单批最多的key数量
+     * @param maxLinger    队列中第一个key最多等待多久, <=0 时不等待, 每次调用结束即发出
+     * @param unit
+     * @param executor     执行 loader
+     * @param timer        等待超时后发出
+     */
+    public BatchLoader(Function<Collection<K>, Map<K, V>> loader, int maxBatchSize, long maxLinger,
+                       TimeUnit unit, Executor executor, Timer timer) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be greater than 0: " + maxBatchSize);
+        }
+        this.loader = loader;
+        this.maxBatchSize = maxBatchSize;
+        this.lingerNanos = unit.toNanos(maxLinger);
+        this.executor = executor;
+        this.timer = timer;
+    }
+
+    public CompletableFuture<V> load(K key) {
+        List<List<K>> ready = new ArrayList<>(1);
+        CompletableFuture<V> future = enqueue(key, ready);
+        dispatchAll(ready);
+        return future;
+    }
+
+    /**
+     * @return 与 keys 同序(去重)的 future
+     */
+    public Map<K, CompletableFuture<V>> loadAll(Collection<? extends K> keys) {
+        Map<K, CompletableFuture<V>> result = new LinkedHashMap<>();
+        List<List<K>> ready = new ArrayList<>();
+        for (K key : keys) {
+            if (!result.containsKey(key)) {
+                result.put(key, enqueue(key, ready));
+            }
+        }
+        dispatchAll(ready);
+        return result;
+    }
+
+    /**
+     * 立即发出队列中的key
+     */
+    public void flush() {
+        List<K> batch;
+        synchronized (this) {
+            if (queued.isEmpty()) {
+                return;
+            }
+            batch = drain();
+        }
+        dispatch(batch);
+    }
+
+    /**
+     * 已发出的批次数
+     */
+    public long batches() {
+        return batches.get();
+    }
+
+    public long loadedKeys() {
+        return loadedKeys.get();
+    }
+
+    /**
+     * 与排队或加载中的请求合并的次数
+     */
+    public long coalesced() {
+        return coalesced.get();
+    }
+
+    private CompletableFuture<V> enqueue(K key, List<List<K>> ready) {
+        CompletableFuture<V> future = futures.get(key);
+        if (future != null) {
+            coalesced.incrementAndGet();
+            return future;
+        }
+        synchronized (this) {
+            future = futures.get(key);
+            if (future != null) {
+                coalesced.incrementAndGet();
+                return future;
+            }
+            future = new CompletableFuture<>();
+            futures.put(key, future);
+            queued.add(key);
+            if (queued.size() >= maxBatchSize) {
+                ready.add(drain());
+            } else if (lingerNanos > 0 && linger == null) {
+                linger = timer.newTimeout(this::flush, lingerNanos, TimeUnit.NANOSECONDS);
+            }
+            return future;
+        }
+    }
+
+    /**
+     * 需要持有锁
+     */
+    private List<K> drain() {
+        List<K> batch = queued;
+        queued = new ArrayList<>();
+        if (linger != null) {
+            linger.cancel();
+            linger = null;
+        }
+        return batch;
+    }
+
+    /**
+     * 不等待时, 本次调用剩余不满一批的key也一起发出
+     */
+    private void dispatchAll(List<List<K>> ready) {
+        if (lingerNanos <= 0) {
+            synchronized (this) {
+                if (!queued.isEmpty()) {
+                    ready.add(drain());
+                }
+            }
+        }
+        for (List<K> batch : ready) {
+            dispatch(batch);
+        }
+    }
+
+    private void dispatch(List<K> batch) {
+        batches.incrementAndGet();
+        try {
+            executor.execute(() -> run(batch));
+        } catch (RejectedExecutionException e) {
+            fail(batch, e);
+        }
+    }
+
+    private void run(List<K> batch) {
+        Map<K, V> values;
+        try {
+            values = loader.apply(batch);
+        } catch (Throwable e) {
+            fail(batch, e);
+            return;
+        }
+        loadedKeys.addAndGet(batch.size());
+        for (K key : batch) {
+            CompletableFuture<V> future = futures.remove(key);
+            if (future != null) {
+                future.complete(values == null ? null : values.get(key));
+            }
+        }
+    }
+
+    private void fail(List<K> batch, Throwable e) {
+        for (K key : batch) {
+            CompletableFuture<V> future = futures.remove(key);
+            if (future != null) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+}
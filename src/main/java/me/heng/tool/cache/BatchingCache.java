@@ -0,0 +1,132 @@
+package me.heng.tool.cache;
+
+import me.heng.tool.future.Timer;
+import me.heng.tool.support.ExceptionSupport;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 8:45 PM
+ *
+ * 批量加载的cache: 多key查询时只加载未命中的key, 并发的未命中经 BatchLoader 合并成批
+ *
+ * loader 没有返回的key不缓存, 也不出现在结果中
+ */
+public class BatchingCache<K, V> implements Function<K, V> {
+
+    private final ConcurrentMap<K, V> cache;
+    private final BatchLoader<K, V> loader;
+
+    /**
+     * @param cache        保存加载结果
+     * @param loader       批量加载
+     * @param maxBatchSize 见 BatchLoader
+     * @param maxLinger
+     * @param unit
+     * @param executor     执行 loader
+     * @param timer
+     */
+    public BatchingCache(ConcurrentMap<K, V> cache, Function<Collection<K>, Map<K, V>> loader, int maxBatchSize,
+                         long maxLinger, TimeUnit unit, Executor executor, Timer timer) {
+        this.cache = cache;
+        this.loader = new BatchLoader<>(keys -> {
+            Map<K, V> values = loader.apply(keys);
+            if (values != null) {
+                // 先写入cache, 再完成future, 之后的请求不会重复加载
+                for (Map.Entry<K, V> e : values.entrySet()) {
+                    if (e.getKey() != null && e.getValue() != null) {
+                        cache.put(e.getKey(), e.getValue());
+                    }
+                }
+            }
+            return values;
+        }, maxBatchSize, maxLinger, unit, executor, timer);
+    }
+
+    @Override
+    public V apply(K key) {
+        return get(key);
+    }
+
+    public V get(K key) {
+        V val = cache.get(key);
+        if (val != null) {
+            return val;
+        }
+        return join(loader.load(key));
+    }
+
+    public CompletableFuture<V> getAsync(K key) {
+        V val = cache.get(key);
+        if (val != null) {
+            return CompletableFuture.completedFuture(val);
+        }
+        return loader.load(key);
+    }
+
+    /**
+     * @return 按 keys 的顺序, 不包含不存在的key
+     */
+    public Map<K, V> getAll(Collection<? extends K> keys) {
+        return join(getAllAsync(keys));
+    }
+
+    public CompletableFuture<Map<K, V>> getAllAsync(Collection<? extends K> keys) {
+        Map<K, V> hits = new LinkedHashMap<>();
+        List<K> misses = new ArrayList<>();
+        for (K key : keys) {
+            V val = cache.get(key);
+            if (val != null) {
+                hits.put(key, val);
+            } else {
+                misses.add(key);
+            }
+        }
+        if (misses.isEmpty()) {
+            return CompletableFuture.completedFuture(hits);
+        }
+        Map<K, CompletableFuture<V>> loading = loader.loadAll(misses);
+        return CompletableFuture.allOf(loading.values().toArray(new CompletableFuture<?>[0])).thenApply(ignore -> {
+            Map<K, V> result = new LinkedHashMap<>();
+            for (K key : keys) {
+                V val = hits.get(key);
+                if (val == null) {
+                    CompletableFuture<V> f = loading.get(key);
+                    val = f != null ? f.join() : null;
+                }
+                if (val != null) {
+                    result.put(key, val);
+                }
+            }
+            return result;
+        });
+    }
+
+    public ConcurrentMap<K, V> asMap() {
+        return cache;
+    }
+
+    public BatchLoader<K, V> loader() {
+        return loader;
+    }
+
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            throw new RuntimeException(ExceptionSupport.unwrap(e));
+        }
+    }
+}
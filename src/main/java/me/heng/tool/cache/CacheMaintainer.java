@@ -0,0 +1,229 @@
+package me.heng.tool.cache;
+
+import me.heng.tool.support.ThreadSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 7:40 PM
+ *
+ * 共享的cache清理调度, 替代每个cache各自的定时任务
+ *
+ * 所有注册的cache轮流执行 cleanUp; 每个 tick 最多占用 slice 的时间, 用不完的下一个 tick 从断点继续,
+ * 几百个cache也不会让清理线程长时间占满. 只弱引用cache, cache被回收后自动注销
+ */
+public class CacheMaintainer {
+
+    private static final Logger logger = LoggerFactory.getLogger(CacheMaintainer.class);
+
+    private static final CacheMaintainer DEFAULT = new CacheMaintainer("cacheEvict", 100, 2, TimeUnit.MILLISECONDS);
+
+    public static CacheMaintainer defaultMaintainer() {
+        return DEFAULT;
+    }
+
+    private final ScheduledExecutorService scheduler;
+    private final long sliceNanos;
+    /**
+     * 轮转队列, 只由调度线程取出和放回
+     */
+    private final Queue<Registration<?>> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong collected = new AtomicLong(0);
+    private final AtomicLong overruns = new AtomicLong(0);
+
+    /**
+     * @param name  线程名
+     * @param tick  调度间隔
+     * @param slice 每次调度最多占用的时间; 单个cache的 cleanUp 不会被打断, 每次调度至少执行一个
+     * @param unit
+     */
+    public CacheMaintainer(String name, long tick, long slice, TimeUnit unit) {
+        this.sliceNanos = unit.toNanos(slice);
+        this.scheduler = ThreadSupport.newScheduledThreadPool(name, 1);
+        scheduler.scheduleWithFixedDelay(this::tick, tick, tick, unit);
+    }
+
+    /**
+     * @param name     用于统计和日志
+     * @param cache    只持有弱引用
+     * @param cleanUp  清理动作, 不能持有 cache 的强引用, 如 Cache::cleanUp
+     * @param interval 同一个cache两次清理的最小间隔
+     * @param unit
+     * @return
+     */
+    public <T> Registration<T> register(String name, T cache, Consumer<? super T> cleanUp, long interval,
+                                        TimeUnit unit) {
+        Registration<T> registration = new Registration<>(name, cache, cleanUp, unit.toNanos(interval));
+        queue.offer(registration);
+        return registration;
+    }
+
+    /**
+     * 仍然有效的注册
+     */
+    public List<Registration<?>> registrations() {
+        List<Registration<?>> list = new ArrayList<>();
+        for (Registration<?> r : queue) {
+            if (r.isAlive()) {
+                list.add(r);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * 因cache被回收或取消而注销的数量
+     */
+    public long collected() {
+        return collected.get();
+    }
+
+    /**
+     * 时间片用完、未能轮完一圈的次数
+     */
+    public long overruns() {
+        return overruns.get();
+    }
+
+    private void tick() {
+        try {
+            long start = System.nanoTime();
+            int n = queue.size();
+            for (int i = 0; i < n; i++) {
+                if (i > 0 && System.nanoTime() - start >= sliceNanos) {
+                    overruns.incrementAndGet();
+                    return;
+                }
+                Registration<?> r = queue.poll();
+                if (r == null) {
+                    return;
+                }
+                if (r.maintain()) {
+                    queue.offer(r);
+                } else {
+                    collected.incrementAndGet();
+                }
+            }
+        } catch (Throwable e) {
+            // 不能让调度线程退出
+            logger.error("cache maintenance fail", e);
+        }
+    }
+
+    public static final class Registration<T> {
+        private final String name;
+        private final WeakReference<T> ref;
+        private final Consumer<? super T> cleanUp;
+        private final long intervalNanos;
+        private volatile boolean cancelled;
+
+        /**
+         * 以下字段只由调度线程写
+         */
+        private long nextRun;
+        private volatile long runs;
+        private volatile long failures;
+        private volatile long totalNanos;
+        private volatile long maxNanos;
+        private volatile long lastNanos;
+
+        Registration(String name, T cache, Consumer<? super T> cleanUp, long intervalNanos) {
+            this.name = name;
+            this.ref = new WeakReference<>(cache);
+            this.cleanUp = cleanUp;
+            this.intervalNanos = intervalNanos;
+            this.nextRun = System.nanoTime() + intervalNanos;
+        }
+
+        /**
+         * @return 是否继续保留
+         */
+        boolean maintain() {
+            if (cancelled) {
+                return false;
+            }
+            T cache = ref.get();
+            if (cache == null) {
+                return false;
+            }
+            long start = System.nanoTime();
+            if (start - nextRun < 0) {
+                return true;
+            }
+            try {
+                cleanUp.accept(cache);
+            } catch (Exception e) {
+                failures++;
+                logger.warn("cache cleanUp fail: " + name, e);
+            }
+            long now = System.nanoTime();
+            long cost = now - start;
+            runs++;
+            totalNanos += cost;
+            lastNanos = cost;
+            if (cost > maxNanos) {
+                maxNanos = cost;
+            }
+            nextRun = now + intervalNanos;
+            return true;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isAlive() {
+            return !cancelled && ref.get() != null;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public long runs() {
+            return runs;
+        }
+
+        public long failures() {
+            return failures;
+        }
+
+        /**
+         * 累计清理耗时, 纳秒
+         */
+        public long totalNanos() {
+            return totalNanos;
+        }
+
+        public long maxNanos() {
+            return maxNanos;
+        }
+
+        public long lastNanos() {
+            return lastNanos;
+        }
+
+        public long averageNanos() {
+            long n = runs;
+            return n == 0 ? 0L : totalNanos / n;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s runs=%d failures=%d avg=%.3fms max=%.3fms", name, runs, failures,
+                    averageNanos() / 1e6, maxNanos / 1e6);
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package me.heng.tool.cache;
+
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import me.heng.tool.metrics.LatencyHistogram;
+
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 8:00 PM
+ *
+ * 单个cache的统计: 命中、未命中、加载耗时、按原因分类的移除次数、估计大小
+ *
+ * 由cache的实现或包装在访问时写入, 计数使用 LongAdder, 多线程写入不竞争
+ */
+public class CacheMetrics implements CacheMetricsMXBean {
+
+    private static final RemovalCause[] CAUSES = RemovalCause.values();
+
+    private final String name;
+    private final long maximumSize;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder loadSuccess = new LongAdder();
+    private final LongAdder loadFailure = new LongAdder();
+    private final LatencyHistogram loadLatency;
+    private final LongAdder[] removals = new LongAdder[CAUSES.length];
+    private volatile SizeSource<?> size;
+
+    public CacheMetrics(String name, long maximumSize) {
+        this.name = name;
+        this.maximumSize = maximumSize;
+        this.loadLatency = new LatencyHistogram(name + ".load");
+        for (int i = 0; i < removals.length; i++) {
+            removals[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * 绑定cache用于估计大小, 只持有弱引用
+     */
+    public <T> CacheMetrics bind(T cache, ToLongFunction<? super T> sizeFunction) {
+        this.size = new SizeSource<>(cache, sizeFunction);
+        return this;
+    }
+
+    /**
+     * 绑定的cache是否已被回收
+     */
+    public boolean isCollected() {
+        SizeSource<?> s = size;
+        return s != null && s.ref.get() == null;
+    }
+
+    /**
+     * 绑定的cache, 未绑定或已被回收时为 null
+     */
+    Object boundCache() {
+        SizeSource<?> s = size;
+        return s == null ? null : s.ref.get();
+    }
+
+    public void recordHit() {
+        hits.increment();
+    }
+
+    public void recordMiss() {
+        misses.increment();
+    }
+
+    public void recordLoad(long nanos, boolean success) {
+        if (success) {
+            loadSuccess.increment();
+        } else {
+            loadFailure.increment();
+        }
+        loadLatency.record(nanos);
+    }
+
+    public void recordRemoval(RemovalCause cause) {
+        removals[cause.ordinal()].increment();
+    }
+
+    /**
+     * 记录移除原因后转发给 listener
+     *
+     * @param listener 可为null
+     */
+    public <K, V> RemovalListener<K, V> removalListener(RemovalListener<K, V> listener) {
+        return notification -> {
+            recordRemoval(notification.getCause());
+            if (listener != null) {
+                listener.onRemoval(notification);
+            }
+        };
+    }
+
+    public Snapshot snapshot() {
+        Map<RemovalCause, Long> counts = new EnumMap<>(RemovalCause.class);
+        for (RemovalCause cause : CAUSES) {
+            counts.put(cause, removals[cause.ordinal()].sum());
+        }
+        return new Snapshot(name, hits.sum(), misses.sum(), loadSuccess.sum(), loadFailure.sum(),
+                loadLatency.snapshot(), counts, getEstimatedSize(), maximumSize);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    @Override
+    public double getHitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 1d : (double) h / total;
+    }
+
+    @Override
+    public long getLoadSuccessCount() {
+        return loadSuccess.sum();
+    }
+
+    @Override
+    public long getLoadFailureCount() {
+        return loadFailure.sum();
+    }
+
+    @Override
+    public double getAverageLoadMillis() {
+        return loadLatency.snapshot().mean() / 1e6;
+    }
+
+    @Override
+    public double getLoadP99Millis() {
+        return loadLatency.snapshot().p99() / 1e6;
+    }
+
+    @Override
+    public long getSizeEvictionCount() {
+        return removals[RemovalCause.SIZE.ordinal()].sum();
+    }
+
+    @Override
+    public long getExpiredCount() {
+        return removals[RemovalCause.EXPIRED.ordinal()].sum();
+    }
+
+    @Override
+    public long getCollectedCount() {
+        return removals[RemovalCause.COLLECTED.ordinal()].sum();
+    }
+
+    @Override
+    public long getExplicitRemovalCount() {
+        return removals[RemovalCause.EXPLICIT.ordinal()].sum();
+    }
+
+    @Override
+    public long getReplacedCount() {
+        return removals[RemovalCause.REPLACED.ordinal()].sum();
+    }
+
+    @Override
+    public long getEstimatedSize() {
+        SizeSource<?> s = size;
+        return s == null ? 0L : s.size();
+    }
+
+    @Override
+    public long getMaximumSize() {
+        return maximumSize;
+    }
+
+    private static final class SizeSource<T> {
+        final WeakReference<T> ref;
+        final ToLongFunction<? super T> function;
+
+        SizeSource(T cache, ToLongFunction<? super T> function) {
+            this.ref = new WeakReference<>(cache);
+            this.function = function;
+        }
+
+        long size() {
+            T cache = ref.get();
+            return cache == null ? 0L : function.applyAsLong(cache);
+        }
+    }
+
+    /**
+     * 不可变的统计快照
+     */
+    public static class Snapshot {
+        private final String name;
+        private final long hits;
+        private final long misses;
+        private final long loadSuccess;
+        private final long loadFailure;
+        private final LatencyHistogram.Snapshot loadLatency;
+        private final Map<RemovalCause, Long> removals;
+        private final long estimatedSize;
+        private final long maximumSize;
+
+        Snapshot(String name, long hits, long misses, long loadSuccess, long loadFailure,
+                 LatencyHistogram.Snapshot loadLatency, Map<RemovalCause, Long> removals, long estimatedSize,
+                 long maximumSize) {
+            this.name = name;
+            this.hits = hits;
+            this.misses = misses;
+            this.loadSuccess = loadSuccess;
+            this.loadFailure = loadFailure;
+            this.loadLatency = loadLatency;
+            this.removals = Collections.unmodifiableMap(removals);
+            this.estimatedSize = estimatedSize;
+            this.maximumSize = maximumSize;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public long hits() {
+            return hits;
+        }
+
+        public long misses() {
+            return misses;
+        }
+
+        public double hitRate() {
+            long total = hits + misses;
+            return total == 0 ? 1d : (double) hits / total;
+        }
+
+        public long loadSuccess() {
+            return loadSuccess;
+        }
+
+        public long loadFailure() {
+            return loadFailure;
+        }
+
+        public LatencyHistogram.Snapshot loadLatency() {
+            return loadLatency;
+        }
+
+        public Map<RemovalCause, Long> removals() {
+            return removals;
+        }
+
+        /**
+         * 因容量、过期、回收被动移除的次数
+         */
+        public long evictions() {
+            return removals.get(RemovalCause.SIZE) + removals.get(RemovalCause.EXPIRED)
+                    + removals.get(RemovalCause.COLLECTED);
+        }
+
+        public long estimatedSize() {
+            return estimatedSize;
+        }
+
+        public long maximumSize() {
+            return maximumSize;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s size=%d/%d hits=%d misses=%d hitRate=%.3f loads=%d/%d loadP99=%.3fms removals=%s",
+                    name, estimatedSize, maximumSize, hits, misses, hitRate(), loadSuccess, loadFailure,
+                    loadLatency.p99() / 1e6, removals);
+        }
+    }
+}
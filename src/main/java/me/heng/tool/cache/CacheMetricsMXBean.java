@@ -0,0 +1,44 @@
+package me.heng.tool.cache;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 8:05 PM
+ *
+ * 通过 JMX 暴露的cache统计, ObjectName 为 me.heng.tool:type=Cache,name="cache名"
+ */
+public interface CacheMetricsMXBean {
+
+    String getName();
+
+    long getHitCount();
+
+    long getMissCount();
+
+    double getHitRate();
+
+    long getLoadSuccessCount();
+
+    long getLoadFailureCount();
+
+    double getAverageLoadMillis();
+
+    double getLoadP99Millis();
+
+    /**
+     * 因容量淘汰
+     */
+    long getSizeEvictionCount();
+
+    long getExpiredCount();
+
+    long getCollectedCount();
+
+    long getExplicitRemovalCount();
+
+    long getReplacedCount();
+
+    long getEstimatedSize();
+
+    long getMaximumSize();
+}
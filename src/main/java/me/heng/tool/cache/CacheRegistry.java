@@ -0,0 +1,142 @@
+package me.heng.tool.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 8:10 PM
+ *
+ * 按名称管理的cache统计, 每个cache同时注册为 JMX MXBean
+ *
+ * 同名重复注册时以后注册的为准; 绑定的cache被回收后经 ReferenceQueue 感知,
+ * 在下一次 register / get / snapshots 时注销其 MBean, 不依赖是否有人采集
+ */
+public class CacheRegistry {
+
+    private static final Logger logger = LoggerFactory.getLogger(CacheRegistry.class);
+
+    private static final String DOMAIN = "me.heng.tool";
+
+    private static final ConcurrentMap<String, CacheMetrics> METRICS = new ConcurrentHashMap<>();
+
+    private static final ReferenceQueue<Object> COLLECTED = new ReferenceQueue<>();
+
+    /**
+     * 持有 CacheRef 本身, 保证其在cache回收前不被回收
+     */
+    private static final Set<CacheRef> REFS = ConcurrentHashMap.newKeySet();
+
+    public static CacheMetrics register(CacheMetrics metrics) {
+        expunge();
+        Object cache = metrics.boundCache();
+        if (cache != null) {
+            REFS.add(new CacheRef(cache, metrics));
+        }
+        CacheMetrics prior = METRICS.put(metrics.getName(), metrics);
+        if (prior != null) {
+            unregisterMBean(prior);
+        }
+        registerMBean(metrics);
+        return metrics;
+    }
+
+    public static CacheMetrics get(String name) {
+        expunge();
+        return METRICS.get(name);
+    }
+
+    public static void unregister(String name) {
+        expunge();
+        CacheMetrics metrics = METRICS.remove(name);
+        if (metrics != null) {
+            unregisterMBean(metrics);
+        }
+    }
+
+    /**
+     * 所有仍然存活的cache的统计
+     */
+    public static List<CacheMetrics.Snapshot> snapshots() {
+        expunge();
+        List<CacheMetrics.Snapshot> list = new ArrayList<>(METRICS.size());
+        for (CacheMetrics metrics : METRICS.values()) {
+            if (metrics.isCollected()) {
+                if (METRICS.remove(metrics.getName(), metrics)) {
+                    unregisterMBean(metrics);
+                }
+                continue;
+            }
+            list.add(metrics.snapshot());
+        }
+        return list;
+    }
+
+    /**
+     * 注销已被回收的cache, 只处理 ReferenceQueue 中的条目
+     */
+    private static void expunge() {
+        CacheRef ref;
+        while ((ref = (CacheRef) COLLECTED.poll()) != null) {
+            REFS.remove(ref);
+            if (METRICS.remove(ref.metrics.getName(), ref.metrics)) {
+                unregisterMBean(ref.metrics);
+            }
+        }
+    }
+
+    private static final class CacheRef extends WeakReference<Object> {
+        final CacheMetrics metrics;
+
+        CacheRef(Object cache, CacheMetrics metrics) {
+            super(cache, COLLECTED);
+            this.metrics = metrics;
+        }
+    }
+
+    private static ObjectName objectName(CacheMetrics metrics) throws Exception {
+        return new ObjectName(DOMAIN + ":type=Cache,name=" + ObjectName.quote(metrics.getName()));
+    }
+
+    private static void registerMBean(CacheMetrics metrics) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = objectName(metrics);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(metrics, name);
+        } catch (Exception e) {
+            logger.warn("register cache mbean fail: " + metrics.getName(), e);
+        }
+    }
+
+    private static void unregisterMBean(CacheMetrics metrics) {
+        CacheMetrics current = METRICS.get(metrics.getName());
+        if (current != null && current != metrics) {
+            // 同名的新cache已经注册, MBean 由其覆盖
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = objectName(metrics);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (Exception e) {
+            logger.warn("unregister cache mbean fail: " + metrics.getName(), e);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package me.heng.tool.cache;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 9:15 PM
+ *
+ * 二级cache的存储, 通常是多个节点共享的远程存储(redis/memcached等)
+ */
+public interface CacheStore<K, V> {
+
+    /**
+     * @return 不存在时为null
+     */
+    V get(K key);
+
+    /**
+     * @return 只包含存在的key; 远程实现应覆盖为一次批量请求
+     */
+    default Map<K, V> getAll(Collection<? extends K> keys) {
+        Map<K, V> result = new LinkedHashMap<>();
+        for (K key : keys) {
+            V val = get(key);
+            if (val != null) {
+                result.put(key, val);
+            }
+        }
+        return result;
+    }
+
+    void put(K key, V value);
+
+    void remove(K key);
+
+    /**
+     * 以进程内的 map 作为存储
+     */
+    static <K, V> CacheStore<K, V> of(ConcurrentMap<K, V> map) {
+        return new CacheStore<K, V>() {
+            @Override
+            public V get(K key) {
+                return map.get(key);
+            }
+
+            @Override
+            public void put(K key, V value) {
+                map.put(key, value);
+            }
+
+            @Override
+            public void remove(K key) {
+                map.remove(key);
+            }
+        };
+    }
+}
@@ -0,0 +1,68 @@
+package me.heng.tool.cache;
+
+import java.io.Serializable;
+import java.util.function.Consumer;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 9:05 PM
+ *
+ * 多个节点之间广播cache失效的通道, 实现见 LocalInvalidationBus 和 akka 的 ClusterInvalidationBus
+ */
+public interface InvalidationBus {
+
+    /**
+     * 发给 channel 的所有订阅者, 包括发送者自己
+     */
+    void publish(Invalidation invalidation);
+
+    Subscription subscribe(String channel, Consumer<Invalidation> listener);
+
+    interface Subscription {
+        void cancel();
+    }
+
+    /**
+     * 跨进程传输时 key 需要可序列化
+     */
+    final class Invalidation implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String channel;
+        private final Object key;
+        private final String origin;
+
+        /**
+         * @param channel
+         * @param key     null 表示全部失效
+         * @param origin  发送者标识, 接收方据此忽略自己发出的消息
+         */
+        public Invalidation(String channel, Object key, String origin) {
+            this.channel = channel;
+            this.key = key;
+            this.origin = origin;
+        }
+
+        public String channel() {
+            return channel;
+        }
+
+        public Object key() {
+            return key;
+        }
+
+        public String origin() {
+            return origin;
+        }
+
+        public boolean isAll() {
+            return key == null;
+        }
+
+        @Override
+        public String toString() {
+            return "Invalidation{" + channel + ", key=" + key + ", origin=" + origin + '}';
+        }
+    }
+}
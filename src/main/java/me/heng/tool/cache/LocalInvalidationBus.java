@@ -0,0 +1,52 @@
+package me.heng.tool.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 9:10 PM
+ *
+ * 进程内的失效通道, 在发送线程中同步通知; 用于单机部署和测试
+ */
+public class LocalInvalidationBus implements InvalidationBus {
+
+    private static final Logger logger = LoggerFactory.getLogger(LocalInvalidationBus.class);
+
+    private static final LocalInvalidationBus DEFAULT = new LocalInvalidationBus();
+
+    public static LocalInvalidationBus defaultBus() {
+        return DEFAULT;
+    }
+
+    private final ConcurrentMap<String, List<Consumer<Invalidation>>> listeners = new ConcurrentHashMap<>();
+
+    @Override
+    public void publish(Invalidation invalidation) {
+        List<Consumer<Invalidation>> list = listeners.get(invalidation.channel());
+        if (list == null) {
+            return;
+        }
+        for (Consumer<Invalidation> listener : list) {
+            try {
+                listener.accept(invalidation);
+            } catch (Exception e) {
+                logger.warn("invalidation listener fail: " + invalidation, e);
+            }
+        }
+    }
+
+    @Override
+    public Subscription subscribe(String channel, Consumer<Invalidation> listener) {
+        List<Consumer<Invalidation>> list = listeners.computeIfAbsent(channel, c -> new CopyOnWriteArrayList<>());
+        list.add(listener);
+        return () -> list.remove(listener);
+    }
+}
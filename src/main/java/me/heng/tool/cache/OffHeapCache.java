@@ -0,0 +1,1019 @@
+package me.heng.tool.cache;
+
+import com.google.common.cache.RemovalCause;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 7:15 PM
+ *
+ * 值存放在堆外的 ConcurrentMap, 适合几个G的只读查找表, 避免占用老年代、拉长GC停顿
+ *
+ * 值序列化后写入 direct ByteBuffer 的 slab; 参考 memcached, slab 按大小分级(每级1.25倍)切成等长 chunk,
+ * 每个值占一个不小于其长度的 chunk. 堆内只保留 key 到 chunk 地址的索引.
+ * 按key的hash分段加锁, 每段内每个大小级别一个LRU链表; 内存用完后淘汰同级别最久未访问的值,
+ * 该级别没有值时从其他级别回收一整个 slab.
+ * slab 的额度是全局的, 额度用完后段之间可以转移 slab: 优先取其他段中已空的 slab,
+ * 本段无值可淘汰时再淘汰其他段中有效值最少的 slab, 避免key倾斜时热点段拒绝写入而冷段的 slab 闲置.
+ *
+ * 每次读取都会反序列化出新的对象, 修改返回值不会影响缓存; 不再使用时调用 close() 立即释放堆外内存
+ */
+public class OffHeapCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>, Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(OffHeapCache.class);
+
+    public static final int DEFAULT_SLAB_SIZE = 1 << 20;
+    public static final int DEFAULT_CONCURRENCY = 8;
+
+    private static final int MIN_CHUNK_SIZE = 32;
+    private static final double GROWTH_FACTOR = 1.25;
+
+    private final Serializer<V> serializer;
+    private final long maxBytes;
+    private final int slabSize;
+    private final long ttlMillis;
+    private final int[] chunkSizes;
+    private final int maxSlabs;
+    private final AtomicLong assignedSlabs = new AtomicLong(0);
+    private final Segment[] segments;
+    private volatile boolean closed;
+
+    private final AtomicLong evictions = new AtomicLong(0);
+    private final AtomicLong expirations = new AtomicLong(0);
+    private final AtomicLong rejected = new AtomicLong(0);
+    private volatile CacheMetrics metrics;
+
+    public OffHeapCache(long maxBytes, long ttl, TimeUnit unit, Serializer<V> serializer) {
+        this(maxBytes, DEFAULT_SLAB_SIZE, DEFAULT_CONCURRENCY, ttl, unit, serializer);
+    }
+
+    /**
+     * @param maxBytes    堆外内存上限, 按 slabSize 向下取整
+     * @param slabSize    单个值序列化后不能超过 slabSize
+     * @param concurrency 分段数
+     * @param ttl         写入后过期, <=0 表示不过期
+     * @param unit
+     * @param serializer
+     */
+    public OffHeapCache(long maxBytes, int slabSize, int concurrency, long ttl, TimeUnit unit,
+                        Serializer<V> serializer) {
+        if (slabSize < MIN_CHUNK_SIZE * 2) {
+            throw new IllegalArgumentException("slabSize too small: " + slabSize);
+        }
+        if (maxBytes < slabSize) {
+            throw new IllegalArgumentException("maxBytes must be at least one slab: " + maxBytes);
+        }
+        this.serializer = Objects.requireNonNull(serializer);
+        this.slabSize = slabSize;
+        this.maxSlabs = (int) Math.min(maxBytes / slabSize, Integer.MAX_VALUE);
+        this.maxBytes = (long) maxSlabs * slabSize;
+        this.ttlMillis = ttl > 0 ? unit.toMillis(ttl) : 0L;
+        this.chunkSizes = chunkSizes(slabSize);
+        int n = 1;
+        while (n < Math.max(1, concurrency)) {
+            n <<= 1;
+        }
+        this.segments = newSegmentArray(n);
+        for (int i = 0; i < n; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Segment[] newSegmentArray(int n) {
+        return (Segment[]) new OffHeapCache.Segment[n];
+    }
+
+    private static int[] chunkSizes(int slabSize) {
+        List<Integer> sizes = new ArrayList<>();
+        int size = MIN_CHUNK_SIZE;
+        while (size <= slabSize / 2) {
+            sizes.add(size);
+            int next = Math.max(size + 8, (int) (size * GROWTH_FACTOR));
+            size = (next + 7) & ~7;
+        }
+        sizes.add(slabSize);
+        int[] result = new int[sizes.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = sizes.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * @return 能容纳 length 字节的最小级别, 超过 slabSize 时为 -1
+     */
+    private int classOf(int length) {
+        int i = Arrays.binarySearch(chunkSizes, Math.max(length, 1));
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return i < chunkSizes.length ? i : -1;
+    }
+
+    private Segment segmentFor(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & (segments.length - 1)];
+    }
+
+    private long expireAt() {
+        return ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : 0L;
+    }
+
+    @Override
+    public V get(Object key) {
+        byte[] bytes;
+        Segment segment = segmentFor(key);
+        segment.lock.lock();
+        try {
+            Slot<K> e = segment.find(key, System.currentTimeMillis());
+            onRead(e != null);
+            if (e == null) {
+                return null;
+            }
+            segment.touch(e);
+            bytes = segment.read(e);
+        } finally {
+            segment.lock.unlock();
+        }
+        return serializer.deserialize(bytes);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        Segment segment = segmentFor(key);
+        segment.lock.lock();
+        try {
+            return segment.find(key, System.currentTimeMillis()) != null;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * 同 put, 但不读取旧值, 省去一次反序列化
+     *
+     * @return 内存不足或值过大而未写入时返回 false
+     */
+    public boolean set(K key, V value) {
+        Objects.requireNonNull(key);
+        byte[] bytes = serializer.serialize(Objects.requireNonNull(value));
+        Segment segment = segmentFor(key);
+        segment.lock.lock();
+        try {
+            return segment.write(key, bytes, expireAt());
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * 内存不足或值过大时不缓存该值(旧值也被移除), 计入 rejected
+     */
+    @Override
+    public V put(K key, V value) {
+        Objects.requireNonNull(key);
+        byte[] bytes = serializer.serialize(Objects.requireNonNull(value));
+        byte[] old = null;
+        Segment segment = segmentFor(key);
+        segment.lock.lock();
+        try {
+            Slot<K> e = segment.find(key, System.currentTimeMillis());
+            if (e != null) {
+                old = segment.read(e);
+            }
+            segment.write(key, bytes, expireAt());
+        } finally {
+            segment.lock.unlock();
+        }
+        return old == null ? null : serializer.deserialize(old);
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        Objects.requireNonNull(key);
+        byte[] bytes = serializer.serialize(Objects.requireNonNull(value));
+        byte[] old;
+        Segment segment = segmentFor(key);
+        segment.lock.lock();
+        try {
+            Slot<K> e = segment.find(key, System.currentTimeMillis());
+            if (e == null) {
+                segment.write(key, bytes, expireAt());
+                return null;
+            }
+            segment.touch(e);
+            old = segment.read(e);
+        } finally {
+            segment.lock.unlock();
+        }
+        return serializer.deserialize(old);
+    }
+
+    @Override
+    public V remove(Object key) {
+        byte[] old;
+        Segment segment = segmentFor(key);
+        segment.lock.lock();
+        try {
+            Slot<K> e = segment.find(key, System.currentTimeMillis());
+            if (e == null) {
+                return null;
+            }
+            old = segment.read(e);
+            segment.remove(e);
+            onRemoval(RemovalCause.EXPLICIT);
+        } finally {
+            segment.lock.unlock();
+        }
+        return serializer.deserialize(old);
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        if (value == null) {
+            return false;
+        }
+        Segment segment = segmentFor(key);
+        segment.lock.lock();
+        try {
+            Slot<K> e = segment.find(key, System.currentTimeMillis());
+            if (e == null || !value.equals(serializer.deserialize(segment.read(e)))) {
+                return false;
+            }
+            segment.remove(e);
+            onRemoval(RemovalCause.EXPLICIT);
+            return true;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    @Override
+    public V replace(K key, V value) {
+        byte[] bytes = serializer.serialize(Objects.requireNonNull(value));
+        byte[] old;
+        Segment segment = segmentFor(key);
+        segment.lock.lock();
+        try {
+            Slot<K> e = segment.find(key, System.currentTimeMillis());
+            if (e == null) {
+                return null;
+            }
+            old = segment.read(e);
+            segment.write(key, bytes, expireAt());
+        } finally {
+            segment.lock.unlock();
+        }
+        return serializer.deserialize(old);
+    }
+
+    @Override
+    public boolean replace(K key, V oldValue, V newValue) {
+        Objects.requireNonNull(oldValue);
+        byte[] bytes = serializer.serialize(Objects.requireNonNull(newValue));
+        Segment segment = segmentFor(key);
+        segment.lock.lock();
+        try {
+            Slot<K> e = segment.find(key, System.currentTimeMillis());
+            if (e == null || !oldValue.equals(serializer.deserialize(segment.read(e)))) {
+                return false;
+            }
+            segment.write(key, bytes, expireAt());
+            return true;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * 包含已过期但尚未清理的条目
+     */
+    @Override
+    public int size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                size += segment.index.size();
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 移除所有值, 已分配的 slab 保留复用
+     */
+    @Override
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                for (Slot<K> e : new ArrayList<>(segment.index.values())) {
+                    segment.remove(e);
+                    onRemoval(RemovalCause.EXPLICIT);
+                }
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 清理所有已过期的条目
+     */
+    public void cleanUp() {
+        if (ttlMillis <= 0) {
+            return;
+        }
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                long now = System.currentTimeMillis();
+                for (Slot<K> e : new ArrayList<>(segment.index.values())) {
+                    if (e.isExpired(now)) {
+                        segment.remove(e);
+                        onRemoval(RemovalCause.EXPIRED);
+                    }
+                }
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return new EntrySet();
+    }
+
+    /**
+     * 记录命中率和移除原因
+     */
+    public OffHeapCache<K, V> recordStats(CacheMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    private void onRemoval(RemovalCause cause) {
+        if (cause == RemovalCause.EXPIRED) {
+            expirations.incrementAndGet();
+        } else if (cause == RemovalCause.SIZE) {
+            evictions.incrementAndGet();
+        }
+        CacheMetrics m = metrics;
+        if (m != null) {
+            m.recordRemoval(cause);
+        }
+    }
+
+    private void onRead(boolean hit) {
+        CacheMetrics m = metrics;
+        if (m != null) {
+            if (hit) {
+                m.recordHit();
+            } else {
+                m.recordMiss();
+            }
+        }
+    }
+
+    public Stats stats() {
+        long entries = 0;
+        long slabBytes = 0;
+        long allocated = 0;
+        long used = 0;
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                entries += segment.index.size();
+                slabBytes += (long) segment.slabCount * slabSize;
+                allocated += segment.allocatedBytes;
+                used += segment.usedBytes;
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return new Stats(entries, maxBytes, slabBytes, allocated, used, evictions.get(), expirations.get(),
+                rejected.get());
+    }
+
+    /**
+     * 移除所有值并释放全部 slab, 之后的写入都被拒绝
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                segment.index.clear();
+                for (ByteBuffer slab : segment.slabs) {
+                    if (slab != null) {
+                        freeDirect(slab);
+                    }
+                }
+                segment.slabs.clear();
+                segment.slabClass = new int[0];
+                segment.slabLive = new int[0];
+                segment.slabCount = 0;
+                for (int i = 0; i < chunkSizes.length; i++) {
+                    segment.free[i] = new LongStack();
+                    segment.heads[i] = null;
+                    segment.tails[i] = null;
+                }
+                segment.allocatedBytes = 0;
+                segment.usedBytes = 0;
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 从全局额度中申请一个 slab
+     */
+    private ByteBuffer allocateSlab() {
+        for (; ; ) {
+            long n = assignedSlabs.get();
+            if (closed || n >= maxSlabs) {
+                return null;
+            }
+            if (assignedSlabs.compareAndSet(n, n + 1)) {
+                return ByteBuffer.allocateDirect(slabSize);
+            }
+        }
+    }
+
+    /**
+     * 堆内索引, 只记录位置和长度
+     */
+    private static final class Slot<K> {
+        final K key;
+        final int slab;
+        final int offset;
+        final int length;
+        final int chunkClass;
+        final long expireAt;
+        Slot<K> prev;
+        Slot<K> next;
+
+        Slot(K key, int slab, int offset, int length, int chunkClass, long expireAt) {
+            this.key = key;
+            this.slab = slab;
+            this.offset = offset;
+            this.length = length;
+            this.chunkClass = chunkClass;
+            this.expireAt = expireAt;
+        }
+
+        boolean isExpired(long now) {
+            return expireAt > 0 && now >= expireAt;
+        }
+    }
+
+    /**
+     * 以下所有方法都需要持有 lock
+     */
+    private final class Segment {
+        final ReentrantLock lock = new ReentrantLock();
+        final HashMap<Object, Slot<K>> index = new HashMap<>();
+        /**
+         * 转移给其他段的 slab 位置为 null, 下次获得 slab 时复用
+         */
+        final List<ByteBuffer> slabs = new ArrayList<>();
+        /**
+         * 每个 slab 所属级别和其中的有效值个数
+         */
+        int[] slabClass = new int[0];
+        int[] slabLive = new int[0];
+        int slabCount;
+        /**
+         * 每个级别的空闲 chunk, 地址为 slab << 32 | offset
+         */
+        final LongStack[] free = new LongStack[chunkSizes.length];
+        /**
+         * 每个级别的LRU链表, head 最久未访问
+         */
+        final Slot<K>[] heads = newSlotArray(chunkSizes.length);
+        final Slot<K>[] tails = newSlotArray(chunkSizes.length);
+        long allocatedBytes;
+        long usedBytes;
+
+        Segment() {
+            for (int i = 0; i < free.length; i++) {
+                free[i] = new LongStack();
+            }
+        }
+
+        Slot<K> find(Object key, long now) {
+            Slot<K> e = index.get(key);
+            if (e != null && e.isExpired(now)) {
+                remove(e);
+                onRemoval(RemovalCause.EXPIRED);
+                return null;
+            }
+            return e;
+        }
+
+        byte[] read(Slot<K> e) {
+            ByteBuffer buffer = slabs.get(e.slab).duplicate();
+            buffer.position(e.offset);
+            byte[] bytes = new byte[e.length];
+            buffer.get(bytes);
+            return bytes;
+        }
+
+        boolean write(K key, byte[] bytes, long expireAt) {
+            Slot<K> old = index.remove(key);
+            if (old != null) {
+                release(old);
+                onRemoval(RemovalCause.REPLACED);
+            }
+            int cls = classOf(bytes.length);
+            long address = cls < 0 ? -1L : allocate(cls);
+            if (address < 0) {
+                rejected.incrementAndGet();
+                return false;
+            }
+            int slab = (int) (address >>> 32);
+            int offset = (int) address;
+            ByteBuffer buffer = slabs.get(slab).duplicate();
+            buffer.position(offset);
+            buffer.put(bytes);
+            Slot<K> e = new Slot<>(key, slab, offset, bytes.length, cls, expireAt);
+            index.put(key, e);
+            linkLast(e);
+            slabLive[slab]++;
+            allocatedBytes += chunkSizes[cls];
+            usedBytes += bytes.length;
+            return true;
+        }
+
+        void remove(Slot<K> e) {
+            index.remove(e.key);
+            release(e);
+        }
+
+        void touch(Slot<K> e) {
+            if (tails[e.chunkClass] != e) {
+                unlink(e);
+                linkLast(e);
+            }
+        }
+
+        private void release(Slot<K> e) {
+            unlink(e);
+            free[e.chunkClass].push(((long) e.slab << 32) | e.offset);
+            slabLive[e.slab]--;
+            allocatedBytes -= chunkSizes[e.chunkClass];
+            usedBytes -= e.length;
+        }
+
+        private long allocate(int cls) {
+            for (; ; ) {
+                if (!free[cls].isEmpty()) {
+                    return free[cls].pop();
+                }
+                ByteBuffer buffer = allocateSlab();
+                if (buffer != null) {
+                    attach(buffer, cls);
+                    continue;
+                }
+                // 优先回收本段其他级别已经空了的 slab, 再取其他段空了的 slab, 其次淘汰本级别的值,
+                // 本级别没有值时强制回收本段的 slab, 本段没有 slab 时淘汰其他段的
+                if (reassign(cls, true)) {
+                    continue;
+                }
+                buffer = steal(true);
+                if (buffer != null) {
+                    attach(buffer, cls);
+                    continue;
+                }
+                Slot<K> lru = heads[cls];
+                if (lru != null) {
+                    evict(lru);
+                    continue;
+                }
+                if (reassign(cls, false)) {
+                    continue;
+                }
+                buffer = steal(false);
+                if (buffer == null) {
+                    return -1L;
+                }
+                attach(buffer, cls);
+            }
+        }
+
+        /**
+         * 从其他段取一个 slab; 只 tryLock, 持有本段锁时不会死锁, 拿不到锁的段跳过
+         *
+         * @param emptyOnly 只取没有有效值的 slab
+         */
+        private ByteBuffer steal(boolean emptyOnly) {
+            if (closed) {
+                return null;
+            }
+            for (Segment other : segments) {
+                if (other == this || !other.lock.tryLock()) {
+                    continue;
+                }
+                try {
+                    ByteBuffer buffer = other.detach(emptyOnly);
+                    if (buffer != null) {
+                        return buffer;
+                    }
+                } finally {
+                    other.lock.unlock();
+                }
+            }
+            return null;
+        }
+
+        /**
+         * 交出有效值最少的 slab, 其中的值被淘汰
+         */
+        private ByteBuffer detach(boolean emptyOnly) {
+            int slab = -1;
+            for (int i = 0; i < slabs.size(); i++) {
+                if (slabs.get(i) != null && (slab < 0 || slabLive[i] < slabLive[slab])) {
+                    slab = i;
+                }
+            }
+            if (slab < 0 || (emptyOnly && slabLive[slab] > 0)) {
+                return null;
+            }
+            drain(slab);
+            ByteBuffer buffer = slabs.set(slab, null);
+            slabClass[slab] = -1;
+            slabCount--;
+            return buffer;
+        }
+
+        private void attach(ByteBuffer buffer, int cls) {
+            int slab = slabs.indexOf(null);
+            if (slab < 0) {
+                slabs.add(buffer);
+                slab = slabs.size() - 1;
+                slabClass = Arrays.copyOf(slabClass, slabs.size());
+                slabLive = Arrays.copyOf(slabLive, slabs.size());
+            } else {
+                slabs.set(slab, buffer);
+            }
+            slabCount++;
+            assign(slab, cls);
+        }
+
+        private void evict(Slot<K> e) {
+            remove(e);
+            if (e.isExpired(System.currentTimeMillis())) {
+                onRemoval(RemovalCause.EXPIRED);
+            } else {
+                onRemoval(RemovalCause.SIZE);
+            }
+        }
+
+        /**
+         * 把 slab 切成 cls 级别的 chunk
+         */
+        private void assign(int slab, int cls) {
+            slabClass[slab] = cls;
+            int chunk = chunkSizes[cls];
+            for (int offset = slabSize - slabSize % chunk - chunk; offset >= 0; offset -= chunk) {
+                free[cls].push(((long) slab << 32) | offset);
+            }
+        }
+
+        /**
+         * 从其他级别回收有效值最少的 slab: 淘汰其中所有的值后按 cls 重新切分
+         *
+         * @param emptyOnly 只回收没有有效值的 slab
+         */
+        private boolean reassign(int cls, boolean emptyOnly) {
+            int slab = -1;
+            for (int i = 0; i < slabClass.length; i++) {
+                if (slabs.get(i) != null && slabClass[i] != cls && (slab < 0 || slabLive[i] < slabLive[slab])) {
+                    slab = i;
+                }
+            }
+            if (slab < 0 || (emptyOnly && slabLive[slab] > 0)) {
+                return false;
+            }
+            drain(slab);
+            assign(slab, cls);
+            return true;
+        }
+
+        /**
+         * 淘汰 slab 中所有的值, 并从所属级别的空闲 chunk 中移除
+         */
+        private void drain(int slab) {
+            int donor = slabClass[slab];
+            Slot<K> e = heads[donor];
+            while (e != null && slabLive[slab] > 0) {
+                Slot<K> next = e.next;
+                if (e.slab == slab) {
+                    evict(e);
+                }
+                e = next;
+            }
+            free[donor].removeIf(address -> (int) (address >>> 32) == slab);
+        }
+
+        private void linkLast(Slot<K> e) {
+            int cls = e.chunkClass;
+            Slot<K> tail = tails[cls];
+            e.prev = tail;
+            e.next = null;
+            if (tail == null) {
+                heads[cls] = e;
+            } else {
+                tail.next = e;
+            }
+            tails[cls] = e;
+        }
+
+        private void unlink(Slot<K> e) {
+            int cls = e.chunkClass;
+            if (e.prev == null) {
+                heads[cls] = e.next;
+            } else {
+                e.prev.next = e.next;
+            }
+            if (e.next == null) {
+                tails[cls] = e.prev;
+            } else {
+                e.next.prev = e.prev;
+            }
+            e.prev = null;
+            e.next = null;
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <K> Slot<K>[] newSlotArray(int size) {
+        return (Slot<K>[]) new Slot[size];
+    }
+
+    private static final Method INVOKE_CLEANER;
+    private static final Object UNSAFE;
+
+    static {
+        Method invokeCleaner = null;
+        Object unsafe = null;
+        try {
+            // java 9+ 的 Unsafe.invokeCleaner; java 8 没有该方法, 使用 DirectBuffer.cleaner()
+            Class<?> clz = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = clz.getMethod("invokeCleaner", ByteBuffer.class);
+            Field field = clz.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+        } catch (Exception e) {
+            invokeCleaner = null;
+        }
+        INVOKE_CLEANER = invokeCleaner;
+        UNSAFE = unsafe;
+    }
+
+    /**
+     * 立即释放 direct buffer 的内存; 失败时等待GC回收
+     */
+    private static void freeDirect(ByteBuffer buffer) {
+        try {
+            if (INVOKE_CLEANER != null) {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+                return;
+            }
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            logger.debug("free direct buffer fail, leave it to gc", e);
+        }
+    }
+
+    private static final class LongStack {
+        private long[] values = new long[16];
+        private int size;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void push(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        long pop() {
+            return values[--size];
+        }
+
+        void removeIf(java.util.function.LongPredicate predicate) {
+            int n = 0;
+            for (int i = 0; i < size; i++) {
+                if (!predicate.test(values[i])) {
+                    values[n++] = values[i];
+                }
+            }
+            size = n;
+        }
+    }
+
+    /**
+     * 内存使用快照, 单位字节
+     */
+    public static class Stats {
+        private final long entries;
+        private final long capacityBytes;
+        private final long slabBytes;
+        private final long allocatedBytes;
+        private final long usedBytes;
+        private final long evictions;
+        private final long expirations;
+        private final long rejected;
+
+        Stats(long entries, long capacityBytes, long slabBytes, long allocatedBytes, long usedBytes,
+              long evictions, long expirations, long rejected) {
+            this.entries = entries;
+            this.capacityBytes = capacityBytes;
+            this.slabBytes = slabBytes;
+            this.allocatedBytes = allocatedBytes;
+            this.usedBytes = usedBytes;
+            this.evictions = evictions;
+            this.expirations = expirations;
+            this.rejected = rejected;
+        }
+
+        public long entries() {
+            return entries;
+        }
+
+        public long capacityBytes() {
+            return capacityBytes;
+        }
+
+        /**
+         * 已申请的 slab 总大小
+         */
+        public long slabBytes() {
+            return slabBytes;
+        }
+
+        /**
+         * 已占用的 chunk 总大小
+         */
+        public long allocatedBytes() {
+            return allocatedBytes;
+        }
+
+        /**
+         * 值实际占用的字节数
+         */
+        public long usedBytes() {
+            return usedBytes;
+        }
+
+        public long evictions() {
+            return evictions;
+        }
+
+        public long expirations() {
+            return expirations;
+        }
+
+        /**
+         * 因值过大或内存不足未能写入的次数
+         */
+        public long rejected() {
+            return rejected;
+        }
+
+        /**
+         * 碎片率: 已申请的 slab 中没有存放有效数据的比例(空闲 chunk + chunk 内的空隙)
+         */
+        public double fragmentation() {
+            return slabBytes == 0 ? 0d : 1d - (double) usedBytes / slabBytes;
+        }
+
+        /**
+         * 内部碎片率: 已占用的 chunk 中因按级别向上取整而浪费的比例
+         */
+        public double internalFragmentation() {
+            return allocatedBytes == 0 ? 0d : 1d - (double) usedBytes / allocatedBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("entries=%d capacity=%d slab=%d allocated=%d used=%d fragmentation=%.3f "
+                            + "internalFragmentation=%.3f evictions=%d expirations=%d rejected=%d", entries,
+                    capacityBytes, slabBytes, allocatedBytes, usedBytes, fragmentation(), internalFragmentation(),
+                    evictions, expirations, rejected);
+        }
+    }
+
+    private final class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+
+        @Override
+        public Iterator<Map.Entry<K, V>> iterator() {
+            return new EntryIterator();
+        }
+
+        @Override
+        public int size() {
+            return OffHeapCache.this.size();
+        }
+
+        @Override
+        public void clear() {
+            OffHeapCache.this.clear();
+        }
+    }
+
+    /**
+     * 遍历开始时各段key的快照, 值在遍历时读取; 期间被移除的key跳过
+     */
+    private final class EntryIterator implements Iterator<Map.Entry<K, V>> {
+        private final Iterator<K> keys;
+        private Map.Entry<K, V> next;
+        private K current;
+
+        EntryIterator() {
+            List<K> snapshot = new ArrayList<>();
+            for (Segment segment : segments) {
+                segment.lock.lock();
+                try {
+                    for (Slot<K> e : segment.index.values()) {
+                        snapshot.add(e.key);
+                    }
+                } finally {
+                    segment.lock.unlock();
+                }
+            }
+            keys = snapshot.iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && keys.hasNext()) {
+                K key = keys.next();
+                V value = get(key);
+                if (value != null) {
+                    next = new SimpleImmutableEntry<>(key, value);
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<K, V> e = next;
+            current = e.getKey();
+            next = null;
+            return e;
+        }
+
+        @Override
+        public void remove() {
+            if (current == null) {
+                throw new IllegalStateException();
+            }
+            OffHeapCache.this.remove(current);
+            current = null;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package me.heng.tool.cache;
+
+import me.heng.tool.json.JsonSupport;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 7:10 PM
+ *
+ * 值与字节数组的相互转换, 用于堆外存储
+ */
+public interface Serializer<V> {
+
+    byte[] serialize(V value);
+
+    V deserialize(byte[] bytes);
+
+    /**
+     * 基于 JsonSupport 的 json 序列化, UTF-8 编码
+     */
+    static <V> Serializer<V> json(Class<V> clz) {
+        return new Serializer<V>() {
+            @Override
+            public byte[] serialize(V value) {
+                return JsonSupport.toJson(value).getBytes(StandardCharsets.UTF_8);
+            }
+
+            @Override
+            public V deserialize(byte[] bytes) {
+                return JsonSupport.parseObject(new String(bytes, StandardCharsets.UTF_8), clz);
+            }
+        };
+    }
+}
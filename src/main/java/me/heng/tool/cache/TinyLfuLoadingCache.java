@@ -0,0 +1,177 @@
+package me.heng.tool.cache;
+
+import com.google.common.cache.AbstractCache;
+import com.google.common.cache.AbstractLoadingCache;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 6:50 PM
+ *
+ * 基于 TinyLfuMap 的 LoadingCache, 与 guava 的 LoadingCache 接口和异常语义一致.
+ * 同一个key同时只有一个线程执行 load, 其他线程等待其结果
+ */
+public class TinyLfuLoadingCache<K, V> extends AbstractLoadingCache<K, V> {
+
+    private final TinyLfuMap<K, V> map;
+    private final CacheLoader<? super K, V> loader;
+    private final ConcurrentHashMap<K, CompletableFuture<V>> loading = new ConcurrentHashMap<>();
+    private final AbstractCache.SimpleStatsCounter statsCounter = new AbstractCache.SimpleStatsCounter();
+
+    public TinyLfuLoadingCache(TinyLfuMap<K, V> map, CacheLoader<? super K, V> loader) {
+        this.map = map;
+        this.loader = loader;
+    }
+
+    @Override
+    public V get(K key) throws ExecutionException {
+        V value = map.get(key);
+        if (value != null) {
+            statsCounter.recordHits(1);
+            return value;
+        }
+        statsCounter.recordMisses(1);
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> existing = loading.putIfAbsent(key, future);
+        if (existing != null) {
+            return await(existing);
+        }
+        try {
+            // 等锁期间可能已被其他线程加载
+            value = map.get(key);
+            if (value == null) {
+                value = load(key);
+                if (value == null) {
+                    throw new CacheLoader.InvalidCacheLoadException("CacheLoader returned null for key " + key + ".");
+                }
+                map.put(key, value);
+            }
+            future.complete(value);
+            return value;
+        } catch (Throwable e) {
+            future.completeExceptionally(e);
+            throw wrap(e);
+        } finally {
+            loading.remove(key, future);
+        }
+    }
+
+    @Override
+    public V getIfPresent(Object key) {
+        V value = map.get(key);
+        if (value != null) {
+            statsCounter.recordHits(1);
+        } else {
+            statsCounter.recordMisses(1);
+        }
+        return value;
+    }
+
+    @Override
+    public void refresh(K key) {
+        try {
+            V value = load(key);
+            if (value != null) {
+                map.put(key, value);
+            }
+        } catch (Exception e) {
+            // 与 guava 一致, 刷新失败时保留旧值
+        }
+    }
+
+    @Override
+    public void put(K key, V value) {
+        map.put(key, value);
+    }
+
+    @Override
+    public void invalidate(Object key) {
+        map.remove(key);
+    }
+
+    @Override
+    public void invalidateAll() {
+        map.clear();
+    }
+
+    @Override
+    public long size() {
+        return map.size();
+    }
+
+    @Override
+    public ConcurrentMap<K, V> asMap() {
+        return map;
+    }
+
+    @Override
+    public void cleanUp() {
+        map.cleanUp();
+    }
+
+    /**
+     * 与 guava 一致, 淘汰数包括因容量和过期的淘汰
+     */
+    @Override
+    public CacheStats stats() {
+        CacheStats stats = statsCounter.snapshot();
+        return new CacheStats(stats.hitCount(), stats.missCount(), stats.loadSuccessCount(),
+                stats.loadExceptionCount(), stats.totalLoadTime(), map.evictionCount());
+    }
+
+    /**
+     * 记录加载耗时, 返回null计为加载失败
+     */
+    private V load(K key) throws Exception {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            V value = loader.load(key);
+            success = value != null;
+            return value;
+        } finally {
+            if (success) {
+                statsCounter.recordLoadSuccess(System.nanoTime() - start);
+            } else {
+                statsCounter.recordLoadException(System.nanoTime() - start);
+            }
+        }
+    }
+
+    private V await(CompletableFuture<V> future) throws ExecutionException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ExecutionException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            throw wrap(cause);
+        }
+    }
+
+    /**
+     * 与 guava 一致: 受检异常包装为 ExecutionException, 运行时异常为 UncheckedExecutionException
+     */
+    private static ExecutionException wrap(Throwable e) {
+        if (e instanceof CacheLoader.InvalidCacheLoadException) {
+            throw (CacheLoader.InvalidCacheLoadException) e;
+        }
+        if (e instanceof Error) {
+            throw new ExecutionError((Error) e);
+        }
+        if (e instanceof RuntimeException) {
+            throw new UncheckedExecutionException(e);
+        }
+        return new ExecutionException(e);
+    }
+}
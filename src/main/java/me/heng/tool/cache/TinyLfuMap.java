@@ -0,0 +1,836 @@
+package me.heng.tool.cache;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 6:45 PM
+ *
+ * W-TinyLFU 淘汰策略的 ConcurrentMap, 参考 caffeine 的实现
+ *
+ * 容量分为 window(1%, LRU) 与 main(SLRU: probation + protected 80%); 新元素先进入 window,
+ * 溢出 window 后与 probation 的 LRU 端比较 FrequencySketch 估计的访问频率, 频率低者被淘汰.
+ * 对扫描型访问(大量只访问一次的key)和频率倾斜的分布, 命中率明显优于 guava 的分段LRU.
+ *
+ * 数据存放在 ConcurrentHashMap 中, 读写不加锁, compute 系列在 ConcurrentHashMap.compute 中原子执行; 淘汰策略的状态由一把锁保护,
+ * 读事件写入按线程分条的有损环形缓冲, 写事件写入队列, 由拿到锁的线程批量处理
+ */
+public class TinyLfuMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V> {
+
+    private static final Logger logger = LoggerFactory.getLogger(TinyLfuMap.class);
+
+    private static final int NONE = -1;
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    /**
+     * 写队列积压超过该值时, 写线程阻塞等待锁来处理, 防止无限堆积
+     */
+    private static final int WRITE_BUFFER_THRESHOLD = 1024;
+    private static final int READ_BUFFER_SIZE = 16;
+    private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+
+    private final ConcurrentHashMap<K, Node<K, V>> data;
+    private final long maximum;
+    private final long expireAfterWriteNanos;
+    private final long expireAfterAccessNanos;
+    private final RemovalListener<K, V> listener;
+    private final Ticker ticker;
+
+    private final ReadBuffer[] readBuffers;
+    private final Queue<Runnable> writeBuffer = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger writeBufferSize = new AtomicInteger(0);
+    private final AtomicLong evictionCount = new AtomicLong(0);
+
+    /**
+     * 以下字段由 evictionLock 保护
+     */
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final FrequencySketch sketch;
+    private final AccessOrder<K, V> window = new AccessOrder<>();
+    private final AccessOrder<K, V> probation = new AccessOrder<>();
+    private final AccessOrder<K, V> protectedQ = new AccessOrder<>();
+    private final WriteOrder<K, V> writeOrder = new WriteOrder<>();
+    private final long windowMax;
+    private final long protectedMax;
+    private long windowSize;
+    private long probationSize;
+    private long protectedSize;
+
+    /**
+     * @param maximum           最大条目数, <=0 表示不限
+     * @param expireAfterWrite  写入后过期, <=0 表示不过期
+     * @param expireAfterAccess 访问后过期, <=0 表示不过期
+     * @param unit
+     * @param listener          可为null, 在触发移除的线程中同步调用
+     */
+    public TinyLfuMap(long maximum, long expireAfterWrite, long expireAfterAccess, TimeUnit unit,
+                      RemovalListener<K, V> listener) {
+        this.maximum = maximum;
+        this.expireAfterWriteNanos = expireAfterWrite > 0 ? unit.toNanos(expireAfterWrite) : 0L;
+        this.expireAfterAccessNanos = expireAfterAccess > 0 ? unit.toNanos(expireAfterAccess) : 0L;
+        this.listener = listener;
+        this.ticker = Ticker.systemTicker();
+        this.data = new ConcurrentHashMap<>(maximum > 0 ? (int) Math.min(maximum, 1 << 16) : 16);
+        this.sketch = new FrequencySketch(maximum > 0 ? maximum : 1 << 16);
+        this.windowMax = maximum > 0 ? Math.max(1L, maximum / 100) : 0L;
+        this.protectedMax = maximum > 0 ? (maximum - windowMax) * 8 / 10 : 0L;
+        int stripes = 1;
+        while (stripes < Runtime.getRuntime().availableProcessors()) {
+            stripes <<= 1;
+        }
+        this.readBuffers = new ReadBuffer[stripes];
+        for (int i = 0; i < stripes; i++) {
+            readBuffers[i] = new ReadBuffer();
+        }
+    }
+
+    @Override
+    public V get(Object key) {
+        Node<K, V> node = data.get(key);
+        if (node == null) {
+            return null;
+        }
+        long now = ticker.read();
+        if (hasExpired(node, now)) {
+            if (data.remove(key, node)) {
+                removed(node, RemovalCause.EXPIRED);
+            }
+            return null;
+        }
+        if (expireAfterAccessNanos > 0) {
+            node.accessTime = now;
+        }
+        afterRead(node);
+        return node.value;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        Node<K, V> node = data.get(key);
+        return node != null && !hasExpired(node, ticker.read());
+    }
+
+    @Override
+    public V put(K key, V value) {
+        Objects.requireNonNull(key);
+        Objects.requireNonNull(value);
+        long now = ticker.read();
+        Node<K, V> node = new Node<>(key, value, now);
+        Node<K, V> prior = data.put(key, node);
+        afterWrite(new AddTask(node));
+        if (prior == null) {
+            return null;
+        }
+        boolean expired = hasExpired(prior, now);
+        removed(prior, expired ? RemovalCause.EXPIRED : RemovalCause.REPLACED);
+        return expired ? null : prior.value;
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        Objects.requireNonNull(key);
+        Objects.requireNonNull(value);
+        long now = ticker.read();
+        Node<K, V> node = new Node<>(key, value, now);
+        for (; ; ) {
+            Node<K, V> prior = data.putIfAbsent(key, node);
+            if (prior == null) {
+                afterWrite(new AddTask(node));
+                return null;
+            }
+            if (!hasExpired(prior, now)) {
+                afterRead(prior);
+                return prior.value;
+            }
+            if (data.replace(key, prior, node)) {
+                afterWrite(new AddTask(node));
+                removed(prior, RemovalCause.EXPIRED);
+                return null;
+            }
+        }
+    }
+
+    @Override
+    public V remove(Object key) {
+        Node<K, V> node = data.remove(key);
+        if (node == null) {
+            return null;
+        }
+        boolean expired = hasExpired(node, ticker.read());
+        removed(node, expired ? RemovalCause.EXPIRED : RemovalCause.EXPLICIT);
+        return expired ? null : node.value;
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        Node<K, V> node = data.get(key);
+        if (node == null || value == null || !node.value.equals(value) || hasExpired(node, ticker.read())) {
+            return false;
+        }
+        if (data.remove(key, node)) {
+            removed(node, RemovalCause.EXPLICIT);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public V replace(K key, V value) {
+        Objects.requireNonNull(value);
+        for (; ; ) {
+            Node<K, V> node = data.get(key);
+            long now = ticker.read();
+            if (node == null || hasExpired(node, now)) {
+                return null;
+            }
+            Node<K, V> replacement = new Node<>(key, value, now);
+            if (data.replace(key, node, replacement)) {
+                afterWrite(new AddTask(replacement));
+                removed(node, RemovalCause.REPLACED);
+                return node.value;
+            }
+        }
+    }
+
+    @Override
+    public boolean replace(K key, V oldValue, V newValue) {
+        Objects.requireNonNull(oldValue);
+        Objects.requireNonNull(newValue);
+        for (; ; ) {
+            Node<K, V> node = data.get(key);
+            long now = ticker.read();
+            if (node == null || hasExpired(node, now) || !node.value.equals(oldValue)) {
+                return false;
+            }
+            Node<K, V> replacement = new Node<>(key, newValue, now);
+            if (data.replace(key, node, replacement)) {
+                afterWrite(new AddTask(replacement));
+                removed(node, RemovalCause.REPLACED);
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        Objects.requireNonNull(mappingFunction);
+        Node<K, V> node = data.get(key);
+        if (node != null) {
+            long now = ticker.read();
+            if (!hasExpired(node, now)) {
+                if (expireAfterAccessNanos > 0) {
+                    node.accessTime = now;
+                }
+                afterRead(node);
+                return node.value;
+            }
+        }
+        return remap(key, (k, old) -> old != null ? old : mappingFunction.apply(k));
+    }
+
+    @Override
+    public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        Objects.requireNonNull(remappingFunction);
+        return remap(key, (k, old) -> old == null ? null : remappingFunction.apply(k, old));
+    }
+
+    @Override
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        Objects.requireNonNull(remappingFunction);
+        return remap(key, remappingFunction);
+    }
+
+    @Override
+    public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        Objects.requireNonNull(value);
+        Objects.requireNonNull(remappingFunction);
+        return remap(key, (k, old) -> old == null ? value : remappingFunction.apply(old, value));
+    }
+
+    /**
+     * 在 data.compute 中原子地计算新值, 已过期的条目视为不存在; 淘汰队列和 listener 的处理在 compute 之外进行
+     *
+     * @param function 当前值(不存在时为null) => 新值, 返回null表示移除, 返回当前值本身表示不变
+     */
+    private V remap(K key, BiFunction<? super K, ? super V, ? extends V> function) {
+        Objects.requireNonNull(key);
+        long now = ticker.read();
+        Remapping<K, V> r = new Remapping<>();
+        data.compute(key, (k, node) -> {
+            V old = node == null || hasExpired(node, now) ? null : node.value;
+            V val = function.apply(k, old);
+            r.prior = node;
+            if (val == null) {
+                return null;
+            }
+            r.current = val == old ? node : new Node<>(k, val, now);
+            return r.current;
+        });
+        Node<K, V> prior = r.prior;
+        Node<K, V> current = r.current;
+        if (current != null && current == prior) {
+            if (expireAfterAccessNanos > 0) {
+                current.accessTime = now;
+            }
+            afterRead(current);
+            return current.value;
+        }
+        if (current != null) {
+            afterWrite(new AddTask(current));
+        }
+        if (prior != null) {
+            RemovalCause cause = hasExpired(prior, now) ? RemovalCause.EXPIRED
+                    : current == null ? RemovalCause.EXPLICIT : RemovalCause.REPLACED;
+            removed(prior, cause);
+        }
+        return current == null ? null : current.value;
+    }
+
+    /**
+     * 包含已过期但尚未清理的条目
+     */
+    @Override
+    public int size() {
+        return data.size();
+    }
+
+    @Override
+    public void clear() {
+        for (K key : data.keySet()) {
+            remove(key);
+        }
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return new EntrySet();
+    }
+
+    /**
+     * 立即处理积压的读写事件, 清理过期条目
+     */
+    public void cleanUp() {
+        evictionLock.lock();
+        try {
+            maintenance();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * 因容量或过期被淘汰的条目数
+     */
+    public long evictionCount() {
+        return evictionCount.get();
+    }
+
+    public long maximum() {
+        return maximum;
+    }
+
+    private boolean hasExpired(Node<K, V> node, long now) {
+        return (expireAfterWriteNanos > 0 && now - node.writeTime >= expireAfterWriteNanos)
+                || (expireAfterAccessNanos > 0 && now - node.accessTime >= expireAfterAccessNanos);
+    }
+
+    /**
+     * 已从 data 中摘除的节点: 通知 listener, 并安排从淘汰队列中移除
+     */
+    private void removed(Node<K, V> node, RemovalCause cause) {
+        node.alive = false;
+        afterWrite(new RemoveTask(node));
+        notifyListener(node, cause);
+    }
+
+    private void notifyListener(Node<K, V> node, RemovalCause cause) {
+        if (listener != null) {
+            try {
+                listener.onRemoval(RemovalNotification.create(node.key, node.value, cause));
+            } catch (Exception e) {
+                logger.warn("TinyLfuMap removal listener fail", e);
+            }
+        }
+    }
+
+    private void afterRead(Node<K, V> node) {
+        ReadBuffer buffer = readBuffers[(int) Thread.currentThread().getId() & (readBuffers.length - 1)];
+        if (!buffer.offer(node)) {
+            // 缓冲满时尝试处理, 拿不到锁就丢弃这次访问记录
+            tryMaintenance();
+        }
+    }
+
+    private void afterWrite(Runnable task) {
+        writeBuffer.add(task);
+        if (writeBufferSize.incrementAndGet() > WRITE_BUFFER_THRESHOLD) {
+            cleanUp();
+        } else {
+            tryMaintenance();
+        }
+    }
+
+    private void tryMaintenance() {
+        do {
+            if (!evictionLock.tryLock()) {
+                return;
+            }
+            try {
+                maintenance();
+            } finally {
+                evictionLock.unlock();
+            }
+            // 释放锁前后可能有新的写事件, 没有其他线程会处理
+        } while (!writeBuffer.isEmpty());
+    }
+
+    private void maintenance() {
+        for (ReadBuffer buffer : readBuffers) {
+            buffer.drain(this);
+        }
+        Runnable task;
+        while ((task = writeBuffer.poll()) != null) {
+            writeBufferSize.decrementAndGet();
+            task.run();
+        }
+        expireEntries();
+        evictEntries();
+    }
+
+    private void onAccess(Node<K, V> node) {
+        if (!node.alive || node.queue == NONE) {
+            return;
+        }
+        sketch.increment(node.key);
+        switch (node.queue) {
+            case WINDOW:
+                window.moveToBack(node);
+                break;
+            case PROBATION:
+                probation.remove(node);
+                probationSize--;
+                node.queue = PROTECTED;
+                protectedQ.addLast(node);
+                protectedSize++;
+                while (protectedSize > protectedMax && protectedMax >= 0) {
+                    Node<K, V> demoted = protectedQ.pollFirst();
+                    if (demoted == null) {
+                        break;
+                    }
+                    protectedSize--;
+                    demoted.queue = PROBATION;
+                    probation.addLast(demoted);
+                    probationSize++;
+                }
+                break;
+            case PROTECTED:
+                protectedQ.moveToBack(node);
+                break;
+            default:
+        }
+    }
+
+    private void onAdd(Node<K, V> node) {
+        if (!node.alive || node.queue != NONE) {
+            return;
+        }
+        sketch.increment(node.key);
+        node.queue = WINDOW;
+        window.addLast(node);
+        windowSize++;
+        if (expireAfterWriteNanos > 0) {
+            writeOrder.addLast(node);
+        }
+    }
+
+    private void unlink(Node<K, V> node) {
+        switch (node.queue) {
+            case WINDOW:
+                window.remove(node);
+                windowSize--;
+                break;
+            case PROBATION:
+                probation.remove(node);
+                probationSize--;
+                break;
+            case PROTECTED:
+                protectedQ.remove(node);
+                protectedSize--;
+                break;
+            default:
+                return;
+        }
+        node.queue = NONE;
+        if (node.inWriteOrder) {
+            writeOrder.remove(node);
+        }
+    }
+
+    private void expireEntries() {
+        if (expireAfterWriteNanos <= 0 && expireAfterAccessNanos <= 0) {
+            return;
+        }
+        long now = ticker.read();
+        if (expireAfterWriteNanos > 0) {
+            Node<K, V> node;
+            while ((node = writeOrder.peekFirst()) != null && now - node.writeTime >= expireAfterWriteNanos) {
+                evict(node, RemovalCause.EXPIRED);
+            }
+        }
+        if (expireAfterAccessNanos > 0) {
+            expireByAccess(window, now);
+            expireByAccess(probation, now);
+            expireByAccess(protectedQ, now);
+        }
+    }
+
+    private void expireByAccess(AccessOrder<K, V> order, long now) {
+        Node<K, V> node;
+        while ((node = order.peekFirst()) != null && now - node.accessTime >= expireAfterAccessNanos) {
+            evict(node, RemovalCause.EXPIRED);
+        }
+    }
+
+    private void evictEntries() {
+        if (maximum <= 0) {
+            return;
+        }
+        // window 溢出的进入 probation, 成为候选者
+        while (windowSize > windowMax) {
+            Node<K, V> node = window.pollFirst();
+            windowSize--;
+            node.queue = PROBATION;
+            probation.addLast(node);
+            probationSize++;
+        }
+        while (windowSize + probationSize + protectedSize > maximum) {
+            Node<K, V> victim = probation.peekFirst();
+            Node<K, V> candidate = probation.peekLast();
+            if (victim == null) {
+                victim = protectedQ.peekFirst() != null ? protectedQ.peekFirst() : window.peekFirst();
+                evict(victim, RemovalCause.SIZE);
+            } else if (victim == candidate) {
+                evict(victim, RemovalCause.SIZE);
+            } else if (sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+                evict(victim, RemovalCause.SIZE);
+            } else {
+                evict(candidate, RemovalCause.SIZE);
+            }
+        }
+    }
+
+    private void evict(Node<K, V> node, RemovalCause cause) {
+        unlink(node);
+        if (data.remove(node.key, node)) {
+            node.alive = false;
+            evictionCount.incrementAndGet();
+            notifyListener(node, cause);
+        }
+    }
+
+    private final class AddTask implements Runnable {
+        private final Node<K, V> node;
+
+        AddTask(Node<K, V> node) {
+            this.node = node;
+        }
+
+        @Override
+        public void run() {
+            onAdd(node);
+        }
+    }
+
+    private final class RemoveTask implements Runnable {
+        private final Node<K, V> node;
+
+        RemoveTask(Node<K, V> node) {
+            this.node = node;
+        }
+
+        @Override
+        public void run() {
+            unlink(node);
+        }
+    }
+
+    /**
+     * remap 中 compute 的结果, 只在当前线程中使用
+     */
+    private static final class Remapping<K, V> {
+        Node<K, V> prior;
+        Node<K, V> current;
+    }
+
+    static final class Node<K, V> {
+        final K key;
+        final V value;
+        final long writeTime;
+        volatile long accessTime;
+        volatile boolean alive = true;
+
+        /**
+         * 以下字段由 evictionLock 保护
+         */
+        int queue = NONE;
+        Node<K, V> prev;
+        Node<K, V> next;
+        boolean inWriteOrder;
+        Node<K, V> writePrev;
+        Node<K, V> writeNext;
+
+        Node(K key, V value, long now) {
+            this.key = key;
+            this.value = value;
+            this.writeTime = now;
+            this.accessTime = now;
+        }
+    }
+
+    /**
+     * 有损的环形缓冲, 多写单读; 满了直接丢弃
+     */
+    private static final class ReadBuffer {
+        private final AtomicReferenceArray<Node<?, ?>> buffer = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+        private final AtomicLong writeCounter = new AtomicLong(0);
+        private volatile long readCounter;
+
+        boolean offer(Node<?, ?> node) {
+            long head = readCounter;
+            long tail = writeCounter.get();
+            if (tail - head >= READ_BUFFER_SIZE) {
+                return false;
+            }
+            if (writeCounter.compareAndSet(tail, tail + 1)) {
+                buffer.lazySet((int) (tail & READ_BUFFER_MASK), node);
+            }
+            return tail - head < READ_BUFFER_SIZE - 1;
+        }
+
+        @SuppressWarnings("unchecked")
+        <K, V> void drain(TinyLfuMap<K, V> map) {
+            long head = readCounter;
+            long tail = writeCounter.get();
+            for (; head < tail; head++) {
+                int index = (int) (head & READ_BUFFER_MASK);
+                Node<K, V> node = (Node<K, V>) buffer.get(index);
+                if (node == null) {
+                    // 写线程还未完成写入
+                    break;
+                }
+                buffer.lazySet(index, null);
+                map.onAccess(node);
+            }
+            readCounter = head;
+        }
+    }
+
+    /**
+     * 访问顺序的双向链表, 头部是最久未访问的
+     */
+    private static final class AccessOrder<K, V> {
+        Node<K, V> first;
+        Node<K, V> last;
+
+        Node<K, V> peekFirst() {
+            return first;
+        }
+
+        Node<K, V> peekLast() {
+            return last;
+        }
+
+        void addLast(Node<K, V> node) {
+            node.prev = last;
+            node.next = null;
+            if (last == null) {
+                first = node;
+            } else {
+                last.next = node;
+            }
+            last = node;
+        }
+
+        Node<K, V> pollFirst() {
+            Node<K, V> node = first;
+            if (node != null) {
+                remove(node);
+            }
+            return node;
+        }
+
+        void remove(Node<K, V> node) {
+            Node<K, V> prev = node.prev;
+            Node<K, V> next = node.next;
+            if (prev == null) {
+                first = next;
+            } else {
+                prev.next = next;
+            }
+            if (next == null) {
+                last = prev;
+            } else {
+                next.prev = prev;
+            }
+            node.prev = null;
+            node.next = null;
+        }
+
+        void moveToBack(Node<K, V> node) {
+            if (node != last) {
+                remove(node);
+                addLast(node);
+            }
+        }
+    }
+
+    /**
+     * 写入顺序的双向链表, 用于写后过期
+     */
+    private static final class WriteOrder<K, V> {
+        Node<K, V> first;
+        Node<K, V> last;
+
+        Node<K, V> peekFirst() {
+            return first;
+        }
+
+        void addLast(Node<K, V> node) {
+            node.inWriteOrder = true;
+            node.writePrev = last;
+            node.writeNext = null;
+            if (last == null) {
+                first = node;
+            } else {
+                last.writeNext = node;
+            }
+            last = node;
+        }
+
+        void remove(Node<K, V> node) {
+            Node<K, V> prev = node.writePrev;
+            Node<K, V> next = node.writeNext;
+            if (prev == null) {
+                first = next;
+            } else {
+                prev.writeNext = next;
+            }
+            if (next == null) {
+                last = prev;
+            } else {
+                next.writePrev = prev;
+            }
+            node.writePrev = null;
+            node.writeNext = null;
+            node.inWriteOrder = false;
+        }
+    }
+
+    private final class EntrySet extends AbstractSet<Entry<K, V>> {
+
+        @Override
+        public Iterator<Entry<K, V>> iterator() {
+            return new EntryIterator();
+        }
+
+        @Override
+        public int size() {
+            return TinyLfuMap.this.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry<?, ?> e = (Entry<?, ?>) o;
+            V value = get(e.getKey());
+            return value != null && value.equals(e.getValue());
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry<?, ?> e = (Entry<?, ?>) o;
+            return TinyLfuMap.this.remove(e.getKey(), e.getValue());
+        }
+
+        @Override
+        public void clear() {
+            TinyLfuMap.this.clear();
+        }
+    }
+
+    /**
+     * 跳过已过期的条目, 不记录访问
+     */
+    private final class EntryIterator implements Iterator<Entry<K, V>> {
+        private final Iterator<Node<K, V>> it = data.values().iterator();
+        private Node<K, V> next;
+        private Node<K, V> current;
+
+        @Override
+        public boolean hasNext() {
+            if (next != null) {
+                return true;
+            }
+            long now = ticker.read();
+            while (it.hasNext()) {
+                Node<K, V> node = it.next();
+                if (!hasExpired(node, now)) {
+                    next = node;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Entry<K, V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            current = next;
+            next = null;
+            return new SimpleImmutableEntry<>(current.key, current.value);
+        }
+
+        @Override
+        public void remove() {
+            if (current == null) {
+                throw new IllegalStateException();
+            }
+            TinyLfuMap.this.remove(current.key, current.value);
+            current = null;
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package me.heng.tool.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 9:20 PM
+ *
+ * 两级cache: 本地的 L1 在前, 多节点共享的 L2 在后; 写入和失效通过 InvalidationBus 通知所有节点移除 L1 中的key,
+ * 避免各节点在 L1 过期前读到旧值
+ *
+ * 从 L2 回填 L1 期间若同一分段的key发生过失效, 回填后撤回, 避免把失效前读到的旧值留在 L1;
+ * 失效计数按key的hash分段, 一个key的失效只影响同分段的回填
+ */
+public class TwoTierCache<K, V> implements Function<K, V> {
+
+    private static final int STRIPES = 256;
+
+    private final String channel;
+    private final String origin = UUID.randomUUID().toString();
+    private final ConcurrentMap<K, V> l1;
+    private final CacheStore<K, V> l2;
+    private final InvalidationBus bus;
+    private final Function<K, V> loader;
+    private final InvalidationBus.Subscription subscription;
+    /**
+     * 每个分段的失效计数, 先加1再移除 L1; 回填时先写 L1 再检查, 计数变化则撤回
+     */
+    private final AtomicLongArray generations = new AtomicLongArray(STRIPES);
+
+    private final AtomicLong l1Hits = new AtomicLong(0);
+    private final AtomicLong l2Hits = new AtomicLong(0);
+    private final AtomicLong loads = new AtomicLong(0);
+    private final AtomicLong received = new AtomicLong(0);
+
+    /**
+     * @param channel 同一份数据在所有节点使用相同的 channel
+     * @param l1      本地cache, 应当设置较短的过期时间兜底
+     * @param l2
+     * @param bus
+     * @param loader  L2 也未命中时加载并写入 L2, 可为null
+     */
+    public TwoTierCache(String channel, ConcurrentMap<K, V> l1, CacheStore<K, V> l2, InvalidationBus bus,
+                        Function<K, V> loader) {
+        this.channel = channel;
+        this.l1 = l1;
+        this.l2 = l2;
+        this.bus = bus;
+        this.loader = loader;
+        this.subscription = bus.subscribe(channel, this::onInvalidation);
+    }
+
+    @Override
+    public V apply(K key) {
+        return get(key);
+    }
+
+    public V get(K key) {
+        V val = l1.get(key);
+        if (val != null) {
+            l1Hits.incrementAndGet();
+            return val;
+        }
+        int stripe = stripe(key);
+        long gen = generations.get(stripe);
+        val = l2.get(key);
+        if (val != null) {
+            l2Hits.incrementAndGet();
+        } else if (loader != null) {
+            val = loader.apply(key);
+            loads.incrementAndGet();
+            if (val != null) {
+                // 回填不是数据变更, 不需要通知其他节点
+                l2.put(key, val);
+            }
+        }
+        if (val != null) {
+            fill(key, val, stripe, gen);
+        }
+        return val;
+    }
+
+    /**
+     * @return 只包含存在的key, 按 keys 的顺序
+     */
+    public Map<K, V> getAll(Collection<? extends K> keys) {
+        Map<K, V> found = new LinkedHashMap<>();
+        List<K> misses = new ArrayList<>();
+        for (K key : keys) {
+            V val = l1.get(key);
+            if (val != null) {
+                l1Hits.incrementAndGet();
+                found.put(key, val);
+            } else {
+                misses.add(key);
+            }
+        }
+        if (!misses.isEmpty()) {
+            long[] gens = new long[misses.size()];
+            for (int i = 0; i < gens.length; i++) {
+                gens[i] = generations.get(stripe(misses.get(i)));
+            }
+            Map<K, V> remote = l2.getAll(misses);
+            l2Hits.addAndGet(remote.size());
+            Map<K, V> fill = new LinkedHashMap<>(remote);
+            for (K key : misses) {
+                if (!fill.containsKey(key) && loader != null) {
+                    V val = loader.apply(key);
+                    loads.incrementAndGet();
+                    if (val != null) {
+                        l2.put(key, val);
+                        fill.put(key, val);
+                    }
+                }
+            }
+            for (int i = 0; i < gens.length; i++) {
+                K key = misses.get(i);
+                V val = fill.get(key);
+                if (val != null) {
+                    fill(key, val, stripe(key), gens[i]);
+                }
+            }
+            found.putAll(fill);
+        }
+        Map<K, V> result = new LinkedHashMap<>();
+        for (K key : keys) {
+            V val = found.get(key);
+            if (val != null) {
+                result.put(key, val);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 写入 L2, 更新本地 L1 并通知其他节点失效
+     */
+    public void put(K key, V value) {
+        generations.incrementAndGet(stripe(key));
+        l2.put(key, value);
+        l1.put(key, value);
+        bus.publish(new InvalidationBus.Invalidation(channel, key, origin));
+    }
+
+    /**
+     * 从两级中移除并通知其他节点
+     */
+    public void invalidate(K key) {
+        generations.incrementAndGet(stripe(key));
+        l2.remove(key);
+        l1.remove(key);
+        bus.publish(new InvalidationBus.Invalidation(channel, key, origin));
+    }
+
+    /**
+     * 清空所有节点的 L1, 不影响 L2
+     */
+    public void invalidateAllLocal() {
+        advanceAll();
+        l1.clear();
+        bus.publish(new InvalidationBus.Invalidation(channel, null, origin));
+    }
+
+    /**
+     * 取消订阅, 之后不再收到其他节点的失效通知
+     */
+    public void close() {
+        subscription.cancel();
+    }
+
+    public ConcurrentMap<K, V> l1() {
+        return l1;
+    }
+
+    public long l1Hits() {
+        return l1Hits.get();
+    }
+
+    public long l2Hits() {
+        return l2Hits.get();
+    }
+
+    public long loads() {
+        return loads.get();
+    }
+
+    /**
+     * 收到其他节点的失效消息数
+     */
+    public long invalidationsReceived() {
+        return received.get();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void onInvalidation(InvalidationBus.Invalidation invalidation) {
+        if (origin.equals(invalidation.origin())) {
+            return;
+        }
+        received.incrementAndGet();
+        if (invalidation.isAll()) {
+            advanceAll();
+            l1.clear();
+        } else {
+            K key = (K) invalidation.key();
+            generations.incrementAndGet(stripe(key));
+            l1.remove(key);
+        }
+    }
+
+    /**
+     * 先写入再检查: 检查之前发生的失效由这里撤回, 之后发生的失效会自己移除 L1
+     */
+    private void fill(K key, V val, int stripe, long gen) {
+        l1.put(key, val);
+        if (generations.get(stripe) != gen) {
+            l1.remove(key, val);
+        }
+    }
+
+    private void advanceAll() {
+        for (int i = 0; i < STRIPES; i++) {
+            generations.incrementAndGet(i);
+        }
+    }
+
+    private static int stripe(Object key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+}
@@ -0,0 +1,210 @@
+package me.heng.tool.future;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 5:02 PM
+ *
+ * 限制并发的批量任务: 同一时刻最多 concurrency 个任务在线程池中, 一个完成才提交下一个,
+ * 避免一次性把所有任务塞进线程池队列
+ */
+public class FanOut<R> {
+
+    private final ExecutorService executor;
+    private final Iterator<? extends Callable<? extends R>> tasks;
+    private final int concurrency;
+    private final boolean failFast;
+    private final CompletableFuture<WatchResult<R>> result = new CompletableFuture<>();
+    private final Map<Integer, Future<?>> running = new ConcurrentHashMap<>();
+    private final AtomicInteger wip = new AtomicInteger(0);
+
+    /**
+     * 以下字段由 this 保护
+     */
+    private final List<Object> values = new ArrayList<>();
+    private final List<Throwable> errors = new ArrayList<>();
+    private int inFlight;
+    /**
+     * 空闲的并发数
+     */
+    private int slots;
+    private boolean exhausted;
+
+    private FanOut(ExecutorService executor, Iterator<? extends Callable<? extends R>> tasks, int concurrency,
+                   boolean failFast) {
+        if (concurrency <= 0) {
+            throw new IllegalArgumentException("concurrency must be greater than 0: " + concurrency);
+        }
+        this.executor = executor;
+        this.tasks = tasks;
+        this.concurrency = concurrency;
+        this.failFast = failFast;
+    }
+
+    /**
+     * @param executor
+     * @param tasks       任务来源, 按需读取, 可以是惰性的
+     * @param concurrency 最大并发
+     * @param failFast    任一任务失败时, 不再提交后续任务并取消执行中的任务, 返回的future以该异常完成
+     * @param <R>
+     * @return 按任务顺序的结果; 非 failFast时失败的任务记录在 errors中
+     */
+    public static <R> CompletableFuture<WatchResult<R>> run(ExecutorService executor,
+                                                            Iterator<? extends Callable<? extends R>> tasks,
+                                                            int concurrency, boolean failFast) {
+        FanOut<R> fanOut = new FanOut<>(executor, tasks, concurrency, failFast);
+        fanOut.start();
+        return fanOut.result;
+    }
+
+    private void start() {
+        result.whenComplete((r, ex) -> {
+            if (result.isCancelled()) {
+                cancelRunning();
+            }
+        });
+        synchronized (this) {
+            slots = concurrency;
+        }
+        drain();
+    }
+
+    /**
+     * 同步执行的线程池中任务完成时会重入, 重入只增加计数, 由最外层的循环继续提交, 避免每个任务加深一层调用栈
+     */
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        do {
+            while (submitNext()) {
+                // 有空闲并发且还有任务时继续提交
+            }
+        } while (wip.decrementAndGet() != 0);
+    }
+
+    /**
+     * @return 是否提交了新任务
+     */
+    private boolean submitNext() {
+        Callable<? extends R> task = null;
+        Throwable failure = null;
+        WatchResult<R> completed = null;
+        int index = -1;
+        synchronized (this) {
+            if (result.isDone() || exhausted || slots == 0) {
+                return false;
+            }
+            try {
+                if (tasks.hasNext()) {
+                    task = tasks.next();
+                } else {
+                    exhausted = true;
+                }
+            } catch (Exception e) {
+                // 任务来源异常, 后续无法继续
+                exhausted = true;
+                failure = e;
+            }
+            if (task != null) {
+                index = values.size();
+                values.add(null);
+                errors.add(null);
+                inFlight++;
+                slots--;
+            } else if (failure == null && inFlight == 0) {
+                completed = snapshot();
+            }
+        }
+        // 结果在锁外完成, 调用方的回调不会持有 this
+        if (failure != null) {
+            fail(failure);
+            return false;
+        }
+        if (task == null) {
+            if (completed != null) {
+                result.complete(completed);
+            }
+            return false;
+        }
+        final int i = index;
+        final Callable<? extends R> t = task;
+        // 先登记再提交, 任务结束时的 remove 一定在 put 之后
+        FutureTask<Void> f = new FutureTask<>(() -> execute(i, t), null);
+        running.put(i, f);
+        try {
+            executor.execute(f);
+        } catch (Exception e) {
+            // 线程池拒绝
+            running.remove(i);
+            onDone(i, null, e);
+        }
+        return true;
+    }
+
+    private void execute(int index, Callable<? extends R> task) {
+        R r = null;
+        Throwable ex = null;
+        try {
+            r = task.call();
+        } catch (Throwable e) {
+            ex = e;
+        }
+        running.remove(index);
+        onDone(index, r, ex);
+    }
+
+    private void onDone(int index, R r, Throwable ex) {
+        boolean failed = false;
+        WatchResult<R> completed = null;
+        synchronized (this) {
+            inFlight--;
+            slots++;
+            values.set(index, r);
+            errors.set(index, ex);
+            if (ex != null && failFast) {
+                failed = true;
+                exhausted = true;
+            } else if (exhausted && inFlight == 0 && !result.isDone()) {
+                completed = snapshot();
+            }
+        }
+        if (failed) {
+            fail(ex);
+        } else if (completed != null) {
+            result.complete(completed);
+        } else {
+            drain();
+        }
+    }
+
+    /**
+     * 需持有 this 的锁
+     */
+    private WatchResult<R> snapshot() {
+        return WatchResult.of(values.toArray(), errors.toArray(new Throwable[errors.size()]));
+    }
+
+    private void fail(Throwable ex) {
+        result.completeExceptionally(ex);
+        cancelRunning();
+    }
+
+    private void cancelRunning() {
+        for (Future<?> f : running.values()) {
+            f.cancel(true);
+        }
+    }
+}
@@ -0,0 +1,364 @@
+package me.heng.tool.future;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import me.heng.tool.support.ThreadSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 4:42 PM
+ *
+ * 时间轮定时器, 参考 netty 的 HashedWheelTimer
+ *
+ * 插入/取消都是 O(1), 单个 worker 线程按 tick 推进; 精度为一个 tick, 适合超时这类"大多数不会触发"的任务.
+ * 取消的任务会在下一个 tick 从桶中摘除, 不会像 ScheduledThreadPoolExecutor 那样一直滞留到期
+ */
+public class HashedWheelTimer implements Timer {
+
+    private static final Logger logger = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+    private static final int ST_INIT = 0;
+    private static final int ST_STARTED = 1;
+    private static final int ST_STOPPED = 2;
+
+    /**
+     * 每个 tick 最多转移的新任务数, 避免突发提交时 worker 迟迟不推进
+     */
+    private static final int MAX_TRANSFER_PER_TICK = 100000;
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Thread worker;
+    private final Executor executor;
+    private final AtomicInteger state = new AtomicInteger(ST_INIT);
+    private final CountDownLatch startLatch = new CountDownLatch(1);
+    private final Queue<WheelTimeout> incoming = new ConcurrentLinkedQueue<>();
+    private final Queue<WheelTimeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pending = new AtomicLong(0);
+    private final AtomicLong expired = new AtomicLong(0);
+
+    private volatile long startTime;
+    private volatile long lastTickLag;
+    private volatile long maxTickLag;
+    /**
+     * 仅 worker 线程读写
+     */
+    private long tick;
+
+    public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        this(ThreadSupport.newThreadFactory(name, true, null), tickDuration, unit, ticksPerWheel, null);
+    }
+
+    /**
+     * @param threadFactory
+     * @param tickDuration  tick 间隔, 即定时精度
+     * @param unit
+     * @param ticksPerWheel 时间轮的桶数, 向上取整到2的幂
+     * @param executor      执行到期任务, 为null时直接在 worker 线程执行
+     */
+    public HashedWheelTimer(ThreadFactory threadFactory, long tickDuration, TimeUnit unit, int ticksPerWheel,
+                            Executor executor) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("tickDuration must be greater than 0: " + tickDuration);
+        }
+        if (ticksPerWheel <= 0 || ticksPerWheel > (1 << 30)) {
+            throw new IllegalArgumentException("ticksPerWheel out of range: " + ticksPerWheel);
+        }
+        int size = 1;
+        while (size < ticksPerWheel) {
+            size <<= 1;
+        }
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.tickNanos = Math.max(unit.toNanos(tickDuration), TimeUnit.MILLISECONDS.toNanos(1));
+        this.executor = executor;
+        this.worker = threadFactory.newThread(new Worker());
+    }
+
+    @Override
+    public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        if (task == null) {
+            throw new NullPointerException("task");
+        }
+        start();
+        long deadline = System.nanoTime() + unit.toNanos(delay) - startTime;
+        if (delay > 0 && deadline < 0) {
+            // 溢出
+            deadline = Long.MAX_VALUE;
+        }
+        WheelTimeout timeout = new WheelTimeout(task, deadline);
+        pending.incrementAndGet();
+        incoming.add(timeout);
+        return timeout;
+    }
+
+    private void start() {
+        switch (state.get()) {
+            case ST_INIT:
+                if (state.compareAndSet(ST_INIT, ST_STARTED)) {
+                    worker.start();
+                }
+                break;
+            case ST_STARTED:
+                break;
+            default:
+                throw new IllegalStateException("HashedWheelTimer stopped");
+        }
+        if (startTime == 0) {
+            Uninterruptibles.awaitUninterruptibly(startLatch);
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (state.getAndSet(ST_STOPPED) == ST_STARTED) {
+            worker.interrupt();
+        }
+    }
+
+    @Override
+    public long pending() {
+        return pending.get();
+    }
+
+    /**
+     * 已触发的任务总数
+     */
+    public long expired() {
+        return expired.get();
+    }
+
+    /**
+     * 最近一个 tick 实际推进时间相对理论时间的延迟, 纳秒
+     * 持续偏大说明 worker 线程被到期任务或GC拖慢
+     */
+    public long tickLagNanos() {
+        return lastTickLag;
+    }
+
+    /**
+     * 启动以来最大的 tick 延迟, 纳秒
+     */
+    public long maxTickLagNanos() {
+        return maxTickLag;
+    }
+
+    public long tickDuration(TimeUnit unit) {
+        return unit.convert(tickNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public int wheelSize() {
+        return wheel.length;
+    }
+
+    private class Worker implements Runnable {
+
+        @Override
+        public void run() {
+            long t = System.nanoTime();
+            // 0 用作未启动标识
+            startTime = t == 0 ? 1 : t;
+            startLatch.countDown();
+
+            while (state.get() == ST_STARTED) {
+                if (waitForNextTick() < 0) {
+                    break;
+                }
+                processCancelled();
+                transferTimeouts();
+                wheel[(int) (tick & mask)].expire();
+                tick++;
+            }
+        }
+
+        /**
+         * @return 当前相对 startTime 的时间, 停止时返回 -1
+         */
+        private long waitForNextTick() {
+            long deadline = tickNanos * (tick + 1);
+            for (; ; ) {
+                long current = System.nanoTime() - startTime;
+                long sleepMillis = (deadline - current + 999999) / 1000000;
+                if (sleepMillis <= 0) {
+                    long lag = current - deadline;
+                    lastTickLag = lag;
+                    if (lag > maxTickLag) {
+                        maxTickLag = lag;
+                    }
+                    return current;
+                }
+                try {
+                    Thread.sleep(sleepMillis);
+                } catch (InterruptedException e) {
+                    if (state.get() == ST_STOPPED) {
+                        return -1;
+                    }
+                }
+            }
+        }
+
+        private void transferTimeouts() {
+            for (int i = 0; i < MAX_TRANSFER_PER_TICK; i++) {
+                WheelTimeout timeout = incoming.poll();
+                if (timeout == null) {
+                    break;
+                }
+                if (timeout.isCancelled()) {
+                    continue;
+                }
+                long calculated = timeout.deadline / tickNanos;
+                timeout.remainingRounds = (calculated - tick) / wheel.length;
+                // 已经过期的任务放到当前 tick
+                long ticks = Math.max(calculated, tick);
+                wheel[(int) (ticks & mask)].add(timeout);
+            }
+        }
+
+        private void processCancelled() {
+            for (; ; ) {
+                WheelTimeout timeout = cancelled.poll();
+                if (timeout == null) {
+                    break;
+                }
+                Bucket bucket = timeout.bucket;
+                if (bucket != null) {
+                    bucket.remove(timeout);
+                }
+            }
+        }
+    }
+
+    private final class WheelTimeout implements Timeout {
+
+        private static final int ST_WAITING = 0;
+        private static final int ST_CANCELLED = 1;
+        private static final int ST_EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger status = new AtomicInteger(ST_WAITING);
+
+        /**
+         * 以下字段仅 worker 线程读写
+         */
+        long remainingRounds;
+        WheelTimeout next;
+        WheelTimeout prev;
+        Bucket bucket;
+
+        WheelTimeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (!status.compareAndSet(ST_WAITING, ST_CANCELLED)) {
+                return false;
+            }
+            pending.decrementAndGet();
+            cancelled.add(this);
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return status.get() == ST_CANCELLED;
+        }
+
+        @Override
+        public boolean isExpired() {
+            return status.get() == ST_EXPIRED;
+        }
+
+        void expire() {
+            if (!status.compareAndSet(ST_WAITING, ST_EXPIRED)) {
+                return;
+            }
+            pending.decrementAndGet();
+            expired.incrementAndGet();
+            try {
+                if (executor != null) {
+                    executor.execute(task);
+                } else {
+                    task.run();
+                }
+            } catch (Throwable e) {
+                logger.warn("HashedWheelTimer task fail", e);
+            }
+        }
+    }
+
+    /**
+     * 双向链表的桶, 仅 worker 线程访问
+     */
+    private static final class Bucket {
+        private WheelTimeout head;
+        private WheelTimeout tail;
+
+        void add(WheelTimeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void expire() {
+            WheelTimeout timeout = head;
+            while (timeout != null) {
+                WheelTimeout next = timeout.next;
+                if (timeout.isCancelled()) {
+                    remove(timeout);
+                } else if (timeout.remainingRounds <= 0) {
+                    // 放入桶时按 deadline / tickNanos 取整, 轮到该桶时必然已到期
+                    remove(timeout);
+                    timeout.expire();
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        void remove(WheelTimeout timeout) {
+            if (timeout.bucket != this) {
+                return;
+            }
+            WheelTimeout next = timeout.next;
+            if (timeout.prev != null) {
+                timeout.prev.next = next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            }
+            if (timeout == head) {
+                head = next;
+            }
+            if (timeout == tail) {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package me.heng.tool.future;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 5:48 PM
+ *
+ * 对冲请求(hedged request), 降低长尾延迟
+ *
+ * 请求超过最近延迟的 percentile 分位仍未返回时, 再发起一次相同的请求, 取最先成功的结果并取消其余请求.
+ * 同一个后端共用一个 Hedger, 以便共享延迟统计和计数
+ *
+ * 延迟只统计首次请求本身: 整个调用的耗时已被对冲截断, 用它计算分位会让对冲延迟越算越短.
+ * 首次请求因对冲成功而被取消时, 记录取消时已经过的时间(真实延迟的下限)
+ */
+public class Hedger<R> {
+
+    /**
+     * 延迟采样窗口
+     */
+    private static final int WINDOW = 1024;
+    /**
+     * 每新增多少个样本重新计算一次分位值
+     */
+    private static final int RECOMPUTE_INTERVAL = 64;
+
+    private final double percentile;
+    private final int maxAttempts;
+    private final long minDelayMillis;
+    private final Timer timer;
+
+    private final AtomicLongArray samples = new AtomicLongArray(WINDOW);
+    private final AtomicLong sampleCount = new AtomicLong(0);
+    private volatile long delayNanos;
+
+    private final AtomicLong calls = new AtomicLong(0);
+    private final AtomicLong hedges = new AtomicLong(0);
+    private final AtomicLong hedgesWon = new AtomicLong(0);
+
+    /**
+     * @param percentile     超过该分位延迟后发起对冲, 如 0.95
+     * @param maxAttempts    总请求数上限, 包括首次请求
+     * @param minDelayMillis 对冲延迟的下限, 样本不足时使用该值
+     * @param timer
+     */
+    public Hedger(double percentile, int maxAttempts, long minDelayMillis, Timer timer) {
+        if (percentile <= 0 || percentile >= 1) {
+            throw new IllegalArgumentException("percentile must be in (0, 1): " + percentile);
+        }
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be greater than 0: " + maxAttempts);
+        }
+        this.percentile = percentile;
+        this.maxAttempts = maxAttempts;
+        this.minDelayMillis = minDelayMillis;
+        this.timer = timer;
+        this.delayNanos = TimeUnit.MILLISECONDS.toNanos(minDelayMillis);
+    }
+
+    /**
+     * @param executor 执行 callable, 为null时使用 ForkJoinPool.commonPool(); callable 不在定时器线程上执行,
+     *                 以免慢请求拖住其他定时任务
+     * @param callable 每次调用发起一次独立的请求
+     * @return
+     */
+    public CompletableFuture<R> call(ExecutorService executor, Callable<CompletableFuture<R>> callable) {
+        calls.incrementAndGet();
+        Hedge hedge = new Hedge(executor, callable);
+        hedge.result.whenComplete((r, ex) -> {
+            if (hedge.result.isCancelled()) {
+                hedge.cancelOthers(-1);
+            }
+        });
+        hedge.launch();
+        return hedge.result;
+    }
+
+    /**
+     * 当前的对冲延迟, 毫秒
+     */
+    public long hedgeDelayMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(delayNanos);
+    }
+
+    public long calls() {
+        return calls.get();
+    }
+
+    /**
+     * 发起的对冲请求数
+     */
+    public long hedges() {
+        return hedges.get();
+    }
+
+    /**
+     * 对冲请求先于首次请求成功的次数
+     */
+    public long hedgesWon() {
+        return hedgesWon.get();
+    }
+
+    private void record(long nanos) {
+        long n = sampleCount.getAndIncrement();
+        samples.set((int) (n % WINDOW), nanos);
+        if ((n + 1) % RECOMPUTE_INTERVAL == 0) {
+            recompute((int) Math.min(n + 1, WINDOW));
+        }
+    }
+
+    private void recompute(int size) {
+        long[] copy = new long[size];
+        for (int i = 0; i < size; i++) {
+            copy[i] = samples.get(i);
+        }
+        Arrays.sort(copy);
+        long p = copy[Math.min(size - 1, (int) (size * percentile))];
+        delayNanos = Math.max(p, TimeUnit.MILLISECONDS.toNanos(minDelayMillis));
+    }
+
+    private class Hedge {
+        final ExecutorService executor;
+        final Callable<CompletableFuture<R>> callable;
+        final CompletableFuture<R> result = new CompletableFuture<>();
+        final long start = System.nanoTime();
+        final AtomicInteger outstanding = new AtomicInteger(0);
+        /**
+         * 由 this 保护
+         */
+        final List<CompletableFuture<R>> attempts = new ArrayList<>(maxAttempts);
+        Timer.Timeout next;
+
+        Hedge(ExecutorService executor, Callable<CompletableFuture<R>> callable) {
+            this.executor = executor != null ? executor : ForkJoinPool.commonPool();
+            this.callable = callable;
+        }
+
+        void launch() {
+            int index;
+            CompletableFuture<R> attempt = new CompletableFuture<>();
+            synchronized (this) {
+                if (result.isDone() || attempts.size() >= maxAttempts) {
+                    return;
+                }
+                index = attempts.size();
+                attempts.add(attempt);
+                outstanding.incrementAndGet();
+                if (attempts.size() < maxAttempts) {
+                    next = timer.newTimeout(this::launch, delayNanos, TimeUnit.NANOSECONDS);
+                }
+            }
+            if (index > 0) {
+                hedges.incrementAndGet();
+            }
+            attempt.whenComplete((r, ex) -> onComplete(index, r, ex));
+            try {
+                executor.execute(() -> invoke(attempt));
+            } catch (Exception e) {
+                attempt.completeExceptionally(e);
+            }
+        }
+
+        void invoke(CompletableFuture<R> attempt) {
+            try {
+                CompletableFuture<R> f = callable.call();
+                f.whenComplete((r, ex) -> {
+                    if (ex != null) {
+                        attempt.completeExceptionally(ex);
+                    } else {
+                        attempt.complete(r);
+                    }
+                });
+                // 失败者被取消时透传给底层请求
+                attempt.whenComplete((r, ex) -> {
+                    if (attempt.isCancelled()) {
+                        f.cancel(true);
+                    }
+                });
+            } catch (Exception e) {
+                attempt.completeExceptionally(e);
+            }
+        }
+
+        void onComplete(int index, R r, Throwable ex) {
+            if (ex == null) {
+                if (index == 0) {
+                    record(System.nanoTime() - start);
+                }
+                if (result.complete(r)) {
+                    if (index > 0) {
+                        hedgesWon.incrementAndGet();
+                    }
+                    cancelOthers(index);
+                }
+            } else if (outstanding.decrementAndGet() == 0) {
+                // 没有执行中的请求, 不再等待对冲
+                synchronized (this) {
+                    if (outstanding.get() == 0) {
+                        if (next != null) {
+                            next.cancel();
+                        }
+                        result.completeExceptionally(ex);
+                    }
+                }
+            }
+        }
+
+        void cancelOthers(int winner) {
+            List<CompletableFuture<R>> others;
+            synchronized (this) {
+                if (next != null) {
+                    next.cancel();
+                }
+                others = new ArrayList<>(attempts);
+            }
+            for (int i = 0; i < others.size(); i++) {
+                if (i != winner && others.get(i).cancel(true) && i == 0 && winner > 0) {
+                    record(System.nanoTime() - start);
+                }
+            }
+        }
+    }
+}
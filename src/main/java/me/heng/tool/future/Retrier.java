@@ -0,0 +1,112 @@
+package me.heng.tool.future;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 5:32 PM
+ *
+ * 非阻塞重试: 失败后在定时器上安排下一次调用, 不占用完成 future 的线程(通常是IO线程)
+ * 定时器只负责到期后把调用转交给 executor, callable 不在定时器线程上执行
+ */
+public class Retrier<T> {
+
+    private final Callable<CompletableFuture<T>> callable;
+    private final RetryPolicy policy;
+    private final Timer timer;
+    private final Executor executor;
+    private final CompletableFuture<T> result = new CompletableFuture<>();
+    private final long deadline;
+
+    private Retrier(Callable<CompletableFuture<T>> callable, RetryPolicy policy, Timer timer, Executor executor) {
+        this.callable = callable;
+        this.policy = policy;
+        this.timer = timer;
+        this.executor = executor;
+        this.deadline = policy.deadlineMillis() > 0
+                ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(policy.deadlineMillis()) : 0L;
+    }
+
+    /**
+     * 延迟的重试在 ForkJoinPool.commonPool() 上调用 callable
+     */
+    public static <T> CompletableFuture<T> retry(Callable<CompletableFuture<T>> callable, RetryPolicy policy,
+                                                 Timer timer) {
+        return retry(callable, policy, timer, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param callable
+     * @param policy
+     * @param timer    安排重试间隔的定时器
+     * @param executor 延迟到期后在其上调用 callable, 定时器线程只做转交
+     * @param <T>
+     * @return 首个成功的结果, 或最后一次的异常
+     */
+    public static <T> CompletableFuture<T> retry(Callable<CompletableFuture<T>> callable, RetryPolicy policy,
+                                                 Timer timer, Executor executor) {
+        Retrier<T> retrier = new Retrier<>(callable, policy, timer, executor);
+        retrier.attempt(1, 0L);
+        return retrier.result;
+    }
+
+    private void attempt(int attempts, long lastDelay) {
+        if (result.isDone()) {
+            // 调用方已取消
+            return;
+        }
+        CompletableFuture<T> f;
+        try {
+            f = callable.call();
+        } catch (Exception e) {
+            f = new CompletableFuture<>();
+            f.completeExceptionally(e);
+        }
+        f.whenComplete((r, ex) -> {
+            if (ex == null) {
+                result.complete(r);
+            } else {
+                onFailure(attempts, lastDelay, ex);
+            }
+        });
+    }
+
+    private void onFailure(int attempts, long lastDelay, Throwable ex) {
+        if (attempts >= policy.maxAttempts() || !policy.shouldRetry(ex)) {
+            result.completeExceptionally(ex);
+            return;
+        }
+        long delay = policy.nextDelay(attempts, lastDelay);
+        if (deadline > 0 && System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay) >= deadline) {
+            result.completeExceptionally(ex);
+            return;
+        }
+        RetryBudget budget = policy.budget();
+        if (budget != null && !budget.tryAcquire()) {
+            result.completeExceptionally(ex);
+            return;
+        }
+        if (delay <= 0) {
+            attempt(attempts + 1, 0L);
+        } else {
+            timer.newTimeout(() -> schedule(attempts + 1, delay), delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 在定时器线程上调用, 只把 attempt 转交给 executor
+     */
+    private void schedule(int attempts, long lastDelay) {
+        try {
+            executor.execute(() -> attempt(attempts, lastDelay));
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+    }
+}
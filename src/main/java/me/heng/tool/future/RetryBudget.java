@@ -0,0 +1,85 @@
+package me.heng.tool.future;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 5:20 PM
+ *
+ * 重试预算, 令牌桶实现, 多个调用方共享
+ *
+ * 下游故障时所有请求都会失败重试, 没有预算的话请求量会被放大 maxAttempts 倍; 令牌耗尽后直接失败, 不再重试
+ */
+public class RetryBudget {
+
+    private final double capacity;
+    private final double tokensPerNano;
+    private double tokens;
+    private long lastRefill;
+
+    private final AtomicLong acquired = new AtomicLong(0);
+    private final AtomicLong rejected = new AtomicLong(0);
+
+    /**
+     * @param capacity        桶容量, 即允许的突发重试数
+     * @param tokensPerSecond 每秒补充的令牌数, 即稳定状态下每秒允许的重试数
+     */
+    public RetryBudget(int capacity, double tokensPerSecond) {
+        if (capacity <= 0 || tokensPerSecond <= 0) {
+            throw new IllegalArgumentException("capacity and tokensPerSecond must be greater than 0");
+        }
+        this.capacity = capacity;
+        this.tokensPerNano = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * 申请一次重试
+     *
+     * @return false 表示预算耗尽
+     */
+    public boolean tryAcquire() {
+        boolean ok;
+        synchronized (this) {
+            refill();
+            ok = tokens >= 1d;
+            if (ok) {
+                tokens -= 1d;
+            }
+        }
+        if (ok) {
+            acquired.incrementAndGet();
+        } else {
+            rejected.incrementAndGet();
+        }
+        return ok;
+    }
+
+    /**
+     * 当前可用的令牌数
+     */
+    public synchronized double available() {
+        refill();
+        return tokens;
+    }
+
+    public long acquired() {
+        return acquired.get();
+    }
+
+    public long rejected() {
+        return rejected.get();
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        long elapsed = now - lastRefill;
+        if (elapsed > 0) {
+            tokens = Math.min(capacity, tokens + elapsed * tokensPerNano);
+            lastRefill = now;
+        }
+    }
+}
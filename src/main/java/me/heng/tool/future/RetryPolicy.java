@@ -0,0 +1,142 @@
+package me.heng.tool.future;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 5:25 PM
+ *
+ * 重试策略, 不可变, 通过 with* 方法派生
+ */
+public class RetryPolicy {
+
+    public enum Jitter {
+        /**
+         * 不加随机
+         */
+        NONE,
+        /**
+         * [0, 指数退避值) 内均匀随机
+         */
+        FULL,
+        /**
+         * [base, 上次间隔 * 3) 内均匀随机, 参见 aws 的 Exponential Backoff And Jitter
+         */
+        DECORRELATED
+    }
+
+    private final int maxAttempts;
+    private final long baseMillis;
+    private final long maxMillis;
+    private final Jitter jitter;
+    private final long deadlineMillis;
+    private final RetryBudget budget;
+    private final Predicate<Throwable> retryOn;
+
+    private RetryPolicy(int maxAttempts, long baseMillis, long maxMillis, Jitter jitter, long deadlineMillis,
+                        RetryBudget budget, Predicate<Throwable> retryOn) {
+        this.maxAttempts = maxAttempts;
+        this.baseMillis = baseMillis;
+        this.maxMillis = maxMillis;
+        this.jitter = jitter;
+        this.deadlineMillis = deadlineMillis;
+        this.budget = budget;
+        this.retryOn = retryOn;
+    }
+
+    /**
+     * @param maxAttempts 总调用次数, 包括一次正常调用
+     */
+    public static RetryPolicy of(int maxAttempts) {
+        return new RetryPolicy(maxAttempts, 0, 0, Jitter.NONE, 0, null, null);
+    }
+
+    /**
+     * 固定间隔
+     */
+    public RetryPolicy withFixedDelay(long millis) {
+        return new RetryPolicy(maxAttempts, millis, millis, jitter, deadlineMillis, budget, retryOn);
+    }
+
+    /**
+     * 指数退避, 第n次重试间隔 base * 2^(n-1), 不超过 max
+     */
+    public RetryPolicy withBackoff(long baseMillis, long maxMillis) {
+        return new RetryPolicy(maxAttempts, baseMillis, Math.max(baseMillis, maxMillis), jitter, deadlineMillis,
+                budget, retryOn);
+    }
+
+    public RetryPolicy withJitter(Jitter jitter) {
+        return new RetryPolicy(maxAttempts, baseMillis, maxMillis, jitter, deadlineMillis, budget, retryOn);
+    }
+
+    /**
+     * 从第一次调用开始计算的总时限, 剩余时间不足下一次间隔时不再重试
+     */
+    public RetryPolicy withDeadline(long millis) {
+        return new RetryPolicy(maxAttempts, baseMillis, maxMillis, jitter, millis, budget, retryOn);
+    }
+
+    public RetryPolicy withBudget(RetryBudget budget) {
+        return new RetryPolicy(maxAttempts, baseMillis, maxMillis, jitter, deadlineMillis, budget, retryOn);
+    }
+
+    /**
+     * 判断异常是否重试, null表示全部重试
+     */
+    public RetryPolicy retryOn(Predicate<Throwable> p) {
+        return new RetryPolicy(maxAttempts, baseMillis, maxMillis, jitter, deadlineMillis, budget, p);
+    }
+
+    public int maxAttempts() {
+        return maxAttempts;
+    }
+
+    public long deadlineMillis() {
+        return deadlineMillis;
+    }
+
+    public RetryBudget budget() {
+        return budget;
+    }
+
+    public boolean shouldRetry(Throwable ex) {
+        return retryOn == null || retryOn.test(ex);
+    }
+
+    /**
+     * @param retries   第几次重试, 从1开始
+     * @param lastDelay 上一次的间隔, 首次为0
+     * @return 本次重试前等待的毫秒数
+     */
+    public long nextDelay(int retries, long lastDelay) {
+        if (maxMillis <= 0) {
+            return 0;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        switch (jitter) {
+            case DECORRELATED: {
+                long upper = Math.min(maxMillis, Math.max(baseMillis, lastDelay) * 3);
+                return upper > baseMillis ? random.nextLong(baseMillis, upper + 1) : baseMillis;
+            }
+            case FULL: {
+                long exp = exponential(retries);
+                return exp > 0 ? random.nextLong(exp + 1) : 0;
+            }
+            default:
+                return exponential(retries);
+        }
+    }
+
+    private long exponential(int retries) {
+        int shift = Math.min(Math.max(retries - 1, 0), 62);
+        long delay = baseMillis << shift;
+        if (delay < 0 || (delay >> shift) != baseMillis) {
+            // 溢出
+            return maxMillis;
+        }
+        return Math.min(delay, maxMillis);
+    }
+}
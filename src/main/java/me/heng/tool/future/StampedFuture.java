@@ -1,28 +1,70 @@
 package me.heng.tool.future;
 
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 /**
  * AUTHOR: wangdi
  * DATE: 15/06/2018
  * TIME: 4:33 PM
  * 带时间戳的completableFuture
+ *
+ * 计时基于 System.nanoTime(), 不受系统时间调整影响; start()/finished() 仍返回毫秒时间戳, 由开始时的墙上时间推算.
+ * 分为三段: 排队(创建到 markRunning), 执行(markRunning 到完成), 完成回调(complete 中同步执行下游回调的耗时)
  */
 public class StampedFuture<T> extends CompletableFuture<T> {
 
-    private long innerStart;
-    private long innerFinish = -1L;
+    /**
+     * 完成时的回调, 用于上报延迟
+     */
+    @FunctionalInterface
+    public interface LatencySink {
+        void record(String name, StampedFuture<?> future);
+    }
+
+    private volatile long innerStartMillis;
+    private volatile long innerStart;
+    private volatile long innerRunning = -1L;
+    private volatile long innerFinish = -1L;
+    private volatile long innerCallbackDone = -1L;
+    /**
+     * 链式调用的起点, 整条链的总耗时从这里计算
+     */
+    private final long innerOrigin;
+    /**
+     * 链式的上一阶段, 本阶段完成时以其完成时间作为本阶段的开始
+     */
+    private volatile StampedFuture<?> innerPrev;
+    private volatile String name;
+    private volatile LatencySink sink;
 
     public StampedFuture() {
         super();
-        innerStart = now();
+        innerStartMillis = System.currentTimeMillis();
+        innerStart = nanoTime();
+        innerOrigin = innerStart;
+    }
+
+    /**
+     * 链式的下一阶段, 从上一阶段完成时开始计时; sink 不继承, 避免一条链重复上报
+     */
+    private StampedFuture(StampedFuture<?> prev) {
+        super();
+        long finish = prev.innerFinish;
+        innerStart = finish > 0 ? finish : nanoTime();
+        innerStartMillis = prev.innerStartMillis + TimeUnit.NANOSECONDS.toMillis(innerStart - prev.innerStart);
+        innerOrigin = prev.innerOrigin;
+        innerPrev = prev;
     }
 
     /**
      * 返回开始时间
      */
     public long start() {
-        return innerStart;
+        return innerStartMillis;
     }
 
     /**
@@ -31,46 +73,201 @@ public class StampedFuture<T> extends CompletableFuture<T> {
      * @return
      */
     public long finished() {
-        return innerFinish;
+        long finish = innerFinish;
+        if (finish < 0) {
+            return -1L;
+        }
+        return innerStartMillis + TimeUnit.NANOSECONDS.toMillis(finish - innerStart);
     }
 
+    /**
+     * 本阶段耗时, 毫秒
+     */
     public long elapsed() {
-        if (innerFinish > 0) {
-            return innerFinish - innerStart;
-        }
-        return now() - innerStart;
+        return TimeUnit.NANOSECONDS.toMillis(elapsedNanos());
+    }
+
+    public long elapsedNanos() {
+        long finish = innerFinish;
+        return (finish > 0 ? finish : nanoTime()) - innerStart;
+    }
+
+    /**
+     * 从链的起点到本阶段完成的耗时, 纳秒
+     */
+    public long totalNanos() {
+        long finish = innerFinish;
+        return (finish > 0 ? finish : nanoTime()) - innerOrigin;
+    }
+
+    /**
+     * 标记开始执行, 之前的时间计为排队
+     */
+    public StampedFuture<T> markRunning() {
+        innerRunning = nanoTime();
+        return this;
+    }
+
+    /**
+     * 排队耗时, 未调用 markRunning 时为0
+     */
+    public long queueNanos() {
+        long running = innerRunning;
+        return running > 0 ? running - innerStart : 0L;
+    }
+
+    /**
+     * 执行耗时, 未完成时到当前为止
+     */
+    public long executionNanos() {
+        long running = innerRunning;
+        long begin = running > 0 ? running : innerStart;
+        long finish = innerFinish;
+        return (finish > 0 ? finish : nanoTime()) - begin;
+    }
+
+    /**
+     * complete 时同步执行下游回调的耗时, 未完成时为0
+     */
+    public long callbackNanos() {
+        long done = innerCallbackDone;
+        return done > 0 ? done - innerFinish : 0L;
+    }
+
+    /**
+     * 完成时上报到 sink
+     */
+    public StampedFuture<T> sink(String name, LatencySink sink) {
+        this.name = name;
+        this.sink = sink;
+        return this;
+    }
+
+    public String name() {
+        return name;
     }
 
     @Override
     public boolean complete(T value) {
-        innerFinish = now();
-        return super.complete(value);
+        stamp();
+        return afterComplete(super.complete(value));
     }
 
     @Override
     public boolean completeExceptionally(Throwable ex) {
-        innerFinish = now();
-        return super.completeExceptionally(ex);
+        stamp();
+        return afterComplete(super.completeExceptionally(ex));
     }
 
     @Override
     public boolean cancel(boolean mayInterruptIfRunning) {
-        innerFinish = now();
-        return super.cancel(mayInterruptIfRunning);
+        stamp();
+        return afterComplete(super.cancel(mayInterruptIfRunning));
+    }
+
+    @Override
+    public <U> StampedFuture<U> thenApply(Function<? super T, ? extends U> fn) {
+        return next(super.thenApply(fn));
+    }
+
+    @Override
+    public <U> StampedFuture<U> thenApplyAsync(Function<? super T, ? extends U> fn) {
+        return next(super.thenApplyAsync(fn));
+    }
+
+    @Override
+    public <U> StampedFuture<U> thenApplyAsync(Function<? super T, ? extends U> fn, Executor executor) {
+        return next(super.thenApplyAsync(fn, executor));
+    }
+
+    @Override
+    public <U> StampedFuture<U> thenCompose(Function<? super T, ? extends CompletionStage<U>> fn) {
+        return next(super.thenCompose(fn));
+    }
+
+    @Override
+    public <U> StampedFuture<U> thenComposeAsync(Function<? super T, ? extends CompletionStage<U>> fn) {
+        return next(super.thenComposeAsync(fn));
+    }
+
+    @Override
+    public <U> StampedFuture<U> thenComposeAsync(Function<? super T, ? extends CompletionStage<U>> fn,
+                                                 Executor executor) {
+        return next(super.thenComposeAsync(fn, executor));
+    }
+
+    private <U> StampedFuture<U> next(CompletableFuture<U> f) {
+        StampedFuture<U> next = new StampedFuture<>(this);
+        f.whenComplete((u, ex) -> {
+            if (ex == null) {
+                next.complete(u);
+            } else {
+                next.completeExceptionally(ex);
+            }
+        });
+        return next;
+    }
+
+    /**
+     * 只记录首次完成的时间
+     */
+    private void stamp() {
+        if (innerFinish < 0 && !isDone()) {
+            synchronized (this) {
+                if (innerFinish < 0) {
+                    StampedFuture<?> prev = innerPrev;
+                    if (prev != null) {
+                        long prevFinish = prev.innerFinish;
+                        if (prevFinish > innerStart) {
+                            innerStartMillis += TimeUnit.NANOSECONDS.toMillis(prevFinish - innerStart);
+                            innerStart = prevFinish;
+                        }
+                        innerPrev = null;
+                    }
+                    innerFinish = nanoTime();
+                }
+            }
+        }
+    }
+
+    private boolean afterComplete(boolean completed) {
+        if (completed) {
+            innerCallbackDone = nanoTime();
+            LatencySink s = sink;
+            if (s != null) {
+                try {
+                    s.record(name, this);
+                } catch (RuntimeException e) {
+                    // 统计失败不影响业务
+                }
+            }
+        }
+        return completed;
     }
 
     /**
      * 重设时间
      *
-     * @return 返回之前的 innerStart
+     * @return 返回之前的 innerStart, 毫秒
      */
     public long reset() {
-        long t = innerStart;
-        innerStart = now();
+        long t = innerStartMillis;
+        innerStartMillis = System.currentTimeMillis();
+        innerStart = nanoTime();
+        innerRunning = -1L;
         return t;
     }
 
     public static long now() {
         return System.currentTimeMillis();
     }
-}
\ No newline at end of file
+
+    /**
+     * 单调时钟, 相对类加载时刻, 恒为正数(System.nanoTime 可能为负, 无法用 -1 表示未设置)
+     */
+    public static long nanoTime() {
+        return System.nanoTime() - NANO_ORIGIN;
+    }
+
+    private static final long NANO_ORIGIN = System.nanoTime() - 1L;
+}
@@ -0,0 +1,47 @@
+package me.heng.tool.future;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 4:40 PM
+ *
+ * 定时器抽象, 用于大量短生命周期的超时任务(rpc超时、重试间隔等)
+ */
+public interface Timer {
+
+    /**
+     * 延迟 delay 后执行 task
+     *
+     * @param task  在定时器线程执行, 需要足够轻量
+     * @param delay
+     * @param unit
+     * @return 可取消的句柄
+     */
+    Timeout newTimeout(Runnable task, long delay, TimeUnit unit);
+
+    /**
+     * 尚未到期且未取消的任务数
+     */
+    long pending();
+
+    /**
+     * 停止定时器, 未到期的任务不再执行
+     */
+    void stop();
+
+    interface Timeout {
+
+        /**
+         * 取消任务
+         *
+         * @return 已到期或已取消时返回false
+         */
+        boolean cancel();
+
+        boolean isCancelled();
+
+        boolean isExpired();
+    }
+}
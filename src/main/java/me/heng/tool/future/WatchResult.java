@@ -0,0 +1,97 @@
+package me.heng.tool.future;
+
+import java.util.AbstractList;
+import java.util.List;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 4:50 PM
+ *
+ * 批量 future 的结果, 按输入顺序存放, 值与异常分开两个数组, 不为每个结果分配 Pair
+ */
+public class WatchResult<V> {
+
+    private final Object[] values;
+    private final Throwable[] errors;
+
+    WatchResult(Object[] values, Throwable[] errors) {
+        this.values = values;
+        this.errors = errors;
+    }
+
+    public static <V> WatchResult<V> of(Object[] values, Throwable[] errors) {
+        if (values.length != errors.length) {
+            throw new IllegalArgumentException("values.length != errors.length");
+        }
+        return new WatchResult<>(values, errors);
+    }
+
+    public int size() {
+        return values.length;
+    }
+
+    /**
+     * 第 i 个输入的结果, 失败时为null
+     */
+    @SuppressWarnings("unchecked")
+    public V value(int i) {
+        return (V) values[i];
+    }
+
+    /**
+     * 第 i 个输入的异常, 成功时为null
+     */
+    public Throwable error(int i) {
+        return errors[i];
+    }
+
+    public boolean isFailed(int i) {
+        return errors[i] != null;
+    }
+
+    public int failedCount() {
+        int n = 0;
+        for (Throwable error : errors) {
+            if (error != null) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * 按输入顺序的值视图, 不拷贝
+     */
+    public List<V> values() {
+        return new AbstractList<V>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public V get(int index) {
+                return (V) values[index];
+            }
+
+            @Override
+            public int size() {
+                return values.length;
+            }
+        };
+    }
+
+    /**
+     * 按输入顺序的异常视图, 不拷贝
+     */
+    public List<Throwable> errors() {
+        return new AbstractList<Throwable>() {
+            @Override
+            public Throwable get(int index) {
+                return errors[index];
+            }
+
+            @Override
+            public int size() {
+                return errors.length;
+            }
+        };
+    }
+}
@@ -0,0 +1,255 @@
+package me.heng.tool.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 6:05 PM
+ *
+ * 延迟直方图, 参考 HdrHistogram 的对数-线性分桶
+ *
+ * 每个2的幂区间再均分32个子桶, 相对误差约 3%; 0~2^63 纳秒共 1888 个桶.
+ * 写入按线程 id 分散到固定数量(不少于cpu核数)的分片, 分片在首次写入时分配, 数量不随线程数增长;
+ * snapshot 时合并所有分片, 不需要暂停写入
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+    private static final int MAX_SHARDS = 64;
+    private static final int SHARDS = shardCount();
+
+    private final String name;
+    private final AtomicReferenceArray<Shard> shards = new AtomicReferenceArray<>(SHARDS);
+    /**
+     * 上一次 intervalSnapshot 时的合并结果, 由 this 保护
+     */
+    private long[] lastCounts = new long[BUCKETS];
+    private long lastSum;
+
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    /**
+     * 记录一次耗时
+     *
+     * @param nanos 小于0时忽略
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            return;
+        }
+        shard().record(nanos);
+    }
+
+    public void record(long duration, TimeUnit unit) {
+        record(unit.toNanos(duration));
+    }
+
+    /**
+     * 启动以来的累计分布
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        long sum = merge(counts);
+        return new Snapshot(name, counts, sum, maxOfShards());
+    }
+
+    /**
+     * 自上一次调用以来的分布, 适合定时上报
+     */
+    public synchronized Snapshot intervalSnapshot() {
+        long[] counts = new long[BUCKETS];
+        long sum = merge(counts);
+        long[] delta = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            delta[i] = counts[i] - lastCounts[i];
+        }
+        long deltaSum = sum - lastSum;
+        lastCounts = counts;
+        lastSum = sum;
+        return new Snapshot(name, delta, deltaSum, -1L);
+    }
+
+    private long merge(long[] counts) {
+        long sum = 0;
+        for (int s = 0; s < SHARDS; s++) {
+            Shard shard = shards.get(s);
+            if (shard == null) {
+                continue;
+            }
+            AtomicLongArray c = shard.counts;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] += c.get(i);
+            }
+            sum += shard.sum.get();
+        }
+        return sum;
+    }
+
+    private long maxOfShards() {
+        long max = 0;
+        for (int s = 0; s < SHARDS; s++) {
+            Shard shard = shards.get(s);
+            if (shard != null) {
+                max = Math.max(max, shard.max.get());
+            }
+        }
+        return max;
+    }
+
+    private Shard shard() {
+        long id = Thread.currentThread().getId();
+        int index = (int) (id ^ (id >>> 16)) * 0x9E3779B9 >>> 16 & (SHARDS - 1);
+        Shard shard = shards.get(index);
+        if (shard == null) {
+            shard = new Shard();
+            if (!shards.compareAndSet(index, null, shard)) {
+                shard = shards.get(index);
+            }
+        }
+        return shard;
+    }
+
+    private static int shardCount() {
+        int n = 1;
+        while (n < Runtime.getRuntime().availableProcessors() && n < MAX_SHARDS) {
+            n <<= 1;
+        }
+        return n;
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exp - SUB_BITS;
+        int mantissa = (int) ((value >>> shift) & (SUB_COUNT - 1));
+        return (shift + 1) * SUB_COUNT + mantissa;
+    }
+
+    /**
+     * 桶内的最大值
+     */
+    static long bucketUpperBound(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_COUNT - 1;
+        long mantissa = index % SUB_COUNT;
+        return ((SUB_COUNT + mantissa + 1) << shift) - 1;
+    }
+
+    /**
+     * 多个线程可能落在同一分片, 计数用原子操作
+     */
+    private static final class Shard {
+        final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        final AtomicLong sum = new AtomicLong(0);
+        final AtomicLong max = new AtomicLong(0);
+
+        void record(long nanos) {
+            counts.incrementAndGet(bucketIndex(nanos));
+            sum.addAndGet(nanos);
+            long current = max.get();
+            while (nanos > current && !max.compareAndSet(current, nanos)) {
+                current = max.get();
+            }
+        }
+    }
+
+    /**
+     * 不可变的分布快照, 时间单位纳秒
+     */
+    public static class Snapshot {
+        private final String name;
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        Snapshot(String name, long[] counts, long sum, long max) {
+            this.name = name;
+            this.counts = counts;
+            long n = 0;
+            int highest = -1;
+            for (int i = 0; i < counts.length; i++) {
+                n += counts[i];
+                if (counts[i] > 0) {
+                    highest = i;
+                }
+            }
+            this.count = n;
+            this.sum = sum;
+            // 区间快照没有精确最大值, 取最高非空桶的上界
+            this.max = max >= 0 ? max : (highest >= 0 ? bucketUpperBound(highest) : 0L);
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        public double mean() {
+            return count == 0 ? 0d : (double) sum / count;
+        }
+
+        public long max() {
+            return max;
+        }
+
+        /**
+         * @param q 分位, 如 0.99
+         * @return 该分位对应桶的上界, 不超过 max
+         */
+        public long percentile(double q) {
+            if (count == 0) {
+                return 0L;
+            }
+            long rank = (long) Math.ceil(q * count);
+            if (rank < 1) {
+                rank = 1;
+            }
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(bucketUpperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        public long p50() {
+            return percentile(0.5);
+        }
+
+        public long p99() {
+            return percentile(0.99);
+        }
+
+        public long p999() {
+            return percentile(0.999);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s count=%d mean=%.3fms p50=%.3fms p99=%.3fms p999=%.3fms max=%.3fms", name,
+                    count, mean() / 1e6, p50() / 1e6, p99() / 1e6, p999() / 1e6, max / 1e6);
+        }
+    }
+}
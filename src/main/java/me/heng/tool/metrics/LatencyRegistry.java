@@ -0,0 +1,66 @@
+package me.heng.tool.metrics;
+
+import me.heng.tool.future.StampedFuture;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 6:20 PM
+ *
+ * 按名称管理的延迟直方图
+ */
+public class LatencyRegistry {
+
+    private static final ConcurrentMap<String, LatencyHistogram> HISTOGRAMS = new ConcurrentHashMap<>();
+
+    /**
+     * StampedFuture 完成时记录: name 记执行耗时, name.queue 记排队耗时(调用过 markRunning 时)
+     */
+    private static final StampedFuture.LatencySink SINK = (name, future) -> {
+        histogram(name).record(future.executionNanos());
+        long queue = future.queueNanos();
+        if (queue > 0) {
+            histogram(name + ".queue").record(queue);
+        }
+    };
+
+    public static LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = HISTOGRAMS.get(name);
+        if (histogram == null) {
+            histogram = HISTOGRAMS.computeIfAbsent(name, LatencyHistogram::new);
+        }
+        return histogram;
+    }
+
+    public static void record(String name, long nanos) {
+        histogram(name).record(nanos);
+    }
+
+    /**
+     * 将 future 的耗时记录到 name 对应的直方图
+     */
+    public static <T> StampedFuture<T> attach(StampedFuture<T> future, String name) {
+        return future.sink(name, SINK);
+    }
+
+    public static StampedFuture.LatencySink sink() {
+        return SINK;
+    }
+
+    public static List<LatencyHistogram.Snapshot> snapshots() {
+        List<LatencyHistogram.Snapshot> list = new ArrayList<>(HISTOGRAMS.size());
+        for (LatencyHistogram histogram : HISTOGRAMS.values()) {
+            list.add(histogram.snapshot());
+        }
+        return list;
+    }
+
+    public static LatencyHistogram remove(String name) {
+        return HISTOGRAMS.remove(name);
+    }
+}
@@ -0,0 +1,151 @@
+package me.heng.tool.support;
+
+import java.util.Iterator;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+/**
+ * 异步的分页 Iterable, 页的查询返回 CompletableFuture, 遍历过程不占用线程
+ * 上一页被消费完才查询下一页, 消费慢时自然形成背压
+ *
+ * 对应的阻塞版本见 LazyIterable.CachedIterable, 转成 akka Source 见 AkkaSupport.source
+ *
+ * @param <T>
+ */
+public interface AsyncLazyIterable<T> {
+
+    AsyncIterator<T> iterator();
+
+    /**
+     * 逐个异步消费, consumer 返回的 future 完成之后才消费下一个元素
+     *
+     * @return 全部消费完成; 查询或消费失败时以该异常完成; 可取消, 取消后不再查询和消费
+     */
+    default CompletableFuture<Void> forEachAsync(Function<? super T, ? extends CompletionStage<?>> consumer) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        new ForEachLoop<>(iterator(), consumer, result).run();
+        return result;
+    }
+
+    interface AsyncIterator<T> {
+        /**
+         * 上一次返回的 future 完成之前不能再次调用
+         *
+         * @return 完成值为 null 表示没有更多数据
+         */
+        CompletableFuture<Iterator<T>> nextPage();
+    }
+
+    /**
+     * 查询到空页后结束
+     */
+    abstract class AbstractAsyncCachedIterator<T> implements AsyncIterator<T> {
+
+        private volatile boolean finished;
+
+        @Override
+        public CompletableFuture<Iterator<T>> nextPage() {
+            if (finished) {
+                return CompletableFuture.completedFuture(null);
+            }
+            return query().thenApply(page -> {
+                if (page == null || page.hasNext() == false) {
+                    finished = true;
+                    return null;
+                }
+                return page;
+            });
+        }
+
+        public abstract CompletableFuture<Iterator<T>> query();
+    }
+
+    /**
+     * 按页号查询的异步分页源, 每次 iterator() 从 firstPage 开始
+     *
+     * @param query 页号 => 该页数据, 空或null表示结束
+     */
+    static <T> AsyncLazyIterable<T> paged(int firstPage, IntFunction<CompletableFuture<Iterator<T>>> query) {
+        return () -> new AbstractAsyncCachedIterator<T>() {
+            int page = firstPage;
+
+            @Override
+            public CompletableFuture<Iterator<T>> query() {
+                return query.apply(page++);
+            }
+        };
+    }
+
+    /**
+     * 已完成的 future 在循环中直接处理, 未完成的注册回调后返回, 避免同步完成时递归过深
+     */
+    final class ForEachLoop<T> {
+        private final AsyncIterator<T> it;
+        private final Function<? super T, ? extends CompletionStage<?>> consumer;
+        private final CompletableFuture<Void> result;
+        private Iterator<T> page;
+
+        ForEachLoop(AsyncIterator<T> it, Function<? super T, ? extends CompletionStage<?>> consumer,
+                    CompletableFuture<Void> result) {
+            this.it = it;
+            this.consumer = consumer;
+            this.result = result;
+        }
+
+        void run() {
+            while (result.isDone() == false) {
+                CompletableFuture<?> future;
+                boolean fetching = page == null || page.hasNext() == false;
+                try {
+                    if (fetching) {
+                        future = it.nextPage();
+                    } else {
+                        future = consumer.apply(page.next()).toCompletableFuture();
+                    }
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                    return;
+                }
+                if (future.isDone() == false) {
+                    future.whenComplete((v, e) -> {
+                        if (e != null) {
+                            result.completeExceptionally(ExceptionSupport.unwrap(e));
+                        } else if (accept(fetching, v)) {
+                            run();
+                        }
+                    });
+                    return;
+                }
+                Object val;
+                try {
+                    val = future.join();
+                } catch (CompletionException | CancellationException e) {
+                    result.completeExceptionally(ExceptionSupport.unwrap(e));
+                    return;
+                }
+                if (accept(fetching, val) == false) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return 是否继续
+         */
+        @SuppressWarnings("unchecked")
+        private boolean accept(boolean fetching, Object val) {
+            if (fetching) {
+                if (val == null) {
+                    result.complete(null);
+                    return false;
+                }
+                page = (Iterator<T>) val;
+            }
+            return true;
+        }
+    }
+}
@@ -2,15 +2,41 @@ package me.heng.tool.support;
 
 import com.google.common.base.Strings;
 import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.common.cache.RemovalListener;
+import com.google.common.cache.ForwardingLoadingCache;
+import com.google.common.collect.ForwardingConcurrentMap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import me.heng.tool.cache.BatchLoader;
+import me.heng.tool.cache.BatchingCache;
+import me.heng.tool.cache.CacheMaintainer;
+import me.heng.tool.cache.CacheMetrics;
+import me.heng.tool.cache.CacheRegistry;
+import me.heng.tool.cache.CacheStore;
+import me.heng.tool.cache.InvalidationBus;
+import me.heng.tool.cache.OffHeapCache;
+import me.heng.tool.cache.Serializer;
+import me.heng.tool.cache.TinyLfuLoadingCache;
+import me.heng.tool.cache.TinyLfuMap;
+import me.heng.tool.cache.TwoTierCache;
 import me.heng.tool.function.ThrowableFunction;
 import org.apache.commons.lang3.tuple.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
@@ -23,18 +49,235 @@ import static me.heng.tool.support.BaseSupport.now;
  */
 public class BaseGuavaCacheSupport {
 
+    private static final Logger logger = LoggerFactory.getLogger(BaseGuavaCacheSupport.class);
+
+    /**
+     * 缓存实现
+     */
+    public enum Engine {
+        /**
+         * guava CacheBuilder, 分段LRU
+         */
+        GUAVA,
+        /**
+         * W-TinyLFU, 见 TinyLfuMap; 扫描型、频率倾斜的访问下命中率更高, 写入竞争更小
+         */
+        TINY_LFU
+    }
 
     public static <K, V> LoadingCache<K, V> guavaCache(int size, int timeout,
                                                        ThrowableFunction<K, V, ? extends Exception> getter) {
-        return CacheBuilder.newBuilder().maximumSize(size)
-                .expireAfterWrite(timeout, TimeUnit.SECONDS).build(new CacheLoader<K, V>() {
+        return guavaCache(Engine.GUAVA, size, timeout, getter);
+    }
+
+    public static <K, V> LoadingCache<K, V> guavaCache(Engine engine, int size, int timeout,
+                                                       ThrowableFunction<K, V, ? extends Exception> getter) {
+        return guavaCache(engine, null, size, timeout, getter);
+    }
+
+    /**
+     * @param name 非空时注册到 CacheRegistry, 记录命中率、加载耗时和移除原因
+     */
+    public static <K, V> LoadingCache<K, V> guavaCache(Engine engine, String name, int size, int timeout,
+                                                       ThrowableFunction<K, V, ? extends Exception> getter) {
+        CacheMetrics metrics = Strings.isNullOrEmpty(name) ? null : new CacheMetrics(name, size);
+        CacheLoader<K, V> loader = new CacheLoader<K, V>() {
+            @Override
+            public V load(K key) throws Exception {
+                if (metrics == null) {
+                    return getter.apply(key);
+                }
+                long start = System.nanoTime();
+                boolean success = false;
+                try {
+                    V val = getter.apply(key);
+                    success = val != null;
+                    return val;
+                } finally {
+                    metrics.recordLoad(System.nanoTime() - start, success);
+                }
+            }
+        };
+        LoadingCache<K, V> cache;
+        if (engine == Engine.TINY_LFU) {
+            RemovalListener<K, V> listener = metrics == null ? null : metrics.removalListener(null);
+            cache = new TinyLfuLoadingCache<>(new TinyLfuMap<>(size, timeout, 0, TimeUnit.SECONDS, listener), loader);
+        } else {
+            CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder().maximumSize(size)
+                    .expireAfterWrite(timeout, TimeUnit.SECONDS);
+            cache = metrics == null ? builder.build(loader)
+                    : builder.removalListener(metrics.<K, V>removalListener(null)).build(loader);
+        }
+        if (metrics == null) {
+            return cache;
+        }
+        MeteredLoadingCache<K, V> metered = new MeteredLoadingCache<>(cache, metrics);
+        CacheRegistry.register(metrics.bind(metered, LoadingCache::size));
+        return metered;
+    }
+
+    /**
+     * 记录命中和未命中, 未命中时多一次查找
+     */
+    private static class MeteredLoadingCache<K, V> extends ForwardingLoadingCache.SimpleForwardingLoadingCache<K, V> {
+        private final CacheMetrics metrics;
+
+        MeteredLoadingCache(LoadingCache<K, V> delegate, CacheMetrics metrics) {
+            super(delegate);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public V get(K key) throws ExecutionException {
+            V val = delegate().getIfPresent(key);
+            if (val != null) {
+                metrics.recordHit();
+                return val;
+            }
+            metrics.recordMiss();
+            return delegate().get(key);
+        }
+
+        @Override
+        public V getUnchecked(K key) {
+            V val = delegate().getIfPresent(key);
+            if (val != null) {
+                metrics.recordHit();
+                return val;
+            }
+            metrics.recordMiss();
+            return delegate().getUnchecked(key);
+        }
+
+        @Override
+        public V apply(K key) {
+            return getUnchecked(key);
+        }
+
+        @Override
+        public V getIfPresent(Object key) {
+            V val = delegate().getIfPresent(key);
+            if (val != null) {
+                metrics.recordHit();
+            } else {
+                metrics.recordMiss();
+            }
+            return val;
+        }
+
+        /**
+         * 已在cache中的计为命中, 其余计为未命中; 加载耗时由 loader 记录
+         */
+        @Override
+        public ImmutableMap<K, V> getAll(Iterable<? extends K> keys) throws ExecutionException {
+            ImmutableSet<K> distinct = ImmutableSet.copyOf(keys);
+            int present = delegate().getAllPresent(distinct).size();
+            for (int i = 0; i < present; i++) {
+                metrics.recordHit();
+            }
+            for (int i = present; i < distinct.size(); i++) {
+                metrics.recordMiss();
+            }
+            return delegate().getAll(distinct);
+        }
+
+        /**
+         * 经 map 视图的读取同样计入指标
+         */
+        @Override
+        public ConcurrentMap<K, V> asMap() {
+            return new CacheMap<>(this, delegate().asMap(), metrics);
+        }
+    }
+
+    /**
+     * 批量加载的默认参数
+     */
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    public static final long DEFAULT_BATCH_LINGER_MILLIS = 2;
+
+    private static final ExecutorService BATCH_EXECUTOR = ThreadSupport.infiniteIO("cacheBatch");
+
+    /**
+     * 批量加载的 LoadingCache: getAll 的未命中一次批量加载, 并发的 get 未命中也合并成批
+     *
+     * @param size
+     * @param timeout         写入后过期, 秒
+     * @param maxBatchSize    单批最多的key数量
+     * @param maxLingerMillis 凑批最多等待的时间
+     * @param executor        执行 loader
+     * @param loader          与 guava 一致, 返回的map缺少的key在 getAll 时抛出 InvalidCacheLoadException
+     * @return
+     */
+    public static <K, V> LoadingCache<K, V> batchGuavaCache(int size, int timeout, int maxBatchSize,
+                                                            long maxLingerMillis, Executor executor,
+                                                            Function<Collection<K>, Map<K, V>> loader) {
+        BatchLoader<K, V> batchLoader = new BatchLoader<>(loader, maxBatchSize, maxLingerMillis,
+                TimeUnit.MILLISECONDS, executor, ThreadSupport.defaultTimer());
+        return CacheBuilder.newBuilder().maximumSize(size).expireAfterWrite(timeout, TimeUnit.SECONDS)
+                .build(new CacheLoader<K, V>() {
                     @Override
                     public V load(K key) throws Exception {
-                        return getter.apply(key);
+                        try {
+                            return batchLoader.load(key).get();
+                        } catch (ExecutionException e) {
+                            throw loadFailure(e);
+                        }
+                    }
+
+                    @Override
+                    public Map<K, V> loadAll(Iterable<? extends K> keys) throws Exception {
+                        Map<K, CompletableFuture<V>> loading = batchLoader.loadAll(Lists.newArrayList(keys));
+                        Map<K, V> result = new LinkedHashMap<>();
+                        for (Map.Entry<K, CompletableFuture<V>> e : loading.entrySet()) {
+                            try {
+                                V val = e.getValue().get();
+                                if (val != null) {
+                                    result.put(e.getKey(), val);
+                                }
+                            } catch (ExecutionException ex) {
+                                throw loadFailure(ex);
+                            }
+                        }
+                        return result;
                     }
                 });
     }
 
+    /**
+     * 还原批量加载的原始异常, 交由 guava 包装
+     */
+    private static Exception loadFailure(ExecutionException e) {
+        Throwable cause = e.getCause();
+        return cause instanceof Exception ? (Exception) cause : e;
+    }
+
+    public static <K, V> BatchingCache<K, V> batchCache(int size, int timeout,
+                                                      Function<Collection<K>, Map<K, V>> loader) {
+        return batchCache(Engine.GUAVA, null, size, timeout, DEFAULT_BATCH_SIZE, DEFAULT_BATCH_LINGER_MILLIS,
+                BATCH_EXECUTOR, loader);
+    }
+
+    /**
+     * 批量加载的cache, 多key查询返回 Map; 并发的未命中合并成批调用 loader
+     *
+     * @param engine
+     * @param name            非空时注册到 CacheRegistry
+     * @param size
+     * @param timeout         写入后过期, 秒
+     * @param maxBatchSize    单批最多的key数量
+     * @param maxLingerMillis 凑批最多等待的时间, <=0 时不等待
+     * @param executor        执行 loader
+     * @param loader          返回的map中缺少的key视为不存在
+     * @return
+     */
+    public static <K, V> BatchingCache<K, V> batchCache(Engine engine, String name, int size, int timeout,
+                                                      int maxBatchSize, long maxLingerMillis, Executor executor,
+                                                      Function<Collection<K>, Map<K, V>> loader) {
+        ConcurrentMap<K, V> cache = expiringCache(engine, name, size, 0, timeout, null);
+        return new BatchingCache<>(cache, loader, maxBatchSize, maxLingerMillis, TimeUnit.MILLISECONDS, executor,
+                ThreadSupport.defaultTimer());
+    }
 
     public static <V> Supplier<V> cachedSupplier(int timeoutMillis, boolean throwable, Supplier<V> supplier) {
         final ArrayList<Object> list = new ArrayList<>(2);
@@ -51,8 +294,8 @@ public class BaseGuavaCacheSupport {
                         try {
                             V val = supplier.get();
 
-                            list.add(0, now);
-                            list.add(1, val);
+                            list.set(0, now);
+                            list.set(1, val);
                         } catch (Exception e) {
                             if (throwable) {
                                 throw new RuntimeException(e);
@@ -66,38 +309,338 @@ public class BaseGuavaCacheSupport {
         };
     }
 
+    /**
+     * 过期后继续返回旧值, 同时只有一个后台刷新; 超过 maxStaleMillis 后调用方阻塞加载
+     *
+     * @param refreshMillis  超过该时间触发后台刷新
+     * @param maxStaleMillis 旧值最多可以使用多久, 不小于 refreshMillis
+     * @param throwable      阻塞加载失败时是否抛出异常, 否则返回旧值(没有则为null)
+     * @param executor       执行后台刷新
+     * @param supplier
+     * @return
+     */
+    public static <V> RefreshingSupplier<V> refreshingSupplier(int refreshMillis, int maxStaleMillis,
+                                                               boolean throwable, Executor executor,
+                                                               Supplier<V> supplier) {
+        return new RefreshingSupplier<>(refreshMillis, maxStaleMillis, throwable, executor, supplier);
+    }
+
+    public static class RefreshingSupplier<V> implements Supplier<V> {
+        private final int refreshMillis;
+        private final int maxStaleMillis;
+        private final boolean throwable;
+        private final Executor executor;
+        private final Supplier<V> supplier;
+        private final AtomicBoolean refreshing = new AtomicBoolean(false);
+        private final AtomicLong refreshSuccess = new AtomicLong(0);
+        private final AtomicLong refreshFailure = new AtomicLong(0);
+        private volatile Pair<Long, V> current;
+
+        RefreshingSupplier(int refreshMillis, int maxStaleMillis, boolean throwable, Executor executor,
+                           Supplier<V> supplier) {
+            this.refreshMillis = refreshMillis;
+            this.maxStaleMillis = Math.max(refreshMillis, maxStaleMillis);
+            this.throwable = throwable;
+            this.executor = executor;
+            this.supplier = supplier;
+        }
+
+        @Override
+        public V get() {
+            Pair<Long, V> p = current;
+            if (p != null) {
+                long age = now() - p.getLeft();
+                if (age <= refreshMillis) {
+                    return p.getRight();
+                }
+                if (age <= maxStaleMillis) {
+                    refresh();
+                    return p.getRight();
+                }
+            }
+            synchronized (this) {
+                p = current;
+                if (p != null && now() - p.getLeft() <= maxStaleMillis) {
+                    // 其他线程刚加载完
+                    return p.getRight();
+                }
+                try {
+                    V val = supplier.get();
+                    current = Pair.of(now(), val);
+                    return val;
+                } catch (Exception e) {
+                    if (throwable) {
+                        throw ExceptionSupport.wrapThrowable(e, false);
+                    }
+                    return p != null ? p.getRight() : null;
+                }
+            }
+        }
+
+        private void refresh() {
+            if (!refreshing.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                executor.execute(() -> {
+                    try {
+                        V val = supplier.get();
+                        current = Pair.of(now(), val);
+                        refreshSuccess.incrementAndGet();
+                    } catch (Exception e) {
+                        refreshFailure.incrementAndGet();
+                        logger.warn("refreshingSupplier refresh fail", e);
+                    } finally {
+                        refreshing.set(false);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                refreshing.set(false);
+                refreshFailure.incrementAndGet();
+            }
+        }
+
+        public long refreshSuccess() {
+            return refreshSuccess.get();
+        }
+
+        public long refreshFailure() {
+            return refreshFailure.get();
+        }
+    }
+
+    /**
+     * 默认最多缓存的key数量
+     */
+    public static final int DEFAULT_GETTER_SIZE = 10000;
+
     public static <K, V> Function<K, V> cachedGetter(int timeoutMillis, boolean throwable, ThrowableFunction<K, V, Exception> getter) {
-        final ConcurrentMap<K, Pair<Long, V>> cacheMap = new ConcurrentHashMap<>();
+        return cachedGetter(timeoutMillis, DEFAULT_GETTER_SIZE, throwable, getter);
+    }
+
+    /**
+     * 带过期的 getter, 同一个key并发未命中时只加载一次, 不同key并行加载
+     *
+     * @param timeoutMillis
+     * @param maxSize       最多缓存的key数量, 超出按LRU淘汰
+     * @param throwable     加载失败时是否抛出异常, 否则返回过期的值(没有则为null)
+     * @param getter        在发现未命中的调用线程执行
+     * @return
+     */
+    public static <K, V> Function<K, V> cachedGetter(int timeoutMillis, int maxSize, boolean throwable,
+                                                     ThrowableFunction<K, V, Exception> getter) {
+        return new SingleFlightGetter<>(timeoutMillis, timeoutMillis, maxSize, throwable, null, syncLoader(getter));
+    }
 
+    /**
+     * 同 refreshingSupplier, 按key缓存: 过期后返回旧值并在后台刷新(每个key同时只有一个加载), 超过 maxStaleMillis 后阻塞加载
+     *
+     * @param refreshMillis
+     * @param maxStaleMillis
+     * @param maxSize
+     * @param throwable
+     * @param executor       执行后台刷新
+     * @param getter
+     * @return
+     */
+    public static <K, V> SingleFlightGetter<K, V> refreshingGetter(int refreshMillis, int maxStaleMillis,
+                                                                   int maxSize, boolean throwable,
+                                                                   Executor executor,
+                                                                   ThrowableFunction<K, V, Exception> getter) {
+        return new SingleFlightGetter<>(refreshMillis, maxStaleMillis, maxSize, throwable, executor,
+                syncLoader(getter));
+    }
+
+    private static <K, V> Function<K, CompletableFuture<V>> syncLoader(ThrowableFunction<K, V, Exception> getter) {
         return key -> {
-            long now = BaseSupport.now();
+            try {
+                return CompletableFuture.completedFuture(getter.apply(key));
+            } catch (Exception e) {
+                return FutureSupport.completeExceptionally(e);
+            }
+        };
+    }
+
+    /**
+     * 异步加载的 getter, 同一个key并发未命中时共享同一个加载中的future
+     *
+     * @param timeoutMillis
+     * @param maxSize
+     * @param throwable     加载失败时返回的future是否异常完成, 否则以过期的值完成(没有则为null)
+     * @param getter
+     * @return
+     */
+    public static <K, V> Function<K, CompletableFuture<V>> cachedAsyncGetter(int timeoutMillis, int maxSize,
+                                                                            boolean throwable,
+                                                                            Function<K, CompletableFuture<V>> getter) {
+        SingleFlightGetter<K, V> flight =
+                new SingleFlightGetter<>(timeoutMillis, timeoutMillis, maxSize, throwable, null, getter);
+        return flight::getAsync;
+    }
+
+    /**
+     * 按key合并加载, 可选地在过期后返回旧值并后台刷新
+     */
+    public static class SingleFlightGetter<K, V> implements Function<K, V> {
+        private final int refreshMillis;
+        private final int maxStaleMillis;
+        private final boolean throwable;
+        private final Executor executor;
+        private final Function<K, CompletableFuture<V>> loader;
+        private final ConcurrentMap<K, Pair<Long, V>> cacheMap;
+        private final ConcurrentMap<K, CompletableFuture<Pair<Long, V>>> loading = new ConcurrentHashMap<>();
+        private final AtomicLong refreshSuccess = new AtomicLong(0);
+        private final AtomicLong refreshFailure = new AtomicLong(0);
+
+        SingleFlightGetter(int refreshMillis, int maxStaleMillis, int maxSize, boolean throwable,
+                           Executor executor, Function<K, CompletableFuture<V>> loader) {
+            this.refreshMillis = refreshMillis;
+            this.maxStaleMillis = executor == null ? refreshMillis : Math.max(refreshMillis, maxStaleMillis);
+            this.throwable = throwable;
+            this.executor = executor;
+            this.loader = loader;
+            this.cacheMap = expiringCache(null, maxSize, 0, 0, null);
+        }
+
+        @Override
+        public V apply(K key) {
+            return get(key);
+        }
+
+        public V get(K key) {
             Pair<Long, V> p = cacheMap.get(key);
-            if (p == null || p.getLeft() == null || now > p.getLeft() + timeoutMillis) {
-                synchronized (cacheMap) {
-                    p = cacheMap.get(key);
-                    if (p == null || p.getLeft() == null || now > p.getLeft() + timeoutMillis) {
-                        // 首次调用，或过期
-                        try {
-                            V val = getter.apply(key);
-                            p = Pair.of(now, val);
-                            cacheMap.put(key, p);
-                        } catch (Exception e) {
-                            if (throwable) {
-                                throw new RuntimeException(e);
-                            }
-                            // 否则继续执行， 返回过期的值
+            if (isFresh(p)) {
+                return p.getRight();
+            }
+            if (isUsable(p)) {
+                load(key, true);
+                return p.getRight();
+            }
+            try {
+                return load(key, false).join().getRight();
+            } catch (CompletionException e) {
+                if (throwable) {
+                    throw new RuntimeException(ExceptionSupport.unwrap(e));
+                }
+                // 否则继续执行， 返回过期的值
+                return p != null ? p.getRight() : null;
+            }
+        }
+
+        public CompletableFuture<V> getAsync(K key) {
+            Pair<Long, V> p = cacheMap.get(key);
+            if (isFresh(p)) {
+                return CompletableFuture.completedFuture(p.getRight());
+            }
+            if (isUsable(p)) {
+                load(key, true);
+                return CompletableFuture.completedFuture(p.getRight());
+            }
+            CompletableFuture<V> f = new CompletableFuture<>();
+            load(key, false).whenComplete((np, ex) -> {
+                if (ex == null) {
+                    f.complete(np.getRight());
+                } else if (throwable) {
+                    f.completeExceptionally(ExceptionSupport.unwrap(ex));
+                } else {
+                    f.complete(p != null ? p.getRight() : null);
+                }
+            });
+            return f;
+        }
+
+        /**
+         * 后台刷新成功次数
+         */
+        public long refreshSuccess() {
+            return refreshSuccess.get();
+        }
+
+        /**
+         * 后台刷新失败次数
+         */
+        public long refreshFailure() {
+            return refreshFailure.get();
+        }
+
+        private boolean isFresh(Pair<Long, V> p) {
+            return p != null && p.getLeft() != null && now() <= p.getLeft() + refreshMillis;
+        }
+
+        private boolean isUsable(Pair<Long, V> p) {
+            return executor != null && p != null && p.getLeft() != null && now() <= p.getLeft() + maxStaleMillis;
+        }
+
+        /**
+         * @param background 在 executor 中加载
+         */
+        private CompletableFuture<Pair<Long, V>> load(K key, boolean background) {
+            CompletableFuture<Pair<Long, V>> f = new CompletableFuture<>();
+            CompletableFuture<Pair<Long, V>> existing = loading.putIfAbsent(key, f);
+            if (existing != null) {
+                return existing;
+            }
+            // 可能刚有其他线程加载完
+            Pair<Long, V> p = cacheMap.get(key);
+            if (isFresh(p)) {
+                loading.remove(key, f);
+                f.complete(p);
+                return f;
+            }
+            CompletableFuture<V> source;
+            if (background) {
+                source = new CompletableFuture<>();
+                try {
+                    CompletableFuture<V> target = source;
+                    executor.execute(() -> loadQuietly(key).whenComplete((val, ex) -> {
+                        if (ex == null) {
+                            target.complete(val);
+                        } else {
+                            target.completeExceptionally(ex);
                         }
+                    }));
+                } catch (RejectedExecutionException e) {
+                    source.completeExceptionally(e);
+                }
+            } else {
+                source = loadQuietly(key);
+            }
+            source.whenComplete((val, ex) -> {
+                if (ex == null) {
+                    Pair<Long, V> np = Pair.of(now(), val);
+                    cacheMap.put(key, np);
+                    loading.remove(key, f);
+                    if (background) {
+                        refreshSuccess.incrementAndGet();
                     }
+                    f.complete(np);
+                } else {
+                    loading.remove(key, f);
+                    if (background) {
+                        refreshFailure.incrementAndGet();
+                        logger.warn("refreshingGetter refresh fail", ex);
+                    }
+                    f.completeExceptionally(ex);
                 }
+            });
+            return f;
+        }
+
+        private CompletableFuture<V> loadQuietly(K key) {
+            try {
+                return loader.apply(key);
+            } catch (Exception e) {
+                return FutureSupport.completeExceptionally(e);
             }
-            return p != null ? p.getRight() : null;
-        };
+        }
     }
 
-
-
     public static <K, V> ConcurrentMap<K, V> simpleCache(int size, int timeout) {
-        return expiringCache(null, size, 0, timeout, null);
+        return simpleCache(Engine.GUAVA, size, timeout);
+    }
+
+    public static <K, V> ConcurrentMap<K, V> simpleCache(Engine engine, int size, int timeout) {
+        return expiringCache(engine, null, size, 0, timeout, null);
     }
 
     public static <K, V> Function<K, V> simpleCacheWrapper(int size, int timeout, ThrowableFunction<K, V, ?> func) {
@@ -118,6 +661,15 @@ public class BaseGuavaCacheSupport {
         };
     }
 
+    /**
+     * 同 simpleCacheWrapper, 一次查询多个key
+     */
+    public static <K, V> Function<Collection<K>, Map<K, V>> simpleBatchCacheWrapper(int size, int timeout,
+                                                                                 Function<Collection<K>, Map<K, V>> loader) {
+        BatchingCache<K, V> cache = batchCache(size, timeout, loader);
+        return cache::getAll;
+    }
+
     /**
      * 基于guava cache的可过期、可设置cache
      *
@@ -130,7 +682,12 @@ public class BaseGuavaCacheSupport {
      */
     public static <K, V> ConcurrentMap<K, V> expiringCacheByWrite(String name, int maxSize,
                                                                   int seconds) {
-        return expiringCache(name, maxSize, 0, seconds, null);
+        return expiringCacheByWrite(Engine.GUAVA, name, maxSize, seconds);
+    }
+
+    public static <K, V> ConcurrentMap<K, V> expiringCacheByWrite(Engine engine, String name, int maxSize,
+                                                                  int seconds) {
+        return expiringCache(engine, name, maxSize, 0, seconds, null);
     }
 
     /**
@@ -144,27 +701,198 @@ public class BaseGuavaCacheSupport {
      */
     public static <K, V> ConcurrentMap<K, V> expiringCacheByRead(String name, int maxSize,
                                                                  int seconds, RemovalListener<K, V> listener, boolean daemon) {
-        ConcurrentMap<K, V> cache = expiringCache(name, maxSize, seconds, 0, listener);
-        if (daemon) {
-            int delay = seconds > 10 ? 10 : seconds;
-            SCHEDULER.scheduleWithFixedDelay(() -> {
-                try {
-                    cache.put((K)NOT_EXIST_KEY, (V)NOT_EXIST_KEY);
-                } catch (Exception e) {
-                    // not happen
-                }
-            }, delay, delay, TimeUnit.SECONDS);
+        return expiringCacheByRead(Engine.GUAVA, name, maxSize, seconds, listener, daemon);
+    }
+
+    public static <K, V> ConcurrentMap<K, V> expiringCacheByRead(Engine engine, String name, int maxSize,
+                                                                 int seconds, RemovalListener<K, V> listener, boolean daemon) {
+        if (!daemon) {
+            return expiringCache(engine, name, maxSize, seconds, 0, listener);
+        }
+        // 没有读写时过期条目不会被清理, 由共享的调度定期清理
+        CacheMap<K, V> cache = buildCache(engine, name, maxSize, seconds, 0, listener);
+        int delay = Math.max(1, seconds > 10 ? 10 : seconds);
+        String key = Strings.isNullOrEmpty(name) ? "expiringCacheByRead" : name;
+        if (cache.owner instanceof TinyLfuMap) {
+            CacheMaintainer.defaultMaintainer().register(key, (TinyLfuMap<?, ?>) cache.owner, TinyLfuMap::cleanUp,
+                    delay, TimeUnit.SECONDS);
+        } else {
+            CacheMaintainer.defaultMaintainer().register(key, (Cache<?, ?>) cache.owner, Cache::cleanUp,
+                    delay, TimeUnit.SECONDS);
         }
         return cache;
     }
 
     public static <K, V> ConcurrentMap<K, V> expiringCache(String name, int maxSize,
                                                            int readSeconds, int writeSeconds, RemovalListener<K, V> listener) {
+        return expiringCache(Engine.GUAVA, name, maxSize, readSeconds, writeSeconds, listener);
+    }
+
+    /**
+     * @param name 非空时注册到 CacheRegistry, 记录命中率和移除原因
+     */
+    public static <K, V> ConcurrentMap<K, V> expiringCache(Engine engine, String name, int maxSize,
+                                                           int readSeconds, int writeSeconds, RemovalListener<K, V> listener) {
+        if (!Strings.isNullOrEmpty(name)) {
+            return buildCache(engine, name, maxSize, readSeconds, writeSeconds, listener);
+        }
+        // 未命名的cache不统计, 直接返回底层的map
+        if (engine == Engine.TINY_LFU) {
+            return new TinyLfuMap<>(maxSize, writeSeconds, readSeconds, TimeUnit.SECONDS, listener);
+        }
         CacheBuilder<K, V> builder =
                 cacheBuilder(name, maxSize, readSeconds, writeSeconds, listener);
         return ((CacheBuilder)builder).build().asMap();
     }
 
+    private static <K, V> CacheMap<K, V> buildCache(Engine engine, String name, int maxSize, int readSeconds,
+                                                    int writeSeconds, RemovalListener<K, V> listener) {
+        CacheMetrics metrics = Strings.isNullOrEmpty(name) ? null : new CacheMetrics(name, maxSize);
+        RemovalListener<K, V> l = metrics == null ? listener : metrics.removalListener(listener);
+        CacheMap<K, V> cache;
+        if (engine == Engine.TINY_LFU) {
+            TinyLfuMap<K, V> map = new TinyLfuMap<>(maxSize, writeSeconds, readSeconds, TimeUnit.SECONDS, l);
+            cache = new CacheMap<>(map, map, metrics);
+        } else {
+            Cache<K, V> c = cacheBuilder(name, maxSize, readSeconds, writeSeconds, l).build();
+            cache = new CacheMap<>(c, c.asMap(), metrics);
+        }
+        if (metrics != null) {
+            CacheRegistry.register(metrics.bind(cache, Map::size));
+        }
+        return cache;
+    }
+
+    /**
+     * 本地 L1 + 共享 L2 的两级cache, 写入和失效经 bus 通知其他节点移除 L1
+     *
+     * @param name      同时作为 L1 的指标名和 bus 的 channel
+     * @param l1Size
+     * @param l1Seconds L1 写入后过期, 作为失效消息丢失时的兜底
+     * @param l2
+     * @param bus       单机用 LocalInvalidationBus, 集群用 ClusterInvalidationBus
+     * @param loader    L2 未命中时加载, 可为null
+     * @return
+     */
+    public static <K, V> TwoTierCache<K, V> twoTierCache(String name, int l1Size, int l1Seconds, CacheStore<K, V> l2,
+                                                         InvalidationBus bus, Function<K, V> loader) {
+        ConcurrentMap<K, V> l1 = expiringCacheByWrite(name, l1Size, l1Seconds);
+        return new TwoTierCache<>(name, l1, l2, bus, loader);
+    }
+
+    /**
+     * 持有 cache 本身, 使 cache 与返回的 map 同生命周期: 清理调度和统计只弱引用, map 不再被使用时一起回收
+     */
+    private static class CacheMap<K, V> extends ForwardingConcurrentMap<K, V> {
+        private final Object owner;
+        private final ConcurrentMap<K, V> map;
+        private final CacheMetrics metrics;
+
+        CacheMap(Object owner, ConcurrentMap<K, V> map, CacheMetrics metrics) {
+            this.owner = owner;
+            this.map = map;
+            this.metrics = metrics;
+        }
+
+        @Override
+        protected ConcurrentMap<K, V> delegate() {
+            return map;
+        }
+
+        @Override
+        public V get(Object key) {
+            V val = map.get(key);
+            if (metrics != null) {
+                if (val != null) {
+                    metrics.recordHit();
+                } else {
+                    metrics.recordMiss();
+                }
+            }
+            return val;
+        }
+
+        @Override
+        public V getOrDefault(Object key, V defaultValue) {
+            V val = get(key);
+            return val != null ? val : defaultValue;
+        }
+
+        /**
+         * ForwardingConcurrentMap 不转发 compute 系列, 默认实现是 get + putIfAbsent/replace 的重试循环,
+         * 不保证 mappingFunction 只执行一次; 这里显式转发到 delegate 保持原子性
+         */
+        @Override
+        public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+            if (metrics == null) {
+                return map.computeIfAbsent(key, mappingFunction);
+            }
+            boolean[] loaded = {false};
+            V val = map.computeIfAbsent(key, k -> {
+                loaded[0] = true;
+                long start = System.nanoTime();
+                boolean success = false;
+                try {
+                    V v = mappingFunction.apply(k);
+                    success = v != null;
+                    return v;
+                } finally {
+                    metrics.recordLoad(System.nanoTime() - start, success);
+                }
+            });
+            if (loaded[0]) {
+                metrics.recordMiss();
+            } else {
+                metrics.recordHit();
+            }
+            return val;
+        }
+
+        @Override
+        public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+            return map.computeIfPresent(key, remappingFunction);
+        }
+
+        @Override
+        public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+            return map.compute(key, remappingFunction);
+        }
+
+        @Override
+        public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+            return map.merge(key, value, remappingFunction);
+        }
+    }
+
+    /**
+     * 值存放在堆外的可过期cache, 适合很大的查找表; 读写都要经过序列化
+     *
+     * @param name
+     * @param maxBytes 堆外内存上限
+     * @param seconds  写入后过期, <=0 表示不过期
+     * @param clz      值按json序列化
+     * @return
+     */
+    public static <K, V> OffHeapCache<K, V> offHeapCache(String name, long maxBytes, int seconds, Class<V> clz) {
+        return offHeapCache(name, maxBytes, seconds, Serializer.json(clz));
+    }
+
+    public static <K, V> OffHeapCache<K, V> offHeapCache(String name, long maxBytes, int seconds,
+                                                         Serializer<V> serializer) {
+        // 容量较小时缩小 slab, 保证每个分段都能分到若干个 slab
+        long slabSize = Math.min(OffHeapCache.DEFAULT_SLAB_SIZE,
+                Math.max(maxBytes / (OffHeapCache.DEFAULT_CONCURRENCY * 16), 4096));
+        OffHeapCache<K, V> cache = new OffHeapCache<>(maxBytes, (int) slabSize, OffHeapCache.DEFAULT_CONCURRENCY,
+                seconds, TimeUnit.SECONDS, serializer);
+        if (!Strings.isNullOrEmpty(name)) {
+            // 容量按字节计
+            CacheMetrics metrics = new CacheMetrics(name, maxBytes);
+            cache.recordStats(metrics);
+            CacheRegistry.register(metrics.bind(cache, Map::size));
+        }
+        return cache;
+    }
+
     /**
      * http://stackoverflow.com/questions/10144194/how-does-guava-expire-entries-in-its-cachebuilder
      *
@@ -180,9 +908,6 @@ public class BaseGuavaCacheSupport {
     protected static <K, V> CacheBuilder<K, V> cacheBuilder(String name, int maxSize,
                                                             int readSeconds, int writeSeconds, RemovalListener<K, V> listener) {
         CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder();
-        if (!Strings.isNullOrEmpty(name)) {
-            // builder.refreshAfterWrite();
-        }
         if (readSeconds > 0) {
             builder.expireAfterAccess(readSeconds, TimeUnit.SECONDS);
         }
@@ -197,8 +922,4 @@ public class BaseGuavaCacheSupport {
         }
         return (CacheBuilder)builder;
     }
-
-    private static final Object NOT_EXIST_KEY = new Object();
-
-    private static final ScheduledExecutorService SCHEDULER = ThreadSupport.newScheduledThreadPool("cacheEvict", 1);
 }
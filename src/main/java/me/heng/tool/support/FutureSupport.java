@@ -1,7 +1,14 @@
 package me.heng.tool.support;
 
-import com.google.common.util.concurrent.Uninterruptibles;
 import com.sun.xml.internal.rngom.parse.host.Base;
+import me.heng.tool.future.FanOut;
+import me.heng.tool.future.Hedger;
+import me.heng.tool.future.Retrier;
+import me.heng.tool.future.RetryPolicy;
+import me.heng.tool.future.StampedFuture;
+import me.heng.tool.future.Timer;
+import me.heng.tool.future.WatchResult;
+import me.heng.tool.metrics.LatencyRegistry;
 import org.apache.commons.lang3.tuple.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -9,7 +16,6 @@ import org.slf4j.LoggerFactory;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.function.BiConsumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
 
@@ -79,53 +85,175 @@ public class FutureSupport {
         return future;
     }
 
+    /**
+     * 监视 future列表, 全部完成/抛出异常则完成, 结果按输入顺序排列
+     *
+     * 结果写入预分配数组的对应下标, 由计数器的 decrementAndGet 保证可见性, 最后一个完成者发布结果
+     *
+     * @param futures
+     * @param <V>
+     * @return
+     */
+    public static <V> CompletableFuture<WatchResult<V>> watchOrdered(
+            Collection<? extends CompletableFuture<? extends V>> futures) {
+        return watchOrdered(futures, null);
+    }
+
+    /**
+     * @param futures
+     * @param listener 每个 future完成时回调 (输入下标, 值, 异常), 在完成 future的线程执行
+     * @param <V>
+     * @return
+     */
+    public static <V> CompletableFuture<WatchResult<V>> watchOrdered(
+            Collection<? extends CompletableFuture<? extends V>> futures,
+            TriConsumer<Integer, ? super V, Throwable> listener) {
+        final int size = futures.size();
+        final Object[] values = new Object[size];
+        final Throwable[] errors = new Throwable[size];
+        if (size == 0) {
+            return CompletableFuture.completedFuture(WatchResult.of(values, errors));
+        }
+        AtomicInteger latch = new AtomicInteger(size);
+        CompletableFuture<WatchResult<V>> future = new CompletableFuture<>();
+        int i = 0;
+        for (CompletableFuture<? extends V> f : futures) {
+            final int index = i++;
+            f.whenComplete((v, ex) -> {
+                if (ex == null) {
+                    values[index] = v;
+                } else {
+                    errors[index] = ex;
+                }
+                if (listener != null) {
+                    try {
+                        listener.accept(index, v, ex);
+                    } catch (Exception e) {
+                        logger.warn("watchOrdered listener fail", e);
+                    }
+                }
+                if (latch.decrementAndGet() == 0) {
+                    future.complete(WatchResult.of(values, errors));
+                }
+            });
+        }
+        return future;
+    }
+
     /**
      * 等待 future完成, 不抛出超时异常, 如果超时,直接返回
      *
+     * CompletableFuture 直接阻塞在 get(timeout)上, interval 无效; 普通 Future 轮询, 间隔从1ms逐步退避到 interval
+     *
      * @param future
      * @param timeout  毫秒
-     * @param interval
+     * @param interval 普通 Future 的最大轮询间隔
      */
     public static void awaitFuture(Future<?> future, long timeout, long interval) {
-        long start = BaseSupport.now();
-        while (!future.isDone()) {
-            try {
-                if (start + timeout <= BaseSupport.now()) {
-                    break;
-                }
-                Thread.sleep(interval);
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
-            }
+        if (future.isDone() || timeout <= 0) {
+            return;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        if (future instanceof CompletableFuture) {
+            awaitCompletion(Collections.singletonList((CompletableFuture<?>) future), deadline, true);
+        } else {
+            awaitPolling(Collections.singletonList(future), deadline, true, interval);
         }
     }
 
+    /**
+     * 等待全部 future完成, 超时直接返回
+     *
+     * @param futures
+     * @param timeout  毫秒, <=0 表示一直等待
+     * @param interval 普通 Future 的最大轮询间隔, 对 CompletableFuture 无效
+     */
     public static void awaitFuture(Collection<? extends Future> futures, long timeout, long interval) {
         if (isEmpty(futures)) {
             return;
         }
-        long start = BaseSupport.now();
-        boolean done;
-        while (true) {
-            done = true;
-            for (Future f : futures) {
-                if (!f.isDone()) {
-                    done = false;
-                    break;
+        boolean timed = timeout > 0;
+        long deadline = timed ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) : 0L;
+        List<CompletableFuture<?>> completables = new ArrayList<>(futures.size());
+        List<Future<?>> others = null;
+        for (Future<?> f : futures) {
+            if (f.isDone()) {
+                continue;
+            }
+            if (f instanceof CompletableFuture) {
+                completables.add((CompletableFuture<?>) f);
+            } else {
+                if (others == null) {
+                    others = new ArrayList<>();
                 }
+                others.add(f);
             }
-            if (done) {
-                break;
+        }
+        if (!awaitCompletion(completables, deadline, timed)) {
+            return;
+        }
+        if (others != null) {
+            awaitPolling(others, deadline, timed, interval);
+        }
+    }
+
+    /**
+     * 依次阻塞在 get(timeout) 上; 超时后 CompletableFuture 会清理自己的等待节点,
+     * 不会在调用方的 future上残留回调
+     *
+     * @return 是否全部完成
+     */
+    private static boolean awaitCompletion(List<CompletableFuture<?>> futures, long deadline, boolean timed) {
+        for (CompletableFuture<?> f : futures) {
+            if (f.isDone()) {
+                continue;
             }
             try {
-                if (timeout > 0 && start + timeout <= BaseSupport.now()) {
-                    break;
+                if (timed) {
+                    f.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                } else {
+                    f.get();
                 }
-                Thread.sleep(interval);
+            } catch (TimeoutException e) {
+                return false;
+            } catch (ExecutionException | CancellationException e) {
+                // 只关心是否完成
             } catch (InterruptedException e) {
                 throw new RuntimeException(e);
             }
         }
+        return true;
+    }
+
+    /**
+     * 普通 Future没有完成回调, 只能轮询; 已完成的不再重复检查, 间隔指数退避
+     */
+    private static void awaitPolling(List<Future<?>> futures, long deadline, boolean timed, long interval) {
+        long maxSleep = Math.max(interval, 1L);
+        long sleep = 1L;
+        int cursor = 0;
+        while (true) {
+            while (cursor < futures.size() && futures.get(cursor).isDone()) {
+                cursor++;
+            }
+            if (cursor >= futures.size()) {
+                return;
+            }
+            long millis = sleep;
+            if (timed) {
+                long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (left <= 0) {
+                    return;
+                }
+                millis = Math.min(millis, left);
+            }
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            sleep = Math.min(sleep << 1, maxSleep);
+        }
     }
 
     /**
@@ -133,7 +261,7 @@ public class FutureSupport {
      *
      * @param <T>
      * @param timeout  毫秒
-     * @param interval
+     * @param interval 对 CompletableFuture 无效, 保留兼容
      * @param partial  标示在 futures没有全部完成时，是否执行操作（true表示接受且执行）
      * @param futures
      * @return
@@ -169,35 +297,35 @@ public class FutureSupport {
     }
 
 
-    private static ScheduledExecutorService scheduler = ThreadSupport.newScheduledThreadPool("timeout-keeper", 1);
-
     public static <T> CompletableFuture<T> timeout(CompletableFuture<T> future, long millis) {
+        return timeout(future, millis, ThreadSupport.defaultTimer());
+    }
+
+    /**
+     * 超时控制, future先完成时取消定时任务
+     *
+     * @param future
+     * @param millis
+     * @param timer
+     * @param <T>
+     * @return
+     */
+    public static <T> CompletableFuture<T> timeout(CompletableFuture<T> future, long millis, Timer timer) {
         if (future == null || future.isDone() || millis <= 0) {
             return future;
         }
         CompletableFuture<T> f = new CompletableFuture<>();
+        Timer.Timeout timeout = timer.newTimeout(() -> {
+            f.completeExceptionally(new TimeoutException(millis + " millis"));
+        }, millis, TimeUnit.MILLISECONDS);
         future.whenComplete((r, ex) -> {
-            if (!f.isDone()) {
-                synchronized (f) {
-                    if (!f.isDone()) {
-                        if (ex == null) {
-                            f.complete(r);
-                        } else {
-                            f.completeExceptionally(ex);
-                        }
-                    }
-                }
+            timeout.cancel();
+            if (ex == null) {
+                f.complete(r);
+            } else {
+                f.completeExceptionally(ex);
             }
         });
-        scheduler.schedule(() -> {
-            if (!f.isDone()) {
-                synchronized (f) {
-                    if (!f.isDone()) {
-                        f.completeExceptionally(new TimeoutException(millis + " millis"));
-                    }
-                }
-            }
-        }, millis, TimeUnit.MILLISECONDS);
         return f;
     }
 
@@ -230,6 +358,45 @@ public class FutureSupport {
         return future;
     }
 
+    /**
+     * 限制并发地执行任务, 同时最多 concurrency 个任务在线程池中
+     *
+     * @param executorService
+     * @param runnables
+     * @param concurrency
+     * @return 任务完成数量
+     */
+    public static CompletableFuture<Integer> submitAsyncTask(ExecutorService executorService,
+                                                             Collection<Runnable> runnables, int concurrency) {
+        if (isEmpty(runnables)) {
+            return CompletableFuture.completedFuture(0);
+        }
+        Iterator<Callable<Object>> tasks = runnables.stream().map(Executors::callable).iterator();
+        return FanOut.run(executorService, tasks, concurrency, false).thenApply(WatchResult::size);
+    }
+
+    /**
+     * 限制并发的批量任务, 一个任务完成才从 tasks中取下一个
+     *
+     * @param executorService
+     * @param tasks
+     * @param concurrency 并发窗口
+     * @param failFast    任一任务失败则取消剩余任务, 以该异常完成
+     * @param <R>
+     * @return 按任务顺序的结果
+     */
+    public static <R> CompletableFuture<WatchResult<R>> fanOut(ExecutorService executorService,
+                                                              Collection<? extends Callable<? extends R>> tasks,
+                                                              int concurrency, boolean failFast) {
+        return FanOut.run(executorService, tasks.iterator(), concurrency, failFast);
+    }
+
+    public static <R> CompletableFuture<WatchResult<R>> fanOut(ExecutorService executorService,
+                                                              Iterator<? extends Callable<? extends R>> tasks,
+                                                              int concurrency, boolean failFast) {
+        return FanOut.run(executorService, tasks, concurrency, failFast);
+    }
+
     public static int awaitAsyncTask(ExecutorService executorService,
                                      Collection<Runnable> runnables, int timeoutMills, int checkInterval) {
         if (isEmpty(runnables)) {
@@ -274,6 +441,78 @@ public class FutureSupport {
         return future;
     }
 
+    /**
+     * 同 submitAsyncTask, 返回的 StampedFuture 区分排队与执行耗时
+     *
+     * @param executorService
+     * @param callable
+     * @param <R>
+     * @return
+     */
+    public static <R> StampedFuture<R> submitStampedTask(ExecutorService executorService, Callable<R> callable) {
+        StampedFuture<R> future = new StampedFuture<>();
+        executorService.submit(() -> {
+            future.markRunning();
+            try {
+                R result = callable.call();
+                future.complete(result);
+            } catch (Exception e) {
+                logger.error("submitStampedTask fail", e);
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * 同 submitStampedTask, 排队/执行耗时记录到 LatencyRegistry 中名为 name 的直方图
+     */
+    public static <R> StampedFuture<R> submitStampedTask(ExecutorService executorService, String name,
+                                                         Callable<R> callable) {
+        StampedFuture<R> future = new StampedFuture<>();
+        LatencyRegistry.attach(future, name);
+        executorService.submit(() -> {
+            future.markRunning();
+            try {
+                R result = callable.call();
+                future.complete(result);
+            } catch (Exception e) {
+                logger.error("submitStampedTask fail", e);
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * 批量任务, 每个任务的耗时记录到名为 name 的直方图
+     *
+     * @param executorService
+     * @param name
+     * @param runnables
+     * @return 任务完成数量
+     */
+    public static CompletableFuture<Integer> submitAsyncTask(ExecutorService executorService, String name,
+                                                             Collection<Runnable> runnables) {
+        if (isEmpty(runnables)) {
+            return CompletableFuture.completedFuture(0);
+        }
+        List<Runnable> timed = new ArrayList<>(runnables.size());
+        for (Runnable runnable : runnables) {
+            long submitted = System.nanoTime();
+            timed.add(() -> {
+                long start = System.nanoTime();
+                LatencyRegistry.record(name + ".queue", start - submitted);
+                try {
+                    runnable.run();
+                } finally {
+                    LatencyRegistry.record(name, System.nanoTime() - start);
+                }
+            });
+        }
+        return submitAsyncTask(executorService, timed);
+    }
+
     public static <R> CompletableFuture<R> submitAsyncFutureTask(ExecutorService executorService, Callable<CompletableFuture<R>> callable) {
         CompletableFuture<R> future = new CompletableFuture<>();
         executorService.submit(() -> {
@@ -293,6 +532,24 @@ public class FutureSupport {
         return future;
     }
 
+    /**
+     * 对冲请求: 超过 hedger统计的延迟分位仍未返回时再发起一次, 取最先成功的结果, 取消其余请求
+     *
+     * @param executorService 执行 callable, 为null时使用 ForkJoinPool.commonPool()
+     * @param callable
+     * @param hedger          同一后端共用, 共享延迟统计
+     * @param <R>
+     * @return
+     */
+    public static <R> CompletableFuture<R> hedge(ExecutorService executorService,
+                                                 Callable<CompletableFuture<R>> callable, Hedger<R> hedger) {
+        return hedger.call(executorService, callable);
+    }
+
+    public static <R> Hedger<R> newHedger(double percentile, int maxAttempts, long minDelayMillis) {
+        return new Hedger<>(percentile, maxAttempts, minDelayMillis, ThreadSupport.defaultTimer());
+    }
+
     /**
      * 重试
      *
@@ -309,40 +566,31 @@ public class FutureSupport {
         return retry(callable, retry, 0, p);
     }
 
+    /**
+     * 间隔 interval ms重试, 间隔在定时器上等待, 不阻塞完成 future的线程
+     */
     public static <T> CompletableFuture<T> retry(Callable<CompletableFuture<T>> callable, int retry, int interval,
                                                  Predicate<Throwable> p) {
         if (retry > 1) {
-            CompletableFuture<T> callQuietly = callQuietly(callable);
-            final CompletableFuture<T> rf = new CompletableFuture<>();
-            CountDownLatch latch = new CountDownLatch(retry - 1); // 这是第一次重试
-            final BiConsumer<T, Throwable>[] holder = new BiConsumer[1];
-            holder[0] = (r, ex) -> {
-                if (ex == null) {
-                    rf.complete(r);
-                } else {
-                    if ((p == null || p.test(ex)) && latch.getCount() > 0) {
-                        // 这两种异常做重试
-                        latch.countDown();
-                        if (interval > 0) {
-                            // 中间停顿 interval ms
-                            Uninterruptibles.sleepUninterruptibly(interval, TimeUnit.MILLISECONDS);
-                        }
-                        CompletableFuture<T> f2 = callQuietly(callable);
-                        f2.whenComplete((rx, ex2) -> {
-                            holder[0].accept(rx, ex2);
-                        });
-                    } else {
-                        rf.completeExceptionally(ex);
-                    }
-                }
-            };
-            callQuietly.whenComplete(holder[0]);
-            return rf;
+            RetryPolicy policy = RetryPolicy.of(retry).withFixedDelay(interval).retryOn(p);
+            return retry(callable, policy);
         } else {
             return callQuietly(callable);
         }
     }
 
+    /**
+     * 按策略重试, 支持指数退避、随机抖动、总时限与共享的重试预算
+     *
+     * @param callable
+     * @param policy
+     * @param <T>
+     * @return
+     */
+    public static <T> CompletableFuture<T> retry(Callable<CompletableFuture<T>> callable, RetryPolicy policy) {
+        return Retrier.retry(callable, policy, ThreadSupport.defaultTimer());
+    }
+
     public static <T> CompletableFuture<T> callQuietly(Callable<CompletableFuture<T>> callable) {
         CompletableFuture<T> f = new CompletableFuture<>();
         try {
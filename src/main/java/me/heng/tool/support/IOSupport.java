@@ -1,6 +1,11 @@
 package me.heng.tool.support;
 
+import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
+import me.heng.tool.future.Retrier;
+import me.heng.tool.future.RetryPolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.Inet4Address;
@@ -8,6 +13,10 @@ import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 
 /**
@@ -18,6 +27,25 @@ import java.util.function.Function;
  */
 public class IOSupport {
 
+    private static final Logger logger = LoggerFactory.getLogger(IOSupport.class);
+
+    /**
+     * 分片失败(含重试用尽)后的处理方式
+     */
+    public enum OnFailure {
+        /**
+         * 立刻以该异常结束, 不再派发剩余分片
+         */
+        FAIL_FAST,
+        /**
+         * 丢弃该分片的结果, 继续其他分片
+         */
+        SKIP
+    }
+
+    /**
+     * 各分片依次串行调用 fetcher
+     */
     public static <I, O> List<O> batchFetch(Collection<I> inputs, int size,
         Function<Collection<I>, Collection<? extends O>> fetcher) {
         if (BaseSupport.isEmpty(inputs)) {
@@ -38,6 +66,152 @@ public class IOSupport {
         return results;
     }
 
+    /**
+     * 并行分片获取, 结果按分片顺序拼接
+     *
+     * @param inputs
+     * @param size        每个分片的大小
+     * @param maxInFlight 同时进行的分片数
+     * @param executor    执行 fetcher 的线程池
+     * @param fetcher
+     * @return
+     */
+    public static <I, O> List<O> batchFetch(Collection<I> inputs, int size, int maxInFlight, Executor executor,
+                                            Function<Collection<I>, Collection<? extends O>> fetcher) {
+        return batchFetch(inputs, size, maxInFlight, executor, OnFailure.FAIL_FAST, null, fetcher);
+    }
+
+    public static <I, O> List<O> batchFetch(Collection<I> inputs, int size, int maxInFlight, Executor executor,
+                                            OnFailure onFailure, RetryPolicy retry,
+                                            Function<Collection<I>, Collection<? extends O>> fetcher) {
+        try {
+            return batchFetchAsync(inputs, size, maxInFlight, executor, onFailure, retry, fetcher).join();
+        } catch (CompletionException e) {
+            // fetcher 抛出的 RuntimeException 原样抛出
+            throw ExceptionSupport.wrapThrowable(ExceptionSupport.unwrap(e), true);
+        }
+    }
+
+    public static <I, O> CompletableFuture<List<O>> batchFetchAsync(Collection<I> inputs, int size,
+                                                                    int maxInFlight, Executor executor,
+                                                                    Function<Collection<I>, Collection<? extends O>> fetcher) {
+        return batchFetchAsync(inputs, size, maxInFlight, executor, OnFailure.FAIL_FAST, null, fetcher);
+    }
+
+    /**
+     * 并行分片获取, 最多 maxInFlight 个分片同时进行, 一个分片完成后才派发下一个
+     *
+     * @param inputs
+     * @param size        每个分片的大小
+     * @param maxInFlight 同时进行的分片数
+     * @param executor    执行 fetcher 的线程池
+     * @param onFailure   分片最终失败时的处理方式
+     * @param retry       分片失败时的重试策略, null 表示不重试
+     * @param fetcher
+     * @return 按分片顺序拼接的结果; 取消后不再派发剩余分片
+     */
+    public static <I, O> CompletableFuture<List<O>> batchFetchAsync(Collection<I> inputs, int size,
+                                                                    int maxInFlight, Executor executor,
+                                                                    OnFailure onFailure, RetryPolicy retry,
+                                                                    Function<Collection<I>, Collection<? extends O>> fetcher) {
+        Preconditions.checkArgument(size > 0, "size must be positive");
+        Preconditions.checkArgument(maxInFlight > 0, "maxInFlight must be positive");
+        if (BaseSupport.isEmpty(inputs)) {
+            return CompletableFuture.completedFuture(new ArrayList<>());
+        }
+        List<List<I>> partitions = Lists.partition(ListSupport.list(inputs), size);
+        return new PartitionFetch<>(partitions, maxInFlight, executor, onFailure, retry, fetcher).start();
+    }
+
+    private static class PartitionFetch<I, O> {
+        private final List<List<I>> partitions;
+        private final int maxInFlight;
+        private final Executor executor;
+        private final OnFailure onFailure;
+        private final RetryPolicy retry;
+        private final Function<Collection<I>, Collection<? extends O>> fetcher;
+        private final Collection<? extends O>[] results;
+        private final CompletableFuture<List<O>> result = new CompletableFuture<>();
+        private final AtomicInteger inFlight = new AtomicInteger(0);
+        private final AtomicInteger completed = new AtomicInteger(0);
+        /**
+         * 派发的重入计数, 避免同步完成的分片递归派发
+         */
+        private final AtomicInteger wip = new AtomicInteger(0);
+        private int next;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        PartitionFetch(List<List<I>> partitions, int maxInFlight, Executor executor, OnFailure onFailure,
+                       RetryPolicy retry, Function<Collection<I>, Collection<? extends O>> fetcher) {
+            this.partitions = partitions;
+            this.maxInFlight = maxInFlight;
+            this.executor = executor;
+            this.onFailure = onFailure;
+            this.retry = retry;
+            this.fetcher = fetcher;
+            this.results = new Collection[partitions.size()];
+        }
+
+        CompletableFuture<List<O>> start() {
+            dispatch();
+            return result;
+        }
+
+        private void dispatch() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            do {
+                while (!result.isDone() && next < partitions.size() && inFlight.get() < maxInFlight) {
+                    inFlight.incrementAndGet();
+                    int index = next++;
+                    fetch(partitions.get(index)).whenComplete((r, ex) -> onComplete(index, r, ex));
+                }
+            } while (wip.decrementAndGet() != 0);
+        }
+
+        private CompletableFuture<Collection<? extends O>> fetch(List<I> partition) {
+            if (retry == null) {
+                return CompletableFuture.supplyAsync(() -> fetcher.apply(partition), executor);
+            }
+            return Retrier.retry(() -> CompletableFuture.supplyAsync(() -> fetcher.apply(partition), executor),
+                    retry, ThreadSupport.defaultTimer(), executor);
+        }
+
+        private void onComplete(int index, Collection<? extends O> r, Throwable ex) {
+            if (ex != null) {
+                Throwable cause = ExceptionSupport.unwrap(ex);
+                if (onFailure == OnFailure.FAIL_FAST) {
+                    result.completeExceptionally(cause);
+                    return;
+                }
+                logger.warn("batchFetch skip partition " + index + " of " + partitions.size(), cause);
+            } else {
+                results[index] = r;
+            }
+            inFlight.decrementAndGet();
+            if (completed.incrementAndGet() == partitions.size()) {
+                result.complete(merge());
+            } else {
+                dispatch();
+            }
+        }
+
+        private List<O> merge() {
+            int total = 0;
+            for (Collection<? extends O> r : results) {
+                total += r == null ? 0 : r.size();
+            }
+            List<O> list = new ArrayList<>(total);
+            for (Collection<? extends O> r : results) {
+                if (r != null) {
+                    list.addAll(r);
+                }
+            }
+            return list;
+        }
+    }
+
     public static String getHostname() {
         try {
             return InetAddress.getLocalHost().getHostName();
@@ -1,9 +1,27 @@
 package me.heng.tool.support;
 
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * 延迟 iterator
@@ -14,9 +32,88 @@ public interface LazyIterable<T> extends Iterable<T> {
     @Override
     LazyIterator<T> iterator();
 
+    /**
+     * 分页的源按页拆分, 每次拆出一整页交给其他线程; 其他源按 Iterable 默认方式拆分
+     */
+    @Override
+    default Spliterator<T> spliterator() {
+        return spliterator(iterator());
+    }
+
+    default Stream<T> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * 页的查询在拆分的线程中执行, 适合每页处理较重的场景
+     */
+    default Stream<T> parallelStream() {
+        return StreamSupport.stream(spliterator(), true);
+    }
+
     interface LazyIterator<T> extends Iterator<T> {
     }
 
+    /**
+     * 按页获取数据的iterator
+     */
+    interface PagedIterator<T> extends LazyIterator<T> {
+        /**
+         * 取走当前页剩余的元素, 当前页已用完时先查询下一页
+         *
+         * @return 没有更多数据时为null
+         */
+        Iterator<T> nextPage();
+    }
+
+    /**
+     * 每次 trySplit 拆出一页, 自己保留之后的页, 保持顺序
+     */
+    class PageSpliterator<T> implements Spliterator<T> {
+        private final PagedIterator<T> it;
+
+        public PageSpliterator(PagedIterator<T> it) {
+            this.it = it;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            if (it.hasNext() == false) {
+                return false;
+            }
+            action.accept(it.next());
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super T> action) {
+            while (it.hasNext()) {
+                action.accept(it.next());
+            }
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            Iterator<T> page = it.nextPage();
+            if (page == null) {
+                return null;
+            }
+            List<T> items = new ArrayList<>();
+            page.forEachRemaining(items::add);
+            return Spliterators.spliterator(items, ORDERED);
+        }
+
+        @Override
+        public long estimateSize() {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED;
+        }
+    }
+
     /**
      * 基于慢请求的Iterable, 比如网络请求,数据库请求等满操作
      */
@@ -25,10 +122,20 @@ public interface LazyIterable<T> extends Iterable<T> {
         LazyIterator<T> iterator();
     }
 
-    abstract class AbstractCachedIterator<T> implements LazyIterator<T> {
+    abstract class AbstractCachedIterator<T> implements PagedIterator<T> {
 
         Iterator<T> cache;
 
+        @Override
+        public Iterator<T> nextPage() {
+            if (hasNext() == false) {
+                return null;
+            }
+            Iterator<T> page = cache;
+            cache = null;
+            return page;
+        }
+
         @Override
         public boolean hasNext() {
             if (cache == null || cache.hasNext() == false) {
@@ -55,6 +162,212 @@ public interface LazyIterable<T> extends Iterable<T> {
 
     }
 
+    /**
+     * 预取模式: 消费当前页的同时在 executor 中提前查询之后的 depth 页, 查到空页后不再查询
+     * query() 通常带有游标状态, 所以各页依次查询, 不会并发; 可并行查询的分页源用 PagedPrefetchingIterator
+     * 不再遍历时调用 close() 取消未完成的预取
+     */
+    abstract class PrefetchingCachedIterator<T> extends AbstractCachedIterator<T> {
+
+        private final int depth;
+        private final Executor executor;
+        private final Deque<CompletableFuture<Page<T>>> pending = new ArrayDeque<>();
+        /**
+         * 查询线程查到空页后置位
+         */
+        private volatile boolean exhausted;
+        private boolean closed;
+
+        /**
+         * @param depth    预取的页数, 至少为1
+         * @param executor 执行 query() 的线程池
+         */
+        protected PrefetchingCachedIterator(int depth, Executor executor) {
+            Preconditions.checkArgument(depth > 0, "depth must be positive");
+            this.depth = depth;
+            this.executor = executor;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (cache != null && cache.hasNext()) {
+                return true;
+            }
+            if (closed) {
+                return false;
+            }
+            prefetch();
+            CompletableFuture<Page<T>> head = pending.poll();
+            if (head == null) {
+                close();
+                return false;
+            }
+            Page<T> page;
+            try {
+                page = head.join();
+            } catch (CompletionException e) {
+                close();
+                throw new RuntimeException(ExceptionSupport.unwrap(e));
+            }
+            if (page.empty) {
+                close();
+                return false;
+            }
+            cache = page.items;
+            prefetch();
+            return true;
+        }
+
+        public void close() {
+            closed = true;
+            exhausted = true;
+            for (CompletableFuture<Page<T>> future : pending) {
+                future.cancel(false);
+            }
+            pending.clear();
+        }
+
+        private void prefetch() {
+            while (!exhausted && pending.size() < depth) {
+                CompletableFuture<Page<T>> last = pending.peekLast();
+                // 接在上一页之后执行, 保证 query() 串行
+                CompletableFuture<Page<T>> next = last == null
+                        ? CompletableFuture.supplyAsync(this::fetch, executor)
+                        : last.thenApplyAsync(prev -> prev.empty ? prev : fetch(), executor);
+                pending.add(next);
+            }
+        }
+
+        private Page<T> fetch() {
+            Iterator<T> items = query();
+            boolean empty = items == null || items.hasNext() == false;
+            if (empty) {
+                exhausted = true;
+            }
+            return new Page<>(items, empty);
+        }
+
+        private static final class Page<T> {
+            final Iterator<T> items;
+            final boolean empty;
+
+            Page(Iterator<T> items, boolean empty) {
+                this.items = items;
+                this.empty = empty;
+            }
+        }
+    }
+
+    /**
+     * 按页号查询的预取iterator, 最多 depth 页同时查询; 按页号顺序返回, 遇到第一个空页结束
+     */
+    abstract class PagedPrefetchingIterator<T> implements PagedIterator<T> {
+
+        private final int depth;
+        private final Executor executor;
+        private final Deque<CompletableFuture<Iterator<T>>> pending = new ArrayDeque<>();
+        /**
+         * 已知的第一个空页, 之后的页不再查询
+         */
+        private final AtomicInteger endPage = new AtomicInteger(Integer.MAX_VALUE);
+        private int nextPage;
+        private Iterator<T> cache;
+        private boolean closed;
+
+        /**
+         * @param firstPage 起始页号
+         * @param depth     同时查询的页数, 至少为1
+         * @param executor  执行 query(page) 的线程池
+         */
+        protected PagedPrefetchingIterator(int firstPage, int depth, Executor executor) {
+            Preconditions.checkArgument(depth > 0, "depth must be positive");
+            this.nextPage = firstPage;
+            this.depth = depth;
+            this.executor = executor;
+        }
+
+        /**
+         * 可能在多个线程中并发调用
+         *
+         * @return 空或null表示没有更多数据
+         */
+        public abstract Iterator<T> query(int page);
+
+        @Override
+        public boolean hasNext() {
+            if (cache != null && cache.hasNext()) {
+                return true;
+            }
+            if (closed) {
+                return false;
+            }
+            prefetch();
+            CompletableFuture<Iterator<T>> head = pending.poll();
+            if (head == null) {
+                close();
+                return false;
+            }
+            Iterator<T> items;
+            try {
+                items = head.join();
+            } catch (CompletionException e) {
+                close();
+                throw new RuntimeException(ExceptionSupport.unwrap(e));
+            }
+            if (items == null || items.hasNext() == false) {
+                close();
+                return false;
+            }
+            cache = items;
+            prefetch();
+            return true;
+        }
+
+        @Override
+        public T next() {
+            if (hasNext() == false) {
+                throw new NoSuchElementException("PagedPrefetchingIterator");
+            }
+            return cache.next();
+        }
+
+        @Override
+        public Iterator<T> nextPage() {
+            if (hasNext() == false) {
+                return null;
+            }
+            Iterator<T> page = cache;
+            cache = null;
+            return page;
+        }
+
+        public void close() {
+            closed = true;
+            for (CompletableFuture<Iterator<T>> future : pending) {
+                future.cancel(false);
+            }
+            pending.clear();
+        }
+
+        private void prefetch() {
+            while (pending.size() < depth && nextPage < endPage.get()) {
+                int page = nextPage++;
+                pending.add(CompletableFuture.supplyAsync(() -> fetch(page), executor));
+            }
+        }
+
+        private Iterator<T> fetch(int page) {
+            if (page >= endPage.get()) {
+                return null;
+            }
+            Iterator<T> items = query(page);
+            if (items == null || items.hasNext() == false) {
+                endPage.accumulateAndGet(page, Math::min);
+            }
+            return items;
+        }
+    }
+
     class ProxiedIterator<T> implements LazyIterator<T> {
         Iterator<T> p;
 
@@ -113,4 +426,169 @@ public interface LazyIterable<T> extends Iterable<T> {
             }
         };
     }
+
+    /**
+     * 按页号并行预取的分页源, 每次 iterator() 从 firstPage 开始
+     *
+     * @param query    页号 => 该页数据, 空或null表示结束
+     * @param depth    同时查询的页数
+     * @param executor
+     */
+    static <T> CachedIterable<T> prefetching(int firstPage, int depth, Executor executor,
+                                             IntFunction<Iterator<T>> query) {
+        return () -> new PagedPrefetchingIterator<T>(firstPage, depth, executor) {
+            @Override
+            public Iterator<T> query(int page) {
+                return query.apply(page);
+            }
+        };
+    }
+
+    static <T> Spliterator<T> spliterator(Iterator<T> it) {
+        if (it instanceof PagedIterator) {
+            return new PageSpliterator<>((PagedIterator<T>) it);
+        }
+        return Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED);
+    }
+
+    static <T> LazyIterable<T> filter(LazyIterable<T> iterable, Predicate<? super T> predicate) {
+        return () -> new LazyIterator<T>() {
+            LazyIterator<T> IT = iterable.iterator();
+            T nextVal;
+            boolean ready;
+
+            @Override
+            public boolean hasNext() {
+                while (!ready && IT.hasNext()) {
+                    T val = IT.next();
+                    if (predicate.test(val)) {
+                        nextVal = val;
+                        ready = true;
+                    }
+                }
+                return ready;
+            }
+
+            @Override
+            public T next() {
+                if (hasNext() == false) {
+                    throw new NoSuchElementException();
+                }
+                T val = nextVal;
+                nextVal = null;
+                ready = false;
+                return val;
+            }
+        };
+    }
+
+    static <K, T> LazyIterable<T> flatMap(LazyIterable<K> iterable, Function<? super K, ? extends Iterable<T>> fn) {
+        return () -> new LazyIterator<T>() {
+            LazyIterator<K> IT = iterable.iterator();
+            Iterator<T> current = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (current.hasNext() == false) {
+                    if (IT.hasNext() == false) {
+                        return false;
+                    }
+                    Iterable<T> next = fn.apply(IT.next());
+                    current = next == null ? Collections.emptyIterator() : next.iterator();
+                }
+                return true;
+            }
+
+            @Override
+            public T next() {
+                if (hasNext() == false) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+        };
+    }
+
+    /**
+     * 取够 n 个后不再访问源, 不会多查询一页
+     */
+    static <T> LazyIterable<T> take(LazyIterable<T> iterable, long n) {
+        return () -> new LazyIterator<T>() {
+            LazyIterator<T> IT = iterable.iterator();
+            long remain = n;
+
+            @Override
+            public boolean hasNext() {
+                return remain > 0 && IT.hasNext();
+            }
+
+            @Override
+            public T next() {
+                if (hasNext() == false) {
+                    throw new NoSuchElementException();
+                }
+                remain--;
+                return IT.next();
+            }
+        };
+    }
+
+    /**
+     * 每 size 个元素组成一批, 最后一批可能不足 size
+     */
+    static <T> LazyIterable<List<T>> batch(LazyIterable<T> iterable, int size) {
+        Preconditions.checkArgument(size > 0, "size must be positive");
+        return () -> new LazyIterator<List<T>>() {
+            LazyIterator<T> IT = iterable.iterator();
+
+            @Override
+            public boolean hasNext() {
+                return IT.hasNext();
+            }
+
+            @Override
+            public List<T> next() {
+                if (hasNext() == false) {
+                    throw new NoSuchElementException();
+                }
+                List<T> list = new ArrayList<>(size);
+                while (list.size() < size && IT.hasNext()) {
+                    list.add(IT.next());
+                }
+                return list;
+            }
+        };
+    }
+
+    @SafeVarargs
+    static <T> LazyIterable<T> concat(LazyIterable<? extends T>... iterables) {
+        // 复制一份, 返回的 lambda 不持有可变参数数组
+        List<LazyIterable<? extends T>> list = new ArrayList<>(iterables.length);
+        for (LazyIterable<? extends T> iterable : iterables) {
+            list.add(iterable);
+        }
+        return () -> new LazyIterator<T>() {
+            Iterator<LazyIterable<? extends T>> sources = list.iterator();
+            Iterator<? extends T> current = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (current.hasNext() == false) {
+                    if (sources.hasNext() == false) {
+                        return false;
+                    }
+                    current = sources.next().iterator();
+                }
+                return true;
+            }
+
+            @Override
+            public T next() {
+                if (hasNext() == false) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+        };
+    }
 }
@@ -1,6 +1,8 @@
 package me.heng.tool.support;
 
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import me.heng.tool.future.HashedWheelTimer;
+import me.heng.tool.future.Timer;
 
 import java.util.concurrent.*;
 
@@ -12,7 +14,7 @@ import java.util.concurrent.*;
 public class ThreadSupport {
 
     private static final ThreadFactory DEFAULT_FACTORY = (new ThreadFactoryBuilder()).setNameFormat("default-%d").build();
-    private static final ScheduledExecutorService DEFAULT_SCHEDULER;
+    private static final Timer DEFAULT_TIMER;
 
     public ThreadSupport() {
     }
@@ -59,8 +61,13 @@ public class ThreadSupport {
         return new ThreadPoolExecutor(nThreads, nThreads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue(), threadFactory);
     }
 
+    /**
+     * 取消的任务立即移出队列, 避免 watchFutureTimeout 提前完成的超时任务堆积到触发时间
+     */
     public static ScheduledExecutorService newScheduledThreadPool(int corePoolSize, ThreadFactory threadFactory) {
-        return new ScheduledThreadPoolExecutor(corePoolSize, threadFactory);
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(corePoolSize, threadFactory);
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
     }
 
     public static ScheduledExecutorService newScheduledThreadPool(String name, int corePoolSize) {
@@ -68,25 +75,59 @@ public class ThreadSupport {
         return newScheduledThreadPool(corePoolSize, factory);
     }
 
+    /**
+     * 时间轮定时器
+     *
+     * @param name
+     * @param tickMillis    精度, 毫秒
+     * @param ticksPerWheel 桶数, 覆盖 tickMillis * ticksPerWheel 内的超时不需要多轮
+     * @return
+     */
+    public static HashedWheelTimer newHashedWheelTimer(String name, long tickMillis, int ticksPerWheel) {
+        return new HashedWheelTimer(name, tickMillis, TimeUnit.MILLISECONDS, ticksPerWheel);
+    }
+
+    /**
+     * 共享的超时定时器, 10ms精度
+     */
+    public static Timer defaultTimer() {
+        return DEFAULT_TIMER;
+    }
+
     public static void watchFutureTimeout(int millis, CompletableFuture<?> future, String errorMsg) {
-        watchFutureTimeout(DEFAULT_SCHEDULER, millis, future, () -> {
+        watchFutureTimeout(DEFAULT_TIMER, millis, future, () -> {
             future.completeExceptionally(new TimeoutException(errorMsg));
         });
     }
 
     public static void watchFutureTimeout(ScheduledExecutorService scheduler, int millis, CompletableFuture<?> future, Runnable timeoutHandler) {
         if (millis > 0 && !future.isDone()) {
-            scheduler.schedule(() -> {
+            ScheduledFuture<?> scheduled = scheduler.schedule(() -> {
                 if (!future.isDone()) {
                     timeoutHandler.run();
                 }
 
             }, (long)millis, TimeUnit.MILLISECONDS);
+            future.whenComplete((r, ex) -> scheduled.cancel(false));
         }
 
     }
 
+    /**
+     * future提前完成时取消定时任务
+     */
+    public static void watchFutureTimeout(Timer timer, int millis, CompletableFuture<?> future, Runnable timeoutHandler) {
+        if (millis > 0 && !future.isDone()) {
+            Timer.Timeout timeout = timer.newTimeout(() -> {
+                if (!future.isDone()) {
+                    timeoutHandler.run();
+                }
+            }, (long)millis, TimeUnit.MILLISECONDS);
+            future.whenComplete((r, ex) -> timeout.cancel());
+        }
+    }
+
     static {
-        DEFAULT_SCHEDULER = new ScheduledThreadPoolExecutor(1, DEFAULT_FACTORY);
+        DEFAULT_TIMER = newHashedWheelTimer("timeout-keeper", 10, 512);
     }
 }
@@ -1,6 +1,7 @@
 package me.heng.tool.support;
 
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import me.heng.tool.future.Timer;
 
 import java.util.concurrent.*;
 
@@ -108,7 +109,7 @@ public class ThreadSupport2 {
     }
 
     public static void watchFutureTimeout(int millis, CompletableFuture<?> future, String errorMsg) {
-        watchFutureTimeout(DEFAULT_SCHEDULER, millis, future, () -> {
+        watchFutureTimeout(ThreadSupport.defaultTimer(), millis, future, () -> {
             future.completeExceptionally(new TimeoutException(errorMsg));
         });
     }
@@ -124,14 +125,25 @@ public class ThreadSupport2 {
     public static void watchFutureTimeout(ScheduledExecutorService scheduler, int millis, CompletableFuture<?> future,
         Runnable timeoutHandler) {
         if (millis > 0 && !future.isDone()) {
-            scheduler.schedule(() -> {
+            ScheduledFuture<?> scheduled = scheduler.schedule(() -> {
                 if (!future.isDone()) {
                     timeoutHandler.run();
                 }
             }, millis, TimeUnit.MILLISECONDS);
+            future.whenComplete((r, ex) -> scheduled.cancel(false));
         }
     }
 
-    private final static ScheduledExecutorService DEFAULT_SCHEDULER = new ScheduledThreadPoolExecutor(1,
-        DEFAULT_FACTORY);
+    /**
+     * 基于时间轮监视future是否超时, future提前完成时取消定时任务
+     *
+     * @param timer
+     * @param millis
+     * @param future
+     * @param timeoutHandler
+     */
+    public static void watchFutureTimeout(Timer timer, int millis, CompletableFuture<?> future,
+        Runnable timeoutHandler) {
+        ThreadSupport.watchFutureTimeout(timer, millis, future, timeoutHandler);
+    }
 }
@@ -0,0 +1,76 @@
+package me.heng.tool.akka;
+
+import akka.actor.ActorSystem;
+import akka.stream.ActorMaterializer;
+import akka.stream.Materializer;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import me.heng.tool.support.AsyncLazyIterable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 11:55 PM
+ */
+public class AsyncSourceTest {
+
+    private ActorSystem system;
+    private Materializer materializer;
+
+    @Before
+    public void setUp() {
+        system = ActorSystem.create("async-source-test");
+        materializer = ActorMaterializer.create(system);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        system.terminate().result(AkkaSupport.seconds(5), null);
+    }
+
+    private static AsyncLazyIterable<Integer> pages(int count, AtomicInteger queries) {
+        return AsyncLazyIterable.paged(0, page -> {
+            queries.incrementAndGet();
+            Iterator<Integer> items = page < count ? Arrays.asList(page * 2, page * 2 + 1).iterator() : null;
+            return CompletableFuture.supplyAsync(() -> items);
+        });
+    }
+
+    @Test
+    public void eachMaterializationStartsOver() throws Exception {
+        AtomicInteger queries = new AtomicInteger();
+        Source<Integer, ?> source = AkkaSupport.source(pages(3, queries));
+        for (int i = 0; i < 2; i++) {
+            List<Integer> list = source.runWith(Sink.seq(), materializer)
+                    .toCompletableFuture().get(5, TimeUnit.SECONDS);
+            assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5), list);
+        }
+        assertEquals(8, queries.get());
+    }
+
+    @Test
+    public void pagesQueriedOnDemand() throws Exception {
+        AtomicInteger queries = new AtomicInteger();
+        List<Integer> list = AkkaSupport.source(pages(1000, queries))
+                .take(3)
+                .runWith(Sink.seq(), materializer)
+                .toCompletableFuture().get(5, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList(0, 1, 2), list);
+        Thread.sleep(50);
+        // 下游取消后不再查询, 最多多预取一页
+        assertTrue(queries.get() + " queries", queries.get() <= 3);
+    }
+}
@@ -0,0 +1,158 @@
+package me.heng.tool.akka;
+
+import akka.NotUsed;
+import akka.actor.ActorSystem;
+import akka.japi.Pair;
+import akka.stream.ActorMaterializer;
+import akka.stream.FlowShape;
+import akka.stream.Graph;
+import akka.stream.Materializer;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import me.heng.tool.metrics.LatencyHistogram;
+import me.heng.tool.metrics.LatencyRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 9:30 PM
+ */
+public class AuditBoardTest {
+
+    private ActorSystem system;
+    private Materializer materializer;
+
+    @Before
+    public void setUp() {
+        system = ActorSystem.create("audit-test");
+        materializer = ActorMaterializer.create(system);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        system.terminate().result(AkkaSupport.seconds(5), null);
+    }
+
+    @Test
+    public void ewmaMath() {
+        AkkaSupport.AuditBoard.Ewma ewma = new AkkaSupport.AuditBoard.Ewma(1);
+        // 首个 tick 直接取瞬时速率: 250ms 内 100 个
+        ewma.tick(100);
+        assertEquals(400, ewma.rate(), 1e-9);
+        ewma.tick(0);
+        assertEquals(400 * Math.exp(-0.25), ewma.rate(), 1e-9);
+        // 稳定输入时收敛到瞬时速率
+        for (int i = 0; i < 200; i++) {
+            ewma.tick(25);
+        }
+        assertEquals(100, ewma.rate(), 1e-6);
+
+        AkkaSupport.AuditBoard.Ewma slow = new AkkaSupport.AuditBoard.Ewma(60);
+        slow.tick(0);
+        slow.tick(100);
+        assertEquals(400 * (1 - Math.exp(-0.25 / 60)), slow.rate(), 1e-9);
+    }
+
+    @Test
+    public void countAndRateUnderConcurrency() throws Exception {
+        AkkaSupport.AuditBoard board = new AkkaSupport.AuditBoard();
+        List<Thread> threads = new ArrayList<>();
+        long end = System.currentTimeMillis() + 600;
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                while (System.currentTimeMillis() < end) {
+                    board.audit(1);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long total = board.count();
+        assertTrue(total > 0);
+        assertTrue(board.rate1s() > 0);
+        // 速率不会超过总数在 250ms 内全部到达时的瞬时速率
+        assertTrue(board.rate1s() <= total * 4.0);
+    }
+
+    @Test
+    public void mergeBoardsWithSameName() {
+        String name = "audit-test-merge";
+        AkkaSupport.AuditBoard a = new AkkaSupport.AuditBoard(name);
+        AkkaSupport.AuditBoard b = new AkkaSupport.AuditBoard(name);
+        a.audit(3);
+        b.audit(4);
+        int found = 0;
+        for (AkkaSupport.AuditBoard.Snapshot snapshot : AkkaSupport.AuditBoard.snapshots()) {
+            if (name.equals(snapshot.name())) {
+                found++;
+                assertEquals(7, snapshot.count());
+            }
+        }
+        assertEquals(1, found);
+        // 保持两个 board 可达, 避免在抓取前被回收
+        assertEquals(3, a.count());
+        assertEquals(4, b.count());
+    }
+
+    @Test
+    public void pairLatencyInOrder() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram("audit-test-latency");
+        AkkaSupport.StageLatency latency = new AkkaSupport.StageLatency(histogram);
+        latency.enter();
+        latency.enter();
+        Thread.sleep(20);
+        latency.exit();
+        latency.enter();
+        latency.exit();
+        latency.exit();
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(3, snapshot.count());
+        // 前两个至少等了 20ms
+        assertTrue(snapshot.p50() >= TimeUnit.MILLISECONDS.toNanos(20));
+    }
+
+    @Test
+    public void pairAroundStage() throws Exception {
+        String name = "audit-test-pair-" + System.nanoTime();
+        Pair<Graph<FlowShape<Integer, Integer>, AkkaSupport.AuditBoard>,
+                Graph<FlowShape<Integer, Integer>, AkkaSupport.AuditBoard>> pair = AkkaSupport.auditorPair(name);
+        Source<Integer, NotUsed> source = Source.range(1, 50)
+                .via(pair.first())
+                .mapAsync(1, i -> CompletableFuture.supplyAsync(() -> {
+                    try {
+                        Thread.sleep(2);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return i;
+                }))
+                .via(pair.second());
+        source.runWith(Sink.ignore(), materializer).toCompletableFuture().get(5, TimeUnit.SECONDS);
+        LatencyHistogram.Snapshot snapshot = LatencyRegistry.histogram(name).snapshot();
+        assertEquals(50, snapshot.count());
+        assertTrue(snapshot.p50() >= TimeUnit.MILLISECONDS.toNanos(2));
+        try {
+            // 同一对再次物化
+            source.runWith(Sink.ignore(), materializer).toCompletableFuture().get(5, TimeUnit.SECONDS);
+            fail("expect IllegalStateException");
+        } catch (Exception e) {
+            Throwable cause = e instanceof IllegalStateException ? e : e.getCause();
+            assertTrue(String.valueOf(e), cause instanceof IllegalStateException);
+        }
+    }
+}
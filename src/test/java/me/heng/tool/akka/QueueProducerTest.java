@@ -0,0 +1,224 @@
+package me.heng.tool.akka;
+
+import akka.Done;
+import akka.actor.ActorSystem;
+import akka.japi.Pair;
+import akka.stream.ActorMaterializer;
+import akka.stream.Materializer;
+import akka.stream.OverflowStrategy;
+import akka.stream.QueueOfferResult;
+import akka.stream.javadsl.Keep;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import akka.stream.javadsl.SourceQueueWithComplete;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 8:20 PM
+ */
+public class QueueProducerTest {
+
+    private ActorSystem system;
+    private Materializer materializer;
+
+    @Before
+    public void setUp() {
+        system = ActorSystem.create("queue-producer-test");
+        materializer = ActorMaterializer.create(system);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        system.terminate().result(AkkaSupport.seconds(5), null);
+    }
+
+    @Test
+    public void dropNewestWhenFull() {
+        GatedQueue<Integer> queue = new GatedQueue<>();
+        QueueProducer<Integer> producer = new QueueProducer<>(queue, 2, QueueProducer.Overflow.DROP_NEWEST);
+        // 1 投递中, 2/3 在缓冲
+        for (int i = 1; i <= 4; i++) {
+            producer.accept(i);
+        }
+        assertEquals(3, producer.accepted());
+        assertEquals(1, producer.dropped());
+        assertEquals(2, producer.depth());
+        assertFalse(producer.tryOffer(5));
+        queue.releaseAll();
+        assertEquals(Arrays.asList(1, 2, 3), queue.offered);
+        assertEquals(3, producer.enqueued());
+        assertEquals(0, producer.depth());
+    }
+
+    @Test
+    public void dropOldestWhenFull() {
+        GatedQueue<Integer> queue = new GatedQueue<>();
+        QueueProducer<Integer> producer = new QueueProducer<>(queue, 2, QueueProducer.Overflow.DROP_OLDEST);
+        for (int i = 1; i <= 5; i++) {
+            producer.accept(i);
+        }
+        assertEquals(5, producer.accepted());
+        assertEquals(2, producer.dropped());
+        queue.releaseAll();
+        assertEquals(Arrays.asList(1, 4, 5), queue.offered);
+    }
+
+    @Test
+    public void blockUntilSpace() throws Exception {
+        GatedQueue<Integer> queue = new GatedQueue<>();
+        QueueProducer<Integer> producer = new QueueProducer<>(queue, 2, QueueProducer.Overflow.BLOCK);
+        producer.accept(1);
+        producer.accept(2);
+        producer.accept(3);
+        Thread blocked = new Thread(() -> producer.accept(4));
+        blocked.start();
+        blocked.join(100);
+        assertTrue(blocked.isAlive());
+        queue.release();
+        blocked.join(1000);
+        assertFalse(blocked.isAlive());
+        assertEquals(0, producer.dropped());
+        queue.releaseAll();
+        assertEquals(Arrays.asList(1, 2, 3, 4), queue.offered);
+    }
+
+    @Test
+    public void offerTimeout() throws Exception {
+        GatedQueue<Integer> queue = new GatedQueue<>();
+        QueueProducer<Integer> producer = new QueueProducer<>(queue, 1, QueueProducer.Overflow.BLOCK);
+        assertTrue(producer.offer(1, 0, TimeUnit.MILLISECONDS));
+        assertTrue(producer.offer(2, 0, TimeUnit.MILLISECONDS));
+        long start = System.nanoTime();
+        assertFalse(producer.offer(3, 50, TimeUnit.MILLISECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(1, producer.dropped());
+    }
+
+    @Test
+    public void offerAsyncWaitsInOrder() throws Exception {
+        GatedQueue<Integer> queue = new GatedQueue<>();
+        QueueProducer<Integer> producer = new QueueProducer<>(queue, 1, QueueProducer.Overflow.DROP_NEWEST);
+        assertTrue(producer.offerAsync(1).isDone());
+        assertTrue(producer.offerAsync(2).get());
+        CompletableFuture<Boolean> third = producer.offerAsync(3);
+        CompletableFuture<Boolean> fourth = producer.offerAsync(4);
+        assertFalse(third.isDone());
+        assertEquals(3, producer.depth());
+        queue.release();
+        assertTrue(third.get(1, TimeUnit.SECONDS));
+        assertFalse(fourth.isDone());
+        queue.releaseAll();
+        assertTrue(fourth.get(1, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(1, 2, 3, 4), queue.offered);
+    }
+
+    @Test
+    public void completeDrainsBufferFirst() throws Exception {
+        GatedQueue<Integer> queue = new GatedQueue<>();
+        QueueProducer<Integer> producer = new QueueProducer<>(queue, 2, QueueProducer.Overflow.DROP_NEWEST);
+        producer.accept(1);
+        producer.accept(2);
+        producer.accept(3);
+        CompletableFuture<Boolean> waiting = producer.offerAsync(4);
+        CompletableFuture<Done> done = producer.complete().toCompletableFuture();
+        // 等待中的异步 offer 被拒绝, 已缓冲的元素仍然投递
+        assertFalse(waiting.get(1, TimeUnit.SECONDS));
+        assertFalse(producer.tryOffer(5));
+        assertFalse(queue.completed);
+        queue.releaseAll();
+        assertTrue(queue.completed);
+        assertEquals(Arrays.asList(1, 2, 3), queue.offered);
+        queue.completion.complete(Done.getInstance());
+        done.get(1, TimeUnit.SECONDS);
+        assertEquals(2, producer.dropped());
+    }
+
+    @Test
+    public void completeDrainsIntoStream() throws Exception {
+        Pair<SourceQueueWithComplete<Integer>, CompletionStage<List<Integer>>> pair =
+                Source.<Integer>queue(4, OverflowStrategy.backpressure())
+                        .toMat(Sink.seq(), Keep.both())
+                        .run(materializer);
+        QueueProducer<Integer> producer = new QueueProducer<>(pair.first(), 1000, QueueProducer.Overflow.BLOCK);
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            producer.accept(i);
+            expected.add(i);
+        }
+        producer.complete().toCompletableFuture().get(3, TimeUnit.SECONDS);
+        assertEquals(expected, pair.second().toCompletableFuture().get(3, TimeUnit.SECONDS));
+        assertEquals(500, producer.enqueued());
+        assertEquals(0, producer.dropped());
+    }
+
+    /**
+     * 每次 offer 挂起, 由测试逐个放行
+     */
+    private static class GatedQueue<T> implements SourceQueueWithComplete<T> {
+        final List<T> offered = new ArrayList<>();
+        final Deque<CompletableFuture<QueueOfferResult>> pending = new ArrayDeque<>();
+        final CompletableFuture<Done> completion = new CompletableFuture<>();
+        volatile boolean completed;
+
+        @Override
+        public synchronized CompletionStage<QueueOfferResult> offer(T elem) {
+            offered.add(elem);
+            CompletableFuture<QueueOfferResult> future = new CompletableFuture<>();
+            pending.offerLast(future);
+            return future;
+        }
+
+        void release() {
+            CompletableFuture<QueueOfferResult> future;
+            synchronized (this) {
+                future = pending.pollFirst();
+            }
+            if (future != null) {
+                future.complete(QueueOfferResult.enqueued());
+            }
+        }
+
+        void releaseAll() {
+            while (true) {
+                synchronized (this) {
+                    if (pending.isEmpty()) {
+                        return;
+                    }
+                }
+                release();
+            }
+        }
+
+        @Override
+        public CompletionStage<Done> watchCompletion() {
+            return completion;
+        }
+
+        @Override
+        public void complete() {
+            completed = true;
+        }
+
+        @Override
+        public void fail(Throwable ex) {
+            completion.completeExceptionally(ex);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package me.heng.tool.akka;
+
+import akka.actor.ActorSystem;
+import akka.stream.ActorMaterializer;
+import akka.stream.Materializer;
+import akka.stream.OverflowStrategy;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import akka.stream.javadsl.SourceQueueWithComplete;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 7:40 PM
+ */
+public class RetentionTest {
+
+    private ActorSystem system;
+    private Materializer materializer;
+
+    @Before
+    public void setUp() {
+        system = ActorSystem.create("retention-test");
+        materializer = ActorMaterializer.create(system);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        system.terminate().result(AkkaSupport.seconds(5), null);
+    }
+
+    @Test
+    public void splitByMaxCountAndFlushOnFinish() throws Exception {
+        long start = System.currentTimeMillis();
+        List<List<Integer>> batches = Source.range(1, 10)
+                .via(AkkaSupport.<Integer>retain(10_000, 3, 0, null))
+                .runWith(Sink.seq(), materializer)
+                .toCompletableFuture().get(5, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList(Arrays.asList(1, 2, 3), Arrays.asList(4, 5, 6), Arrays.asList(7, 8, 9),
+                Arrays.asList(10)), batches);
+        // 剩余的批次随上游结束下发, 不等 delay
+        assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
+    @Test
+    public void splitByMaxBytes() throws Exception {
+        List<List<String>> batches = Source.from(Arrays.asList("aaaa", "bbbb", "cc", "dddddd", "e"))
+                .via(AkkaSupport.<String>retain(10_000, 100, 8, String::length))
+                .runWith(Sink.seq(), materializer)
+                .toCompletableFuture().get(3, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList(Arrays.asList("aaaa", "bbbb"), Arrays.asList("cc", "dddddd"),
+                Arrays.asList("e")), batches);
+    }
+
+    @Test
+    public void sealAfterDelay() throws Exception {
+        BlockingQueue<List<Integer>> received = new LinkedBlockingQueue<>();
+        SourceQueueWithComplete<Integer> queue = Source.<Integer>queue(16, OverflowStrategy.backpressure())
+                .via(AkkaSupport.<Integer>retain(100, 100, 0, null))
+                .to(Sink.foreach(received::add))
+                .run(materializer);
+        queue.offer(1);
+        queue.offer(2);
+        assertNull(received.poll(30, TimeUnit.MILLISECONDS));
+        // 上游没有结束, 到期后下发
+        assertEquals(Arrays.asList(1, 2), received.poll(2, TimeUnit.SECONDS));
+        queue.offer(3);
+        assertEquals(Arrays.asList(3), received.poll(2, TimeUnit.SECONDS));
+        queue.complete();
+    }
+
+    @Test
+    public void flushBeforeFailure() throws Exception {
+        BlockingQueue<List<Integer>> received = new LinkedBlockingQueue<>();
+        IllegalStateException error = new IllegalStateException("upstream");
+        CompletableFuture<?> done = Source.range(1, 5)
+                .concat(Source.<Integer>failed(error))
+                .via(AkkaSupport.<Integer>retain(10_000, 3, 0, null))
+                .runWith(Sink.foreach(received::add), materializer)
+                .toCompletableFuture();
+        try {
+            done.get(3, TimeUnit.SECONDS);
+            fail("expect upstream failure");
+        } catch (ExecutionException e) {
+            assertEquals(error, e.getCause());
+        }
+        assertEquals(Arrays.asList(1, 2, 3), received.poll());
+        assertEquals(Arrays.asList(4, 5), received.poll());
+    }
+}
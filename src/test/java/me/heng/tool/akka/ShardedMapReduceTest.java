@@ -0,0 +1,223 @@
+package me.heng.tool.akka;
+
+import akka.actor.ActorSystem;
+import akka.japi.Pair;
+import akka.stream.ActorMaterializer;
+import akka.stream.Materializer;
+import akka.stream.QueueOfferResult;
+import akka.stream.javadsl.SourceQueueWithComplete;
+import me.heng.tool.future.HashedWheelTimer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 9:10 PM
+ */
+public class ShardedMapReduceTest {
+
+    private static final BiFunction<Pair<String, Integer>, Pair<String, Integer>, Pair<String, Integer>> SUM =
+            (a, b) -> Pair.create(a.first(), a.second() + b.second());
+
+    private ActorSystem system;
+    private Materializer materializer;
+    private HashedWheelTimer timer;
+
+    @Before
+    public void setUp() {
+        system = ActorSystem.create("sharded-test");
+        materializer = ActorMaterializer.create(system);
+        timer = new HashedWheelTimer("sharded-test", 5, TimeUnit.MILLISECONDS, 64);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        timer.stop();
+        system.terminate().result(AkkaSupport.seconds(5), null);
+    }
+
+    private ShardedMapReduce<Pair<String, Integer>> create(int batchKeys, long flushMillis, long epochMillis,
+                                                           Consumer<Pair<String, Integer>> consumer) {
+        return new ShardedMapReduce<>(materializer, null, 4, 4, batchKeys, flushMillis, epochMillis, timer,
+                Pair::first, SUM, consumer);
+    }
+
+    @Test
+    public void chunkMergesAndResizes() {
+        ShardedMapReduce.Chunk<Integer> chunk = new ShardedMapReduce.Chunk<>();
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 1000; i++) {
+                String key = "k" + i;
+                chunk.merge(key, ShardedMapReduce.Chunk.spread(key.hashCode()), i, Integer::sum);
+            }
+        }
+        assertEquals(1000, chunk.size());
+        // 不同的 key 相同的 hash
+        chunk.merge("x", 7, 1, Integer::sum);
+        chunk.merge("y", 7, 2, Integer::sum);
+        chunk.merge("x", 7, 10, Integer::sum);
+        assertEquals(1002, chunk.size());
+
+        ShardedMapReduce.Chunk<Integer> other = new ShardedMapReduce.Chunk<>();
+        other.merge("y", 7, 100, Integer::sum);
+        other.merge("z", 8, 5, Integer::sum);
+        chunk.mergeAll(other, Integer::sum);
+        assertEquals(1003, chunk.size());
+
+        AtomicLong total = new AtomicLong();
+        List<Integer> values = new ArrayList<>();
+        chunk.forEach(v -> {
+            total.addAndGet(v);
+            values.add(v);
+        });
+        assertEquals(1003, values.size());
+        // 0..999 各 3 次, x=11, y=102, z=5
+        assertEquals(3L * 999 * 1000 / 2 + 11 + 102 + 5, total.get());
+    }
+
+    @Test
+    public void reduceAcrossShardsOnComplete() throws Exception {
+        Map<String, Integer> result = new ConcurrentHashMap<>();
+        ShardedMapReduce<Pair<String, Integer>> mr = create(16, 20, 0, p -> result.put(p.first(), p.second()));
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    mr.offer(Pair.create("k" + i % 100, 1)).toCompletableFuture().join();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        mr.complete().toCompletableFuture().get(5, TimeUnit.SECONDS);
+        assertEquals(100, result.size());
+        for (int v : result.values()) {
+            assertEquals(400, v);
+        }
+        assertTrue(mr.chunks() > 0);
+    }
+
+    @Test
+    public void flushPartialChunkAfterFlushMillis() throws Exception {
+        ShardedMapReduce<Pair<String, Integer>> mr = create(1000, 50, 0, p -> {
+        });
+        for (int i = 0; i < 10; i++) {
+            mr.offer(Pair.create("k" + i, 1));
+        }
+        assertEquals(0, mr.chunks());
+        long deadline = System.currentTimeMillis() + 2000;
+        while (mr.chunks() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(mr.chunks() > 0);
+        mr.complete().toCompletableFuture().get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void emitPerEpoch() throws Exception {
+        BlockingQueue<Pair<String, Integer>> received = new LinkedBlockingQueue<>();
+        ShardedMapReduce<Pair<String, Integer>> mr = create(1000, 20, 100, received::add);
+        mr.offer(Pair.create("a", 1));
+        mr.offer(Pair.create("a", 2));
+        mr.offer(Pair.create("b", 5));
+        Map<String, Integer> first = new ConcurrentHashMap<>();
+        for (int i = 0; i < 2; i++) {
+            Pair<String, Integer> p = received.poll(2, TimeUnit.SECONDS);
+            first.put(p.first(), p.second());
+        }
+        assertEquals(Integer.valueOf(3), first.get("a"));
+        assertEquals(Integer.valueOf(5), first.get("b"));
+        // 下一个周期只包含新元素
+        mr.offer(Pair.create("a", 10));
+        Pair<String, Integer> p = received.poll(2, TimeUnit.SECONDS);
+        assertEquals(Pair.create("a", 10), p);
+        assertNull(received.poll(250, TimeUnit.MILLISECONDS));
+        mr.complete().toCompletableFuture().get(5, TimeUnit.SECONDS);
+        assertNull(received.poll());
+    }
+
+    @Test
+    public void completeRacingOffer() throws Exception {
+        AtomicLong consumed = new AtomicLong();
+        ShardedMapReduce<Pair<String, Integer>> mr = create(8, 5, 0, p -> consumed.addAndGet(p.second()));
+        AtomicLong accepted = new AtomicLong();
+        CountDownLatch started = new CountDownLatch(4);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                started.countDown();
+                for (int i = 0; ; i++) {
+                    QueueOfferResult r = mr.offer(Pair.create("k" + i % 50, 1)).toCompletableFuture().join();
+                    if (QueueOfferResult.dropped().equals(r)) {
+                        return;
+                    }
+                    accepted.incrementAndGet();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        started.await();
+        Thread.sleep(50);
+        CompletableFuture<?> done = mr.complete().toCompletableFuture();
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+        done.get(5, TimeUnit.SECONDS);
+        // complete() 之前合并的元素都交给了 consumer, 之后的都是 dropped
+        assertTrue(accepted.get() > 0);
+        assertEquals(accepted.get(), consumed.get());
+    }
+
+    @Test
+    public void rejectNullKey() throws Exception {
+        ShardedMapReduce<Pair<String, Integer>> mr = create(8, 50, 0, p -> {
+        });
+        try {
+            mr.offer(Pair.create(null, 1)).toCompletableFuture().get(1, TimeUnit.SECONDS);
+            fail("expect null key failure");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof NullPointerException);
+        }
+        mr.complete().toCompletableFuture().get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void mapReduceStreamWithoutAutoFlushIsSharded() throws Exception {
+        Map<String, Integer> result = new ConcurrentHashMap<>();
+        SourceQueueWithComplete<Pair<String, Integer>> queue = AkkaSupport.mapReduceStreamWithoutAutoFlush(
+                materializer, p -> p.second() > 0, 2, Pair::first, SUM, p -> result.put(p.first(), p.second()));
+        // 旧实现中 key 的数量不能超过 maxSubstreams
+        for (int i = 0; i < 1000; i++) {
+            queue.offer(Pair.create("k" + i % 10, i % 2));
+        }
+        queue.complete();
+        queue.watchCompletion().toCompletableFuture().get(5, TimeUnit.SECONDS);
+        assertEquals(5, result.size());
+        assertEquals(Integer.valueOf(100), result.get("k1"));
+    }
+}
@@ -0,0 +1,126 @@
+package me.heng.tool.akka;
+
+import akka.actor.ActorSystem;
+import akka.japi.Pair;
+import akka.stream.ActorMaterializer;
+import akka.stream.Materializer;
+import akka.stream.OverflowStrategy;
+import akka.stream.javadsl.Keep;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import akka.stream.javadsl.SourceQueueWithComplete;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 8:00 PM
+ */
+public class WindowAggregationTest {
+
+    private ActorSystem system;
+    private Materializer materializer;
+
+    @Before
+    public void setUp() {
+        system = ActorSystem.create("window-test");
+        materializer = ActorMaterializer.create(system);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        system.terminate().result(AkkaSupport.seconds(5), null);
+    }
+
+    @Test
+    public void flushOpenWindowsOnFinish() throws Exception {
+        Pair<WindowAggregation.Stats, CompletionStage<List<WindowAggregation.Windowed<Integer>>>> pair =
+                Source.from(Arrays.asList(1, 2, 3, 4, 5))
+                        .viaMat(AkkaSupport.<Integer>tumblingWindow(60_000, i -> i % 2 == 0 ? "even" : "odd",
+                                Integer::sum), Keep.right())
+                        .toMat(Sink.seq(), Keep.both())
+                        .run(materializer);
+        List<WindowAggregation.Windowed<Integer>> result =
+                pair.second().toCompletableFuture().get(3, TimeUnit.SECONDS);
+        Map<String, Integer> sums = new HashMap<>();
+        for (WindowAggregation.Windowed<Integer> w : result) {
+            assertEquals(60_000, w.end() - w.start());
+            sums.put(w.key(), w.value());
+        }
+        assertEquals(2, result.size());
+        assertEquals(Integer.valueOf(9), sums.get("odd"));
+        assertEquals(Integer.valueOf(6), sums.get("even"));
+        assertEquals(1, pair.first().closed());
+        assertEquals(0, pair.first().late());
+    }
+
+    @Test
+    public void slidingWindowCountsLateElements() throws Exception {
+        long now = System.currentTimeMillis();
+        long t0 = now - now % 100 + 100;
+        // {key, timestamp}
+        List<long[]> events = Arrays.asList(new long[]{1, t0 + 10}, new long[]{1, t0 + 150},
+                new long[]{1, t0 - 10_000});
+        Pair<WindowAggregation.Stats, CompletionStage<List<WindowAggregation.Windowed<long[]>>>> pair =
+                Source.from(events)
+                        .viaMat(AkkaSupport.<long[]>slidingWindow(200, 100, 50, e -> e[1], e -> "k" + e[0],
+                                (a, b) -> new long[]{a[0] + b[0], Math.max(a[1], b[1])}), Keep.right())
+                        .toMat(Sink.seq(), Keep.both())
+                        .run(materializer);
+        List<WindowAggregation.Windowed<long[]>> result =
+                pair.second().toCompletableFuture().get(3, TimeUnit.SECONDS);
+        Map<Long, Long> counts = new HashMap<>();
+        for (WindowAggregation.Windowed<long[]> w : result) {
+            counts.put(w.start(), w.value()[0]);
+        }
+        // t0 + 10 属于 [t0 - 100, t0 + 100) 和 [t0, t0 + 200); t0 + 150 属于 [t0, t0 + 200) 和 [t0 + 100, t0 + 300)
+        assertEquals(3, counts.size());
+        assertEquals(Long.valueOf(1), counts.get(t0 - 100));
+        assertEquals(Long.valueOf(2), counts.get(t0));
+        assertEquals(Long.valueOf(1), counts.get(t0 + 100));
+        assertEquals(1, pair.first().late());
+        assertEquals(3, pair.first().closed());
+    }
+
+    @Test
+    public void closeWindowByTimer() throws Exception {
+        BlockingQueue<WindowAggregation.Windowed<Integer>> received = new LinkedBlockingQueue<>();
+        Pair<SourceQueueWithComplete<Integer>, WindowAggregation.Stats> pair =
+                Source.<Integer>queue(16, OverflowStrategy.backpressure())
+                        .viaMat(AkkaSupport.<Integer>tumblingWindow(100, i -> "k", Integer::sum), Keep.both())
+                        .to(Sink.foreach(received::add))
+                        .run(materializer);
+        SourceQueueWithComplete<Integer> queue = pair.first();
+        queue.offer(1).toCompletableFuture().get(1, TimeUnit.SECONDS);
+        queue.offer(2).toCompletableFuture().get(1, TimeUnit.SECONDS);
+        // 上游没有结束, 窗口到期后由定时关闭; 两个元素可能落在相邻的两个窗口
+        int sum = 0;
+        int windows = 0;
+        while (sum < 3) {
+            WindowAggregation.Windowed<Integer> w = received.poll(2, TimeUnit.SECONDS);
+            assertNotNull(w);
+            sum += w.value();
+            windows++;
+        }
+        assertEquals(3, sum);
+        assertEquals(windows, pair.second().closed());
+        assertNull(received.poll(200, TimeUnit.MILLISECONDS));
+        queue.complete();
+        queue.watchCompletion().toCompletableFuture().get(3, TimeUnit.SECONDS);
+    }
+}
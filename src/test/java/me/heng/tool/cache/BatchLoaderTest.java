@@ -0,0 +1,148 @@
+package me.heng.tool.cache;
+
+import me.heng.tool.future.HashedWheelTimer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 11:20 PM
+ */
+public class BatchLoaderTest {
+
+    private HashedWheelTimer timer;
+    private List<List<Integer>> batches;
+
+    @Before
+    public void setUp() {
+        timer = new HashedWheelTimer("test-batch", 5, TimeUnit.MILLISECONDS, 64);
+        batches = new CopyOnWriteArrayList<>();
+    }
+
+    @After
+    public void tearDown() {
+        timer.stop();
+    }
+
+    private Function<Collection<Integer>, Map<Integer, String>> recording() {
+        return keys -> {
+            batches.add(new ArrayList<>(keys));
+            Map<Integer, String> map = new HashMap<>();
+            for (Integer key : keys) {
+                if (key >= 0) {
+                    map.put(key, "v" + key);
+                }
+            }
+            return map;
+        };
+    }
+
+    private BatchLoader<Integer, String> loader(int maxBatchSize, long lingerMillis) {
+        return new BatchLoader<>(recording(), maxBatchSize, lingerMillis, TimeUnit.MILLISECONDS, Runnable::run, timer);
+    }
+
+    @Test
+    public void lingerCollectsSingleLoads() throws Exception {
+        BatchLoader<Integer, String> loader = loader(100, 50);
+        CompletableFuture<String> a = loader.load(1);
+        CompletableFuture<String> b = loader.load(2);
+        CompletableFuture<String> c = loader.load(3);
+        assertTrue(batches.isEmpty());
+        assertFalse(a.isDone());
+
+        assertEquals("v3", c.get(1, TimeUnit.SECONDS));
+        assertEquals("v1", a.get());
+        assertEquals("v2", b.get());
+        assertEquals(1, batches.size());
+        assertEquals(Arrays.asList(1, 2, 3), batches.get(0));
+        assertEquals(1, loader.batches());
+        assertEquals(3, loader.loadedKeys());
+    }
+
+    @Test
+    public void fullBatchDispatchedImmediately() throws Exception {
+        BatchLoader<Integer, String> loader = loader(4, 10_000);
+        Map<Integer, CompletableFuture<String>> futures = loader.loadAll(Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8, 9, 10));
+        assertEquals(2, batches.size());
+        assertEquals(Arrays.asList(1, 2, 3, 4), batches.get(0));
+        assertEquals(Arrays.asList(5, 6, 7, 8), batches.get(1));
+        assertFalse(futures.get(9).isDone());
+
+        loader.flush();
+        assertEquals(3, batches.size());
+        assertEquals(Arrays.asList(9, 10), batches.get(2));
+        for (Map.Entry<Integer, CompletableFuture<String>> e : futures.entrySet()) {
+            assertEquals("v" + e.getKey(), e.getValue().get());
+        }
+    }
+
+    @Test
+    public void zeroLingerDispatchesPerCall() {
+        BatchLoader<Integer, String> loader = loader(100, 0);
+        loader.loadAll(Arrays.asList(1, 2));
+        loader.load(3);
+        assertEquals(2, batches.size());
+        assertEquals(Arrays.asList(1, 2), batches.get(0));
+        assertEquals(Arrays.asList(3), batches.get(1));
+    }
+
+    @Test
+    public void sameKeyCoalesced() throws Exception {
+        BatchLoader<Integer, String> loader = loader(100, 20);
+        CompletableFuture<String> first = loader.load(7);
+        CompletableFuture<String> second = loader.load(7);
+        Map<Integer, CompletableFuture<String>> all = loader.loadAll(Arrays.asList(7, 7, 8));
+        assertSame(first, second);
+        assertSame(first, all.get(7));
+        assertEquals(2, all.size());
+        assertEquals(2, loader.coalesced());
+
+        assertEquals("v7", first.get(1, TimeUnit.SECONDS));
+        all.get(8).get(1, TimeUnit.SECONDS);
+        assertEquals(1, batches.size());
+        assertEquals(Arrays.asList(7, 8), batches.get(0));
+    }
+
+    @Test
+    public void missingKeyAndLoaderFailure() throws Exception {
+        BatchLoader<Integer, String> loader = loader(100, 0);
+        assertNull(loader.load(-1).get());
+
+        BatchLoader<Integer, String> failing = new BatchLoader<>(keys -> {
+            throw new IllegalStateException("boom");
+        }, 100, 0, TimeUnit.MILLISECONDS, Runnable::run, timer);
+        Map<Integer, CompletableFuture<String>> futures = failing.loadAll(Arrays.asList(1, 2));
+        for (CompletableFuture<String> f : futures.values()) {
+            try {
+                f.get();
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        }
+        // 失败后不残留, 再次加载会重新发出
+        failing.load(1);
+        assertEquals(2, failing.batches());
+    }
+}
@@ -0,0 +1,121 @@
+package me.heng.tool.cache;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 9:40 PM
+ */
+public class CacheMaintainerTest {
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 3000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void cleanUpRegisteredCache() throws Exception {
+        CacheMaintainer maintainer = new CacheMaintainer("maintainer-test", 5, 2, TimeUnit.MILLISECONDS);
+        AtomicInteger cache = new AtomicInteger();
+        CacheMaintainer.Registration<AtomicInteger> r =
+                maintainer.register("counter", cache, AtomicInteger::incrementAndGet, 20, TimeUnit.MILLISECONDS);
+        await(() -> cache.get() >= 3);
+        assertTrue(cache.get() >= 3);
+        assertTrue(r.runs() >= 3);
+        assertTrue(r.isAlive());
+        assertEquals(1, maintainer.registrations().size());
+    }
+
+    @Test
+    public void keepIntervalBetweenRuns() throws Exception {
+        CacheMaintainer maintainer = new CacheMaintainer("maintainer-test", 5, 2, TimeUnit.MILLISECONDS);
+        AtomicInteger cache = new AtomicInteger();
+        maintainer.register("slow", cache, AtomicInteger::incrementAndGet, 100, TimeUnit.MILLISECONDS);
+        Thread.sleep(350);
+        // 间隔 100ms, 首次在注册 100ms 之后
+        assertTrue("runs " + cache.get(), cache.get() >= 2 && cache.get() <= 4);
+    }
+
+    @Test
+    public void cancelStopsCleanUp() throws Exception {
+        CacheMaintainer maintainer = new CacheMaintainer("maintainer-test", 5, 2, TimeUnit.MILLISECONDS);
+        AtomicInteger cache = new AtomicInteger();
+        CacheMaintainer.Registration<AtomicInteger> r =
+                maintainer.register("cancel", cache, AtomicInteger::incrementAndGet, 10, TimeUnit.MILLISECONDS);
+        await(() -> cache.get() > 0);
+        r.cancel();
+        assertFalse(r.isAlive());
+        await(() -> maintainer.collected() == 1);
+        assertEquals(1, maintainer.collected());
+        int runs = cache.get();
+        Thread.sleep(50);
+        assertEquals(runs, cache.get());
+        assertTrue(maintainer.registrations().isEmpty());
+    }
+
+    @Test
+    public void unregisterCollectedCache() throws Exception {
+        CacheMaintainer maintainer = new CacheMaintainer("maintainer-test", 5, 2, TimeUnit.MILLISECONDS);
+        AtomicInteger runs = new AtomicInteger();
+        // cleanUp 不持有 cache 的强引用
+        CacheMaintainer.Registration<Object> r =
+                maintainer.register("gc", new Object(), c -> runs.incrementAndGet(), 10, TimeUnit.MILLISECONDS);
+        long deadline = System.currentTimeMillis() + 3000;
+        while (maintainer.collected() == 0 && System.currentTimeMillis() < deadline) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(1, maintainer.collected());
+        assertFalse(r.isAlive());
+    }
+
+    @Test
+    public void resumeAfterSliceOverrun() throws Exception {
+        CacheMaintainer maintainer = new CacheMaintainer("maintainer-test", 5, 1, TimeUnit.MILLISECONDS);
+        List<AtomicInteger> caches = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            AtomicInteger cache = new AtomicInteger();
+            caches.add(cache);
+            maintainer.register("slow" + i, cache, c -> {
+                c.incrementAndGet();
+                try {
+                    Thread.sleep(2);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, 1, TimeUnit.MILLISECONDS);
+        }
+        await(() -> caches.stream().allMatch(c -> c.get() > 0));
+        // 每个 tick 只能清理一个, 后面的在之后的 tick 中轮到
+        assertTrue(maintainer.overruns() > 0);
+        for (AtomicInteger cache : caches) {
+            assertTrue(cache.get() > 0);
+        }
+    }
+
+    @Test
+    public void failureDoesNotStopMaintenance() throws Exception {
+        CacheMaintainer maintainer = new CacheMaintainer("maintainer-test", 5, 2, TimeUnit.MILLISECONDS);
+        AtomicInteger cache = new AtomicInteger();
+        CacheMaintainer.Registration<AtomicInteger> r = maintainer.register("fail", cache, c -> {
+            c.incrementAndGet();
+            throw new IllegalStateException("cleanUp");
+        }, 10, TimeUnit.MILLISECONDS);
+        await(() -> r.failures() >= 2);
+        assertTrue(r.failures() >= 2);
+        assertTrue(r.isAlive());
+    }
+}
@@ -0,0 +1,85 @@
+package me.heng.tool.cache;
+
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 9:55 PM
+ */
+public class CacheRegistryTest {
+
+    private static final MBeanServer SERVER = ManagementFactory.getPlatformMBeanServer();
+
+    private static ObjectName objectName(String name) throws Exception {
+        return new ObjectName("me.heng.tool:type=Cache,name=" + ObjectName.quote(name));
+    }
+
+    @Test
+    public void registerAndUnregister() throws Exception {
+        Map<String, String> cache = new HashMap<>();
+        CacheMetrics metrics = CacheRegistry.register(new CacheMetrics("registry-plain", 10).bind(cache, Map::size));
+        assertSame(metrics, CacheRegistry.get("registry-plain"));
+        assertTrue(SERVER.isRegistered(objectName("registry-plain")));
+
+        CacheRegistry.unregister("registry-plain");
+        assertNull(CacheRegistry.get("registry-plain"));
+        assertFalse(SERVER.isRegistered(objectName("registry-plain")));
+    }
+
+    @Test
+    public void sameNameReplaces() throws Exception {
+        Map<String, String> first = new HashMap<>();
+        Map<String, String> second = new HashMap<>();
+        CacheRegistry.register(new CacheMetrics("registry-same", 10).bind(first, Map::size));
+        CacheMetrics latest = CacheRegistry.register(new CacheMetrics("registry-same", 10).bind(second, Map::size));
+        assertSame(latest, CacheRegistry.get("registry-same"));
+        assertTrue(SERVER.isRegistered(objectName("registry-same")));
+        CacheRegistry.unregister("registry-same");
+    }
+
+    @Test
+    public void collectedCacheUnregisteredOnRegister() throws Exception {
+        WeakReference<Object> ref = registerTransient("registry-collected");
+        assertTrue(SERVER.isRegistered(objectName("registry-collected")));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (ref.get() != null && System.currentTimeMillis() < deadline) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(ref.get());
+
+        Map<String, String> other = new HashMap<>();
+        boolean unregistered = false;
+        while (!unregistered && System.currentTimeMillis() < deadline) {
+            // 回收后引用入队可能稍有延迟, 没有 snapshots 调用也应被注销
+            CacheRegistry.register(new CacheMetrics("registry-other", 10).bind(other, Map::size));
+            unregistered = !SERVER.isRegistered(objectName("registry-collected"));
+            if (!unregistered) {
+                Thread.sleep(10);
+            }
+        }
+        assertTrue(unregistered);
+        assertNull(CacheRegistry.get("registry-collected"));
+        CacheRegistry.unregister("registry-other");
+    }
+
+    private static WeakReference<Object> registerTransient(String name) {
+        Map<String, String> cache = new HashMap<>();
+        CacheRegistry.register(new CacheMetrics(name, 10).bind(cache, Map::size));
+        return new WeakReference<>(cache);
+    }
+}
@@ -0,0 +1,153 @@
+package me.heng.tool.cache;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 7:20 PM
+ */
+public class OffHeapCacheTest {
+
+    private static final int SLAB = 4096;
+
+    private static final Serializer<String> UTF8 = new Serializer<String>() {
+        @Override
+        public byte[] serialize(String value) {
+            return value.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String deserialize(byte[] bytes) {
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    };
+
+    private static String value(int key, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        sb.append(key).append(':');
+        while (sb.length() < length) {
+            sb.append((char) ('a' + (key + sb.length()) % 26));
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void putGetAcrossSlabs() {
+        OffHeapCache<Integer, String> cache = new OffHeapCache<>(16 * SLAB, SLAB, 1, 0, TimeUnit.SECONDS, UTF8);
+        // 每个值 100 字节, 共需要多个 slab
+        for (int i = 0; i < 300; i++) {
+            assertTrue(cache.set(i, value(i, 100)));
+        }
+        for (int i = 0; i < 300; i++) {
+            assertEquals(value(i, 100), cache.get(i));
+        }
+        OffHeapCache.Stats stats = cache.stats();
+        assertTrue(stats.slabBytes() > SLAB);
+        assertEquals(300, stats.entries());
+        assertEquals(300 * 100, stats.usedBytes());
+    }
+
+    @Test
+    public void replaceAndRemoveReuseChunks() {
+        OffHeapCache<Integer, String> cache = new OffHeapCache<>(SLAB, SLAB, 1, 0, TimeUnit.SECONDS, UTF8);
+        assertNull(cache.put(1, value(1, 50)));
+        assertEquals(value(1, 50), cache.put(1, value(2, 500)));
+        assertEquals(value(2, 500), cache.get(1));
+        assertEquals(value(2, 500), cache.remove(1));
+        assertNull(cache.get(1));
+        assertEquals(0, cache.stats().usedBytes());
+    }
+
+    @Test
+    public void evictLeastRecentlyUsedWhenFull() {
+        OffHeapCache<Integer, String> cache = new OffHeapCache<>(SLAB, SLAB, 1, 0, TimeUnit.SECONDS, UTF8);
+        int n = 0;
+        while (cache.stats().evictions() == 0) {
+            cache.set(n, value(n, 100));
+            // 保持 0 号最近被访问
+            cache.get(0);
+            n++;
+        }
+        assertEquals(value(0, 100), cache.get(0));
+        assertNull(cache.get(1));
+        assertEquals(value(n - 1, 100), cache.get(n - 1));
+    }
+
+    @Test
+    public void reassignSlabToAnotherSizeClass() {
+        OffHeapCache<Integer, String> cache = new OffHeapCache<>(2 * SLAB, SLAB, 1, 0, TimeUnit.SECONDS, UTF8);
+        for (int i = 0; i < 100; i++) {
+            cache.set(i, value(i, 40));
+        }
+        // 小值占满了所有 slab, 大值需要回收其中一个 slab
+        assertTrue(cache.set(1000, value(1000, 2000)));
+        assertEquals(value(1000, 2000), cache.get(1000));
+        assertEquals(0, cache.stats().rejected());
+    }
+
+    @Test
+    public void rejectValueLargerThanSlab() {
+        OffHeapCache<Integer, String> cache = new OffHeapCache<>(SLAB, SLAB, 1, 0, TimeUnit.SECONDS, UTF8);
+        assertFalse(cache.set(1, value(1, SLAB + 1)));
+        assertNull(cache.get(1));
+        assertEquals(1, cache.stats().rejected());
+    }
+
+    @Test
+    public void expireAfterWrite() throws Exception {
+        OffHeapCache<Integer, String> cache = new OffHeapCache<>(SLAB, SLAB, 1, 50, TimeUnit.MILLISECONDS, UTF8);
+        cache.set(1, "a");
+        assertEquals("a", cache.get(1));
+        Thread.sleep(80);
+        assertNull(cache.get(1));
+        assertEquals(1, cache.stats().expirations());
+    }
+
+    @Test
+    public void hotSegmentTakesSlabsFromColdSegments() {
+        OffHeapCache<Integer, String> cache = new OffHeapCache<>(8 * SLAB, SLAB, 8, 0, TimeUnit.SECONDS, UTF8);
+        // 先让每个段都分到 slab, 然后清空
+        for (int i = 0; i < 800; i++) {
+            cache.set(i, value(i, 30));
+        }
+        cache.clear();
+        // 8 的倍数都落在同一个段
+        int written = 0;
+        for (int i = 0; i < 8 * 1000; i += 8) {
+            if (cache.set(i, value(i, 30))) {
+                written++;
+            }
+        }
+        int live = 0;
+        for (int i = 0; i < 8 * 1000; i += 8) {
+            if (cache.get(i) != null) {
+                live++;
+            }
+        }
+        assertEquals(1000, written);
+        // 单个段只有 1/8 的额度时最多放下 128 个 32 字节的 chunk
+        assertTrue("live " + live, live > 8 * SLAB / 32 / 2);
+    }
+
+    @Test
+    public void closeReleasesSlabs() {
+        OffHeapCache<Integer, String> cache = new OffHeapCache<>(4 * SLAB, SLAB, 2, 0, TimeUnit.SECONDS, UTF8);
+        for (int i = 0; i < 100; i++) {
+            cache.set(i, value(i, 100));
+        }
+        cache.close();
+        assertNull(cache.get(1));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.stats().slabBytes());
+        assertFalse(cache.set(1, "a"));
+    }
+}
@@ -0,0 +1,144 @@
+package me.heng.tool.cache;
+
+import com.google.common.cache.RemovalCause;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 6:55 PM
+ */
+public class TinyLfuMapTest {
+
+    @Test
+    public void evictDownToMaximum() {
+        List<RemovalCause> causes = new CopyOnWriteArrayList<>();
+        TinyLfuMap<Integer, Integer> map = new TinyLfuMap<>(100, 0, 0, TimeUnit.SECONDS,
+                n -> causes.add(n.getCause()));
+        for (int i = 0; i < 1000; i++) {
+            map.put(i, i);
+        }
+        map.cleanUp();
+        assertEquals(100, map.size());
+        assertEquals(900, map.evictionCount());
+        assertEquals(900, causes.size());
+        assertTrue(causes.stream().allMatch(c -> c == RemovalCause.SIZE));
+    }
+
+    @Test
+    public void frequentKeysSurviveScan() {
+        TinyLfuMap<Integer, Integer> map = new TinyLfuMap<>(100, 0, 0, TimeUnit.SECONDS, null);
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 50; i++) {
+                if (map.get(i) == null) {
+                    map.put(i, i);
+                }
+            }
+            map.cleanUp();
+        }
+        // 只访问一次的扫描不应挤掉高频的key
+        for (int i = 1000; i < 11000; i++) {
+            map.put(i, i);
+        }
+        map.cleanUp();
+        int hot = 0;
+        for (int i = 0; i < 50; i++) {
+            if (map.get(i) != null) {
+                hot++;
+            }
+        }
+        assertTrue("hot keys left: " + hot, hot >= 45);
+    }
+
+    @Test
+    public void expireAfterWrite() throws Exception {
+        List<RemovalCause> causes = new CopyOnWriteArrayList<>();
+        TinyLfuMap<String, String> map = new TinyLfuMap<>(10, 50, 0, TimeUnit.MILLISECONDS,
+                n -> causes.add(n.getCause()));
+        map.put("a", "1");
+        assertEquals("1", map.get("a"));
+        Thread.sleep(80);
+        assertNull(map.get("a"));
+        assertEquals(1, causes.size());
+        assertEquals(RemovalCause.EXPIRED, causes.get(0));
+    }
+
+    @Test
+    public void computeIfAbsentCallsFunctionOnce() throws Exception {
+        TinyLfuMap<Integer, Integer> map = new TinyLfuMap<>(1000, 0, 0, TimeUnit.SECONDS, null);
+        AtomicInteger calls = new AtomicInteger();
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            executor.execute(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < 1000; i++) {
+                        map.computeIfAbsent(i % 100, k -> {
+                            calls.incrementAndGet();
+                            return k;
+                        });
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        start.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        executor.shutdown();
+        assertEquals(100, calls.get());
+        assertEquals(100, map.size());
+    }
+
+    @Test
+    public void mergeIsAtomic() throws Exception {
+        TinyLfuMap<String, Integer> map = new TinyLfuMap<>(10, 0, 0, TimeUnit.SECONDS, null);
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            executor.execute(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    map.merge("counter", 1, Integer::sum);
+                }
+                done.countDown();
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        executor.shutdown();
+        assertEquals(80000, (int) map.get("counter"));
+    }
+
+    @Test
+    public void computeTreatsExpiredAsAbsent() throws Exception {
+        List<RemovalCause> causes = new CopyOnWriteArrayList<>();
+        TinyLfuMap<String, Integer> map = new TinyLfuMap<>(10, 50, 0, TimeUnit.MILLISECONDS,
+                n -> causes.add(n.getCause()));
+        map.put("a", 1);
+        Thread.sleep(80);
+        assertEquals(10, (int) map.compute("a", (k, v) -> v == null ? 10 : v + 1));
+        assertEquals(RemovalCause.EXPIRED, causes.get(0));
+        assertEquals(11, (int) map.computeIfPresent("a", (k, v) -> v + 1));
+        assertEquals(RemovalCause.REPLACED, causes.get(1));
+        assertNull(map.computeIfPresent("a", (k, v) -> null));
+        assertEquals(RemovalCause.EXPLICIT, causes.get(2));
+        assertNull(map.get("a"));
+    }
+}
@@ -0,0 +1,135 @@
+package me.heng.tool.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 11:30 PM
+ */
+public class TwoTierCacheTest {
+
+    private LocalInvalidationBus bus;
+    private ConcurrentMap<String, String> shared;
+    private TwoTierCache<String, String> nodeA;
+    private TwoTierCache<String, String> nodeB;
+
+    @Before
+    public void setUp() {
+        bus = new LocalInvalidationBus();
+        shared = new ConcurrentHashMap<>();
+        nodeA = new TwoTierCache<>("test", new ConcurrentHashMap<>(), CacheStore.of(shared), bus, null);
+        nodeB = new TwoTierCache<>("test", new ConcurrentHashMap<>(), CacheStore.of(shared), bus, null);
+    }
+
+    @After
+    public void tearDown() {
+        nodeA.close();
+        nodeB.close();
+    }
+
+    @Test
+    public void putInvalidatesOtherNodes() {
+        nodeA.put("k", "v1");
+        assertEquals("v1", nodeB.get("k"));
+        assertEquals(1, nodeB.l2Hits());
+        assertEquals("v1", nodeB.get("k"));
+        assertEquals(1, nodeB.l1Hits());
+
+        nodeA.put("k", "v2");
+        assertFalse(nodeB.l1().containsKey("k"));
+        assertEquals("v2", nodeB.get("k"));
+        // 自己发出的消息被忽略
+        assertEquals(0, nodeA.invalidationsReceived());
+        assertEquals(2, nodeB.invalidationsReceived());
+    }
+
+    @Test
+    public void invalidateRemovesBothTiers() {
+        nodeA.put("k", "v");
+        nodeB.get("k");
+        nodeA.invalidate("k");
+        assertFalse(nodeA.l1().containsKey("k"));
+        assertFalse(nodeB.l1().containsKey("k"));
+        assertNull(nodeB.get("k"));
+        assertFalse(shared.containsKey("k"));
+    }
+
+    @Test
+    public void invalidateAllLocalKeepsL2() {
+        nodeA.put("a", "1");
+        nodeA.put("b", "2");
+        nodeB.getAll(Arrays.asList("a", "b"));
+        assertEquals(2, nodeB.l1().size());
+
+        nodeA.invalidateAllLocal();
+        assertTrue(nodeA.l1().isEmpty());
+        assertTrue(nodeB.l1().isEmpty());
+        assertEquals(2, shared.size());
+        assertEquals("1", nodeB.get("a"));
+    }
+
+    @Test
+    public void getAllLoadsMissesInOrder() {
+        TwoTierCache<String, String> loading = new TwoTierCache<>("test", new ConcurrentHashMap<>(),
+                CacheStore.of(shared), bus, key -> key.startsWith("x") ? null : key.toUpperCase());
+        shared.put("b", "B");
+        Map<String, String> result = loading.getAll(Arrays.asList("c", "x", "b", "a"));
+        assertEquals(Arrays.asList("c", "b", "a"), Arrays.asList(result.keySet().toArray()));
+        assertEquals("C", result.get("c"));
+        assertEquals(1, loading.l2Hits());
+        assertEquals(3, loading.loads());
+        // 加载的值写入 L2
+        assertEquals("A", shared.get("a"));
+        loading.close();
+    }
+
+    @Test
+    public void invalidationDuringFillIsNotLost() {
+        // L2 读取返回旧值之后、回填 L1 之前, 另一个节点写入新值
+        CacheStore<String, String> racing = new CacheStore<String, String>() {
+            @Override
+            public String get(String key) {
+                String old = shared.get(key);
+                nodeB.put(key, "new");
+                return old;
+            }
+
+            @Override
+            public void put(String key, String value) {
+                shared.put(key, value);
+            }
+
+            @Override
+            public void remove(String key) {
+                shared.remove(key);
+            }
+        };
+        TwoTierCache<String, String> node = new TwoTierCache<>("test", new ConcurrentHashMap<>(), racing, bus, null);
+        shared.put("k", "old");
+        assertEquals("old", node.get("k"));
+        assertFalse(node.l1().containsKey("k"));
+        node.close();
+    }
+
+    @Test
+    public void closeStopsReceiving() {
+        nodeA.put("k", "v1");
+        nodeB.get("k");
+        nodeB.close();
+        nodeA.put("k", "v2");
+        assertEquals("v1", nodeB.get("k"));
+    }
+}
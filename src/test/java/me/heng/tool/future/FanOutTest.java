@@ -0,0 +1,144 @@
+package me.heng.tool.future;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 8:50 PM
+ */
+public class FanOutTest {
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(8);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void boundConcurrencyAndKeepOrder() throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        List<Callable<Integer>> tasks = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            int n = i;
+            tasks.add(() -> {
+                int r = running.incrementAndGet();
+                maxRunning.accumulateAndGet(r, Math::max);
+                Thread.sleep((n * 7) % 5);
+                running.decrementAndGet();
+                return n;
+            });
+        }
+        WatchResult<Integer> result = FanOut.run(executor, tasks.iterator(), 3, false).get(5, TimeUnit.SECONDS);
+        assertEquals(40, result.size());
+        for (int i = 0; i < 40; i++) {
+            assertEquals(Integer.valueOf(i), result.value(i));
+        }
+        assertTrue("max running " + maxRunning.get(), maxRunning.get() <= 3);
+        assertEquals(0, result.failedCount());
+    }
+
+    @Test
+    public void recordErrorsWithoutFailFast() throws Exception {
+        List<Callable<Integer>> tasks = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            int n = i;
+            tasks.add(() -> {
+                if (n % 3 == 0) {
+                    throw new IllegalStateException("task " + n);
+                }
+                return n;
+            });
+        }
+        WatchResult<Integer> result = FanOut.run(executor, tasks.iterator(), 4, false).get(5, TimeUnit.SECONDS);
+        assertEquals(4, result.failedCount());
+        assertTrue(result.isFailed(3));
+        assertNull(result.value(3));
+        assertEquals(Integer.valueOf(4), result.value(4));
+    }
+
+    @Test
+    public void failFastCancelsRunningAndStopsSubmitting() throws Exception {
+        AtomicInteger started = new AtomicInteger();
+        AtomicInteger interrupted = new AtomicInteger();
+        CountDownLatch slowStarted = new CountDownLatch(1);
+        List<Callable<Integer>> tasks = new ArrayList<>();
+        tasks.add(() -> {
+            started.incrementAndGet();
+            slowStarted.countDown();
+            try {
+                Thread.sleep(5000);
+            } catch (InterruptedException e) {
+                interrupted.incrementAndGet();
+                throw e;
+            }
+            return 0;
+        });
+        tasks.add(() -> {
+            started.incrementAndGet();
+            slowStarted.await();
+            throw new IllegalStateException("boom");
+        });
+        for (int i = 0; i < 10; i++) {
+            tasks.add(() -> started.incrementAndGet());
+        }
+        try {
+            FanOut.run(executor, tasks.iterator(), 2, true).get(2, TimeUnit.SECONDS);
+            fail("expect failure");
+        } catch (ExecutionException e) {
+            assertEquals("boom", e.getCause().getMessage());
+        }
+        Thread.sleep(100);
+        assertEquals(1, interrupted.get());
+        assertEquals(2, started.get());
+    }
+
+    @Test
+    public void directExecutorDoesNotGrowStack() throws Exception {
+        int n = 100_000;
+        Iterator<Callable<Integer>> tasks = new Iterator<Callable<Integer>>() {
+            int i;
+
+            @Override
+            public boolean hasNext() {
+                return i < n;
+            }
+
+            @Override
+            public Callable<Integer> next() {
+                int v = i++;
+                return () -> v;
+            }
+        };
+        WatchResult<Integer> result = FanOut.run(MoreExecutors.newDirectExecutorService(), tasks, 4, false)
+                .get(10, TimeUnit.SECONDS);
+        assertEquals(n, result.size());
+        assertEquals(Integer.valueOf(n - 1), result.value(n - 1));
+    }
+}
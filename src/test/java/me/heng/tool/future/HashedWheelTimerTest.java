@@ -0,0 +1,97 @@
+package me.heng.tool.future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 4:50 PM
+ */
+public class HashedWheelTimerTest {
+
+    private HashedWheelTimer timer;
+
+    @Before
+    public void setUp() {
+        timer = new HashedWheelTimer("test-timer", 5, TimeUnit.MILLISECONDS, 8);
+    }
+
+    @After
+    public void tearDown() {
+        timer.stop();
+    }
+
+    @Test
+    public void expireAfterDelay() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        long start = System.nanoTime();
+        Timer.Timeout timeout = timer.newTimeout(latch::countDown, 50, TimeUnit.MILLISECONDS);
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("fired too early: " + elapsed, elapsed >= 45);
+        assertTrue(timeout.isExpired());
+        assertFalse(timeout.cancel());
+        assertEquals(0, timer.pending());
+        assertEquals(1, timer.expired());
+    }
+
+    @Test
+    public void expireInDeadlineOrderAcrossRounds() throws Exception {
+        // 8 个桶 * 5ms, 超过一圈的任务需要等待多轮
+        List<Integer> fired = new CopyOnWriteArrayList<>();
+        CountDownLatch latch = new CountDownLatch(3);
+        timer.newTimeout(() -> {
+            fired.add(3);
+            latch.countDown();
+        }, 150, TimeUnit.MILLISECONDS);
+        timer.newTimeout(() -> {
+            fired.add(1);
+            latch.countDown();
+        }, 10, TimeUnit.MILLISECONDS);
+        timer.newTimeout(() -> {
+            fired.add(2);
+            latch.countDown();
+        }, 80, TimeUnit.MILLISECONDS);
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertEquals(3, fired.size());
+        assertEquals(1, (int) fired.get(0));
+        assertEquals(2, (int) fired.get(1));
+        assertEquals(3, (int) fired.get(2));
+    }
+
+    @Test
+    public void cancelledTaskNeverRuns() throws Exception {
+        AtomicInteger runs = new AtomicInteger();
+        Timer.Timeout cancelled = timer.newTimeout(runs::incrementAndGet, 30, TimeUnit.MILLISECONDS);
+        CountDownLatch latch = new CountDownLatch(1);
+        timer.newTimeout(latch::countDown, 80, TimeUnit.MILLISECONDS);
+        assertTrue(cancelled.cancel());
+        assertTrue(cancelled.isCancelled());
+        assertFalse(cancelled.cancel());
+        assertEquals(1, timer.pending());
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertEquals(0, runs.get());
+        assertFalse(cancelled.isExpired());
+    }
+
+    @Test
+    public void stopDropsPendingTasks() throws Exception {
+        AtomicInteger runs = new AtomicInteger();
+        timer.newTimeout(runs::incrementAndGet, 100, TimeUnit.MILLISECONDS);
+        timer.stop();
+        Thread.sleep(200);
+        assertEquals(0, runs.get());
+    }
+}
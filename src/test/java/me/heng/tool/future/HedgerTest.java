@@ -0,0 +1,153 @@
+package me.heng.tool.future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 8:40 PM
+ */
+public class HedgerTest {
+
+    private HashedWheelTimer timer;
+
+    @Before
+    public void setUp() {
+        timer = new HashedWheelTimer("hedger-test", 5, TimeUnit.MILLISECONDS, 64);
+    }
+
+    @After
+    public void tearDown() {
+        timer.stop();
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void noHedgeWhenPrimaryIsFast() throws Exception {
+        Hedger<String> hedger = new Hedger<>(0.9, 3, 50, timer);
+        AtomicInteger invoked = new AtomicInteger();
+        String r = hedger.call(null, () -> {
+            invoked.incrementAndGet();
+            return CompletableFuture.completedFuture("a");
+        }).get(1, TimeUnit.SECONDS);
+        assertEquals("a", r);
+        Thread.sleep(100);
+        assertEquals(1, invoked.get());
+        assertEquals(1, hedger.calls());
+        assertEquals(0, hedger.hedges());
+    }
+
+    @Test
+    public void hedgeAfterDelayAndCancelLoser() throws Exception {
+        Hedger<String> hedger = new Hedger<>(0.9, 2, 50, timer);
+        List<CompletableFuture<String>> attempts = new CopyOnWriteArrayList<>();
+        long start = System.nanoTime();
+        CompletableFuture<String> result = hedger.call(null, () -> {
+            CompletableFuture<String> f = new CompletableFuture<>();
+            if (attempts.isEmpty()) {
+                attempts.add(f);
+            } else {
+                attempts.add(f);
+                f.complete("hedge");
+            }
+            return f;
+        });
+        assertEquals("hedge", result.get(2, TimeUnit.SECONDS));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("hedged too early: " + elapsed, elapsed >= 45);
+        assertEquals(2, attempts.size());
+        // 结果先于计数和取消发布, 等待完成线程处理完
+        await(() -> attempts.get(0).isCancelled() && hedger.hedgesWon() == 1);
+        // 首次请求被取消
+        assertTrue(attempts.get(0).isCancelled());
+        assertEquals(1, hedger.hedges());
+        assertEquals(1, hedger.hedgesWon());
+    }
+
+    @Test
+    public void primaryWinsBeforeSecondHedge() throws Exception {
+        Hedger<String> hedger = new Hedger<>(0.9, 3, 40, timer);
+        List<CompletableFuture<String>> attempts = new CopyOnWriteArrayList<>();
+        CompletableFuture<String> result = hedger.call(null, () -> {
+            CompletableFuture<String> f = new CompletableFuture<>();
+            attempts.add(f);
+            return f;
+        });
+        long deadline = System.currentTimeMillis() + 2000;
+        while (attempts.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(2, attempts.size());
+        attempts.get(0).complete("primary");
+        assertEquals("primary", result.get(1, TimeUnit.SECONDS));
+        await(() -> attempts.get(1).isCancelled());
+        assertTrue(attempts.get(1).isCancelled());
+        Thread.sleep(100);
+        // 已有结果, 不再发起第三次
+        assertEquals(2, attempts.size());
+        assertEquals(1, hedger.hedges());
+        assertEquals(0, hedger.hedgesWon());
+    }
+
+    @Test
+    public void hedgeDoesNotRunOnTimerThread() throws Exception {
+        AtomicReference<Thread> timerThread = new AtomicReference<>();
+        timer.newTimeout(() -> timerThread.set(Thread.currentThread()), 1, TimeUnit.MILLISECONDS);
+        Hedger<String> hedger = new Hedger<>(0.9, 2, 20, timer);
+        List<Thread> threads = new CopyOnWriteArrayList<>();
+        CompletableFuture<String> result = hedger.call(null, () -> {
+            threads.add(Thread.currentThread());
+            CompletableFuture<String> f = new CompletableFuture<>();
+            if (threads.size() > 1) {
+                f.complete("b");
+            }
+            return f;
+        });
+        assertEquals("b", result.get(2, TimeUnit.SECONDS));
+        assertEquals(2, threads.size());
+        assertFalse(threads.contains(timerThread.get()));
+    }
+
+    @Test
+    public void failWhenAllAttemptsFail() throws Exception {
+        Hedger<String> hedger = new Hedger<>(0.9, 2, 20, timer);
+        AtomicInteger invoked = new AtomicInteger();
+        CompletableFuture<String> result = hedger.call(null, () -> {
+            invoked.incrementAndGet();
+            CompletableFuture<String> f = new CompletableFuture<>();
+            f.completeExceptionally(new IllegalStateException("down"));
+            return f;
+        });
+        try {
+            result.get(1, TimeUnit.SECONDS);
+            fail("expect failure");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        Thread.sleep(60);
+        // 首次请求失败后没有执行中的请求, 不再对冲
+        assertEquals(1, invoked.get());
+    }
+}
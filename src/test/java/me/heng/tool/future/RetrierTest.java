@@ -0,0 +1,143 @@
+package me.heng.tool.future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 5:40 PM
+ */
+public class RetrierTest {
+
+    private HashedWheelTimer timer;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        timer = new HashedWheelTimer("test-retrier", 1, TimeUnit.MILLISECONDS, 64);
+        executor = Executors.newSingleThreadExecutor(r -> new Thread(r, "retry-worker"));
+    }
+
+    @After
+    public void tearDown() {
+        timer.stop();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void succeedAfterFailures() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<String> f = Retrier.retry(() -> {
+            if (calls.incrementAndGet() < 3) {
+                return failed(new IllegalStateException("attempt " + calls.get()));
+            }
+            return CompletableFuture.completedFuture("ok");
+        }, RetryPolicy.of(5).withFixedDelay(10), timer, executor);
+        assertEquals("ok", f.get(2, TimeUnit.SECONDS));
+        assertEquals(3, calls.get());
+    }
+
+    @Test
+    public void stopAtMaxAttemptsWithLastError() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<String> f = Retrier.retry(() -> failed(new IllegalStateException("attempt "
+                + calls.incrementAndGet())), RetryPolicy.of(3).withFixedDelay(5), timer, executor);
+        assertEquals("attempt 3", causeOf(f).getMessage());
+        assertEquals(3, calls.get());
+    }
+
+    @Test
+    public void waitBackoffBetweenAttempts() throws Exception {
+        long start = System.nanoTime();
+        CompletableFuture<String> f = Retrier.retry(() -> failed(new IllegalStateException()),
+                RetryPolicy.of(4).withBackoff(20, 1000), timer, executor);
+        causeOf(f);
+        // 20 + 40 + 80
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("elapsed " + elapsed, elapsed >= 130);
+    }
+
+    @Test
+    public void delayedAttemptRunsOnExecutor() throws Exception {
+        AtomicReference<String> thread = new AtomicReference<>();
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<String> f = Retrier.retry(() -> {
+            if (calls.incrementAndGet() == 1) {
+                return failed(new IllegalStateException());
+            }
+            thread.set(Thread.currentThread().getName());
+            return CompletableFuture.completedFuture("ok");
+        }, RetryPolicy.of(2).withFixedDelay(5), timer, executor);
+        assertEquals("ok", f.get(2, TimeUnit.SECONDS));
+        assertEquals("retry-worker", thread.get());
+    }
+
+    @Test
+    public void notRetryableErrorFailsImmediately() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<String> f = Retrier.retry(() -> {
+            calls.incrementAndGet();
+            return failed(new IllegalArgumentException("bad request"));
+        }, RetryPolicy.of(5).withFixedDelay(5).retryOn(e -> !(e instanceof IllegalArgumentException)), timer,
+                executor);
+        assertEquals("bad request", causeOf(f).getMessage());
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void budgetExhaustionStopsRetries() throws Exception {
+        RetryBudget budget = new RetryBudget(2, 0.001);
+        AtomicInteger calls = new AtomicInteger();
+        RetryPolicy policy = RetryPolicy.of(10).withBudget(budget);
+        CompletableFuture<String> f = Retrier.retry(() -> {
+            calls.incrementAndGet();
+            return failed(new IllegalStateException());
+        }, policy, timer, executor);
+        causeOf(f);
+        // 一次正常调用 + 预算内的2次重试
+        assertEquals(3, calls.get());
+        assertEquals(2, budget.acquired());
+        assertEquals(1, budget.rejected());
+    }
+
+    @Test
+    public void deadlineStopsRetries() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<String> f = Retrier.retry(() -> {
+            calls.incrementAndGet();
+            return failed(new IllegalStateException());
+        }, RetryPolicy.of(100).withFixedDelay(30).withDeadline(100), timer, executor);
+        causeOf(f);
+        assertTrue("calls " + calls.get(), calls.get() >= 2 && calls.get() <= 4);
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable e) {
+        CompletableFuture<T> f = new CompletableFuture<>();
+        f.completeExceptionally(e);
+        return f;
+    }
+
+    private static Throwable causeOf(CompletableFuture<?> f) throws Exception {
+        try {
+            f.get(2, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+        fail("expected failure");
+        return null;
+    }
+}
@@ -0,0 +1,86 @@
+package me.heng.tool.future;
+
+import me.heng.tool.support.BaseSupport;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 10:40 PM
+ */
+public class StampedFutureTest {
+
+    private static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    @Test
+    public void phasesAreSeparated() throws Exception {
+        StampedFuture<String> future = new StampedFuture<>();
+        future.whenComplete((v, ex) -> BaseSupport.sleep(30));
+
+        BaseSupport.sleep(30);
+        future.markRunning();
+        BaseSupport.sleep(30);
+        assertTrue(future.complete("ok"));
+
+        assertTrue(millis(future.queueNanos()) >= 25);
+        assertTrue(millis(future.executionNanos()) >= 25);
+        assertTrue(millis(future.callbackNanos()) >= 25);
+        // 完成时间在回调之前记录, 回调耗时不计入本阶段
+        assertEquals(future.queueNanos() + future.executionNanos(), future.elapsedNanos());
+        assertTrue(future.finished() >= future.start());
+    }
+
+    @Test
+    public void firstCompletionWins() {
+        StampedFuture<String> future = new StampedFuture<>();
+        future.complete("a");
+        long elapsed = future.elapsedNanos();
+        BaseSupport.sleep(20);
+        future.complete("b");
+        future.completeExceptionally(new IllegalStateException());
+        assertEquals(elapsed, future.elapsedNanos());
+        assertEquals("a", future.join());
+    }
+
+    @Test
+    public void chainedStageTimedFromPrevious() {
+        StampedFuture<Integer> first = new StampedFuture<>();
+        StampedFuture<Integer> second = first.thenApply(x -> x + 1);
+        BaseSupport.sleep(40);
+        first.complete(1);
+
+        assertEquals(Integer.valueOf(2), second.join());
+        assertTrue(millis(first.elapsedNanos()) >= 35);
+        // 第二阶段从第一阶段完成时开始计时, 整条链从起点计时
+        assertTrue(millis(second.elapsedNanos()) < 35);
+        assertTrue(millis(second.totalNanos()) >= 35);
+        assertTrue(second.totalNanos() >= first.totalNanos());
+    }
+
+    @Test
+    public void sinkNotifiedOnce() {
+        List<String> names = new ArrayList<>();
+        List<StampedFuture<?>> futures = new ArrayList<>();
+        StampedFuture<String> future = new StampedFuture<String>().sink("op", (name, f) -> {
+            names.add(name);
+            futures.add(f);
+        });
+        future.completeExceptionally(new IllegalStateException("boom"));
+        future.complete("late");
+
+        assertEquals(1, names.size());
+        assertEquals("op", names.get(0));
+        assertSame(future, futures.get(0));
+        assertEquals("op", future.name());
+    }
+}
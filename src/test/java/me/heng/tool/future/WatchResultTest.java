@@ -0,0 +1,90 @@
+package me.heng.tool.future;
+
+import me.heng.tool.support.FutureSupport;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 10:30 PM
+ */
+public class WatchResultTest {
+
+    @Test
+    public void resultsFollowInputOrder() throws Exception {
+        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            futures.add(new CompletableFuture<>());
+        }
+        CompletableFuture<WatchResult<Integer>> watched = FutureSupport.watchOrdered(futures);
+        // 逆序完成, 结果仍按输入顺序
+        for (int i = 4; i >= 0; i--) {
+            assertFalse(watched.isDone());
+            futures.get(i).complete(i * 10);
+        }
+        WatchResult<Integer> result = watched.get();
+        assertEquals(5, result.size());
+        assertEquals(Arrays.asList(0, 10, 20, 30, 40), new ArrayList<>(result.values()));
+        assertEquals(0, result.failedCount());
+    }
+
+    @Test
+    public void partialFailureKeptPerIndex() throws Exception {
+        CompletableFuture<String> ok = new CompletableFuture<>();
+        CompletableFuture<String> bad = new CompletableFuture<>();
+        CompletableFuture<String> late = new CompletableFuture<>();
+        List<Integer> seen = Collections.synchronizedList(new ArrayList<>());
+        CompletableFuture<WatchResult<String>> watched =
+                FutureSupport.watchOrdered(Arrays.asList(ok, bad, late), (i, v, ex) -> seen.add(i));
+
+        IllegalStateException error = new IllegalStateException("boom");
+        bad.completeExceptionally(error);
+        // 一个失败不提前结束
+        assertFalse(watched.isDone());
+        ok.complete("a");
+        late.complete("c");
+
+        WatchResult<String> result = watched.get();
+        assertEquals(1, result.failedCount());
+        assertEquals("a", result.value(0));
+        assertNull(result.value(1));
+        assertSame(error, result.error(1));
+        assertTrue(result.isFailed(1));
+        assertFalse(result.isFailed(2));
+        assertEquals("c", result.value(2));
+        assertEquals(Arrays.asList(null, error, null), new ArrayList<>(result.errors()));
+        assertEquals(Arrays.asList(1, 0, 2), seen);
+    }
+
+    @Test
+    public void listenerFailureDoesNotBlockResult() throws Exception {
+        CompletableFuture<String> f = CompletableFuture.completedFuture("x");
+        WatchResult<String> result = FutureSupport.watchOrdered(Collections.singletonList(f), (i, v, ex) -> {
+            throw new IllegalStateException("listener");
+        }).get();
+        assertEquals("x", result.value(0));
+    }
+
+    @Test
+    public void emptyInput() throws Exception {
+        WatchResult<Object> result = FutureSupport.watchOrdered(Collections.<CompletableFuture<Object>>emptyList()).get();
+        assertEquals(0, result.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mismatchedArrays() {
+        WatchResult.of(new Object[2], new Throwable[1]);
+    }
+}
@@ -0,0 +1,128 @@
+package me.heng.tool.metrics;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 10:50 PM
+ */
+public class LatencyHistogramTest {
+
+    private static void assertBucketContains(long value) {
+        int index = LatencyHistogram.bucketIndex(value);
+        assertTrue(value + " above its bucket", LatencyHistogram.bucketUpperBound(index) >= value);
+        if (index > 0) {
+            assertTrue(value + " belongs to previous bucket", LatencyHistogram.bucketUpperBound(index - 1) < value);
+        }
+    }
+
+    @Test
+    public void bucketBoundaries() {
+        for (long v = 0; v < 32; v++) {
+            assertEquals(v, LatencyHistogram.bucketIndex(v));
+            assertEquals(v, LatencyHistogram.bucketUpperBound((int) v));
+        }
+        // 从 32 开始每个子桶宽度随 2 的幂翻倍
+        assertEquals(32, LatencyHistogram.bucketIndex(32));
+        assertEquals(63, LatencyHistogram.bucketIndex(63));
+        assertEquals(64, LatencyHistogram.bucketIndex(64));
+        assertEquals(64, LatencyHistogram.bucketIndex(65));
+        assertEquals(65, LatencyHistogram.bucketIndex(66));
+        assertEquals(65L, LatencyHistogram.bucketUpperBound(64));
+        assertEquals(1887, LatencyHistogram.bucketIndex(Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.bucketUpperBound(1887));
+
+        for (int shift = 0; shift < 63; shift++) {
+            long p = 1L << shift;
+            assertBucketContains(p - 1);
+            assertBucketContains(p);
+            assertBucketContains(p + 1);
+        }
+        Random random = new Random(7);
+        for (int i = 0; i < 10000; i++) {
+            long v = random.nextLong() >>> (1 + random.nextInt(63));
+            assertBucketContains(v);
+            long upper = LatencyHistogram.bucketUpperBound(LatencyHistogram.bucketIndex(v));
+            assertTrue((double) (upper - v) / Math.max(v, 1) <= 1d / 32);
+        }
+    }
+
+    @Test
+    public void percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i, TimeUnit.MICROSECONDS);
+        }
+        histogram.record(-1);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+
+        assertEquals(1000, snapshot.count());
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(1000), snapshot.max());
+        assertEquals(500500d, snapshot.mean(), 1e-6);
+        assertWithin(500_000, snapshot.p50());
+        assertWithin(990_000, snapshot.p99());
+        assertWithin(999_000, snapshot.p999());
+        assertEquals(snapshot.max(), snapshot.percentile(1.0));
+        assertWithin(1_000, snapshot.percentile(0));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(expected + " vs " + actual, actual >= expected && actual <= expected + expected / 32);
+    }
+
+    @Test
+    public void intervalSnapshotReturnsDelta() {
+        LatencyHistogram histogram = new LatencyHistogram("interval");
+        histogram.record(100);
+        histogram.record(200);
+        assertEquals(2, histogram.intervalSnapshot().count());
+
+        histogram.record(5000);
+        LatencyHistogram.Snapshot delta = histogram.intervalSnapshot();
+        assertEquals(1, delta.count());
+        assertEquals(5000d, delta.mean(), 1e-6);
+        // 区间快照的 max 取最高非空桶的上界
+        assertWithin(5000, delta.max());
+        assertEquals(0, histogram.intervalSnapshot().count());
+        assertEquals(3, histogram.snapshot().count());
+    }
+
+    @Test
+    public void concurrentRecords() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram("concurrent");
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 16; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    histogram.record(i);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(160000, snapshot.count());
+        assertEquals(9999, snapshot.max());
+        assertEquals(4999.5d, snapshot.mean(), 1e-6);
+    }
+
+    @Test
+    public void emptySnapshot() {
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram("empty").snapshot();
+        assertEquals(0, snapshot.count());
+        assertEquals(0L, snapshot.p99());
+        assertEquals(0d, snapshot.mean(), 0d);
+    }
+}
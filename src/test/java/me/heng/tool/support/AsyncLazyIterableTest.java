@@ -0,0 +1,111 @@
+package me.heng.tool.support;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 11:50 PM
+ */
+public class AsyncLazyIterableTest {
+
+    @Test
+    public void synchronousPagesDoNotGrowStack() throws Exception {
+        int pages = 100_000;
+        AsyncLazyIterable<Integer> iterable = AsyncLazyIterable.paged(0, page -> CompletableFuture.completedFuture(
+                page < pages ? Collections.singletonList(page).iterator() : null));
+        AtomicInteger sum = new AtomicInteger();
+        CompletableFuture<Void> done = iterable.forEachAsync(v -> {
+            sum.incrementAndGet();
+            return CompletableFuture.completedFuture(null);
+        });
+        done.get(10, TimeUnit.SECONDS);
+        assertEquals(pages, sum.get());
+    }
+
+    @Test
+    public void asynchronousConsumerKeepsOrder() throws Exception {
+        AsyncLazyIterable<Integer> iterable = AsyncLazyIterable.paged(0, page -> CompletableFuture.supplyAsync(
+                () -> page < 5 ? Arrays.asList(page * 2, page * 2 + 1).iterator() : Collections.<Integer>emptyIterator()));
+        List<Integer> seen = Collections.synchronizedList(new ArrayList<>());
+        iterable.forEachAsync(v -> CompletableFuture.runAsync(() -> {
+            BaseSupport.sleep(1);
+            seen.add(v);
+        })).get(10, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), seen);
+    }
+
+    @Test
+    public void cancellationStopsPageQueries() throws Exception {
+        List<CompletableFuture<Iterator<Integer>>> queried = Collections.synchronizedList(new ArrayList<>());
+        AsyncLazyIterable<Integer> iterable = AsyncLazyIterable.paged(0, page -> {
+            CompletableFuture<Iterator<Integer>> f = new CompletableFuture<>();
+            queried.add(f);
+            return f;
+        });
+        List<Integer> seen = Collections.synchronizedList(new ArrayList<>());
+        CompletableFuture<Void> done = iterable.forEachAsync(v -> {
+            seen.add(v);
+            return CompletableFuture.completedFuture(null);
+        });
+        assertEquals(1, queried.size());
+        queried.get(0).complete(Arrays.asList(1, 2).iterator());
+        assertEquals(2, queried.size());
+
+        assertTrue(done.cancel(false));
+        queried.get(1).complete(Arrays.asList(3, 4).iterator());
+        // 取消后不再消费, 也不再查询下一页
+        assertEquals(Arrays.asList(1, 2), seen);
+        assertEquals(2, queried.size());
+    }
+
+    @Test
+    public void queryFailureCompletesResult() throws Exception {
+        IllegalStateException error = new IllegalStateException("boom");
+        AsyncLazyIterable<Integer> iterable = AsyncLazyIterable.paged(0, page -> page == 0
+                ? CompletableFuture.completedFuture(Arrays.asList(1).iterator())
+                : FutureSupport.<Iterator<Integer>>completeExceptionally(error));
+        try {
+            iterable.forEachAsync(v -> CompletableFuture.completedFuture(null)).get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals(error, e.getCause());
+        }
+    }
+
+    @Test
+    public void consumerFailureStopsLoop() throws Exception {
+        AtomicInteger queries = new AtomicInteger();
+        AsyncLazyIterable<Integer> iterable = AsyncLazyIterable.paged(0, page -> {
+            queries.incrementAndGet();
+            return CompletableFuture.completedFuture(Arrays.asList(1, 2).iterator());
+        });
+        CompletableFuture<Void> done = iterable.forEachAsync(v -> {
+            if (v == 2) {
+                throw new IllegalStateException("consumer");
+            }
+            return CompletableFuture.completedFuture(null);
+        });
+        try {
+            done.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(1, queries.get());
+    }
+}
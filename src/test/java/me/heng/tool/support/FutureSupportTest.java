@@ -0,0 +1,57 @@
+package me.heng.tool.support;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.FutureTask;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 10:10 PM
+ */
+public class FutureSupportTest {
+
+    @Test
+    public void timedOutAwaitLeavesNoCallback() {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        for (int i = 0; i < 50; i++) {
+            FutureSupport.awaitFuture(future, 2, 1);
+            FutureSupport.awaitFuture(Arrays.asList(future, new CompletableFuture<String>()), 2, 1);
+        }
+        assertFalse(future.isDone());
+        assertEquals(0, future.getNumberOfDependents());
+    }
+
+    @Test
+    public void awaitReturnsOnCompletion() {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        CompletableFuture.runAsync(() -> {
+            BaseSupport.sleep(20);
+            future.completeExceptionally(new IllegalStateException("boom"));
+        });
+        long start = System.currentTimeMillis();
+        FutureSupport.awaitFuture(future, 5000, 1);
+        assertTrue(future.isCompletedExceptionally());
+        assertTrue(System.currentTimeMillis() - start < 2000);
+    }
+
+    @Test
+    public void awaitMixedFutures() {
+        CompletableFuture<String> completable = new CompletableFuture<>();
+        FutureTask<String> task = new FutureTask<>(() -> "done");
+        CompletableFuture.runAsync(() -> {
+            BaseSupport.sleep(10);
+            completable.complete("ok");
+            task.run();
+        });
+        FutureSupport.awaitFuture(Arrays.asList(completable, task), 0, 5);
+        assertTrue(completable.isDone());
+        assertTrue(task.isDone());
+    }
+}
@@ -0,0 +1,147 @@
+package me.heng.tool.support;
+
+import me.heng.tool.future.RetryPolicy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 10:00 PM
+ */
+public class IOSupportTest {
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(8);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private static List<Integer> range(int n) {
+        List<Integer> list = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            list.add(i);
+        }
+        return list;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    public void keepPartitionOrderUnderMaxInFlight() {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        List<Integer> result = IOSupport.batchFetch(range(100), 10, 3, executor, partition -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            // 靠前的分片更慢, 完成顺序与分片顺序相反
+            int first = partition.iterator().next();
+            sleep((100 - first) / 10);
+            running.decrementAndGet();
+            List<Integer> out = new ArrayList<>();
+            for (int i : partition) {
+                out.add(i * 2);
+            }
+            return out;
+        });
+        assertEquals(100, result.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Integer.valueOf(i * 2), result.get(i));
+        }
+        assertTrue("max running " + maxRunning.get(), maxRunning.get() <= 3);
+    }
+
+    @Test
+    public void skipFailedPartition() {
+        List<Integer> result = IOSupport.batchFetch(range(30), 10, 2, executor, IOSupport.OnFailure.SKIP, null,
+                partition -> {
+                    if (partition.contains(15)) {
+                        throw new IllegalStateException("partition 1");
+                    }
+                    return partition;
+                });
+        List<Integer> expected = range(10);
+        for (int i = 20; i < 30; i++) {
+            expected.add(i);
+        }
+        assertEquals(expected, result);
+    }
+
+    @Test
+    public void failFastKeepsExceptionType() {
+        AtomicInteger fetched = new AtomicInteger();
+        try {
+            IOSupport.batchFetch(range(100), 10, 1, executor, IOSupport.OnFailure.FAIL_FAST, null,
+                    partition -> {
+                        fetched.incrementAndGet();
+                        if (partition.contains(25)) {
+                            throw new IllegalArgumentException("bad partition");
+                        }
+                        return partition;
+                    });
+            fail("expect IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertEquals("bad partition", e.getMessage());
+        }
+        // 串行派发, 失败后不再派发剩余分片
+        assertEquals(3, fetched.get());
+    }
+
+    @Test
+    public void retryOnlyFailedPartition() {
+        Map<Integer, AtomicInteger> calls = new ConcurrentHashMap<>();
+        List<Integer> result = IOSupport.batchFetch(range(40), 10, 4, executor, IOSupport.OnFailure.FAIL_FAST,
+                RetryPolicy.of(3).withFixedDelay(5), partition -> {
+                    int first = partition.iterator().next();
+                    int n = calls.computeIfAbsent(first, k -> new AtomicInteger()).incrementAndGet();
+                    if (first == 20 && n < 3) {
+                        throw new IllegalStateException("attempt " + n);
+                    }
+                    return partition;
+                });
+        assertEquals(range(40), result);
+        assertEquals(3, calls.get(20).get());
+        assertEquals(1, calls.get(0).get());
+        assertEquals(1, calls.get(10).get());
+        assertEquals(1, calls.get(30).get());
+    }
+
+    @Test
+    public void skipAfterRetriesExhausted() {
+        AtomicInteger calls = new AtomicInteger();
+        List<Integer> result = IOSupport.batchFetch(range(20), 10, 2, executor, IOSupport.OnFailure.SKIP,
+                RetryPolicy.of(2).withFixedDelay(5), partition -> {
+                    if (partition.contains(0)) {
+                        calls.incrementAndGet();
+                        throw new IllegalStateException("always");
+                    }
+                    return partition;
+                });
+        assertEquals(range(20).subList(10, 20), result);
+        assertEquals(2, calls.get());
+    }
+}
@@ -0,0 +1,139 @@
+package me.heng.tool.support;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 9:50 PM
+ */
+public class LazyIterableTest {
+
+    /**
+     * pages 页, 每页 10 个, 第 p 页为 p*10 .. p*10+9
+     */
+    private static LazyIterable<Integer> paged(int pages, AtomicInteger queries) {
+        return () -> new LazyIterable.AbstractCachedIterator<Integer>() {
+            int page;
+
+            @Override
+            public Iterator<Integer> query() {
+                queries.incrementAndGet();
+                if (page >= pages) {
+                    return null;
+                }
+                List<Integer> items = new ArrayList<>();
+                for (int i = 0; i < 10; i++) {
+                    items.add(page * 10 + i);
+                }
+                page++;
+                return items.iterator();
+            }
+        };
+    }
+
+    private static List<Integer> range(int from, int to) {
+        List<Integer> list = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            list.add(i);
+        }
+        return list;
+    }
+
+    @Test
+    public void splitOnePagePerTrySplit() {
+        AtomicInteger queries = new AtomicInteger();
+        Spliterator<Integer> spliterator = paged(3, queries).spliterator();
+        assertTrue(spliterator instanceof LazyIterable.PageSpliterator);
+        assertTrue(spliterator.hasCharacteristics(Spliterator.ORDERED));
+
+        Spliterator<Integer> first = spliterator.trySplit();
+        assertEquals(10, first.estimateSize());
+        List<Integer> items = new ArrayList<>();
+        first.forEachRemaining(items::add);
+        assertEquals(range(0, 10), items);
+        assertEquals(1, queries.get());
+
+        // 拆走一页后剩下的仍然从下一页开始
+        Spliterator<Integer> second = spliterator.trySplit();
+        items.clear();
+        second.forEachRemaining(items::add);
+        assertEquals(range(10, 20), items);
+        items.clear();
+        spliterator.forEachRemaining(items::add);
+        assertEquals(range(20, 30), items);
+        assertNull(spliterator.trySplit());
+    }
+
+    @Test
+    public void parallelStreamKeepsOrder() {
+        AtomicInteger queries = new AtomicInteger();
+        List<Integer> items = paged(20, queries).parallelStream().map(i -> i * 2).collect(Collectors.toList());
+        List<Integer> expected = range(0, 200).stream().map(i -> i * 2).collect(Collectors.toList());
+        assertEquals(expected, items);
+    }
+
+    @Test
+    public void takeDoesNotFetchExtraPage() {
+        AtomicInteger queries = new AtomicInteger();
+        List<Integer> items = new ArrayList<>();
+        LazyIterable.take(paged(5, queries), 10).forEach(items::add);
+        assertEquals(range(0, 10), items);
+        assertEquals(1, queries.get());
+
+        queries.set(0);
+        items.clear();
+        LazyIterable.take(paged(5, queries), 15).forEach(items::add);
+        assertEquals(range(0, 15), items);
+        assertEquals(2, queries.get());
+    }
+
+    @Test
+    public void batchKeepsRemainder() {
+        AtomicInteger queries = new AtomicInteger();
+        List<List<Integer>> batches = new ArrayList<>();
+        LazyIterable.batch(paged(2, queries), 7).forEach(batches::add);
+        assertEquals(3, batches.size());
+        assertEquals(range(0, 7), batches.get(0));
+        assertEquals(range(7, 14), batches.get(1));
+        assertEquals(range(14, 20), batches.get(2));
+    }
+
+    @Test
+    public void flatMapSkipsEmptyAndNull() {
+        LazyIterable<Integer> source = LazyIterable.iterable(Arrays.asList(1, 0, 2, -1, 3));
+        List<Integer> items = new ArrayList<>();
+        LazyIterable.<Integer, Integer>flatMap(source, n -> n < 0 ? null : Collections.nCopies(n, n))
+                .forEach(items::add);
+        assertEquals(Arrays.asList(1, 2, 2, 3, 3, 3), items);
+    }
+
+    @Test
+    public void filterAndConcat() {
+        AtomicInteger queries = new AtomicInteger();
+        LazyIterable<Integer> evens = LazyIterable.filter(paged(2, queries), i -> i % 2 == 0);
+        LazyIterable<Integer> all = LazyIterable.concat(LazyIterable.emptyIterable(), evens,
+                LazyIterable.iterable(Arrays.asList(100, 101)));
+        List<Integer> items = all.stream().collect(Collectors.toList());
+        List<Integer> expected = range(0, 20).stream().filter(i -> i % 2 == 0).collect(Collectors.toList());
+        expected.addAll(Arrays.asList(100, 101));
+        assertEquals(expected, items);
+        // 每次 iterator() 重新开始
+        assertEquals(expected, all.stream().collect(Collectors.toList()));
+        assertFalse(LazyIterable.concat().iterator().hasNext());
+    }
+}
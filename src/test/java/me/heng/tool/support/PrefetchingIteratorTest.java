@@ -0,0 +1,195 @@
+package me.heng.tool.support;
+
+import me.heng.tool.support.LazyIterable.PrefetchingCachedIterator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 11:40 PM
+ */
+public class PrefetchingIteratorTest {
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(8);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private static List<Integer> page(int index, int size) {
+        List<Integer> items = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            items.add(index * size + i);
+        }
+        return items;
+    }
+
+    private static List<Integer> drain(Iterator<Integer> it) {
+        List<Integer> list = new ArrayList<>();
+        while (it.hasNext()) {
+            list.add(it.next());
+        }
+        return list;
+    }
+
+    /**
+     * 带游标的分页源, 记录查询次数和并发数
+     */
+    private class CursorIterator extends PrefetchingCachedIterator<Integer> {
+        final int pages;
+        final AtomicInteger queries = new AtomicInteger();
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger maxActive = new AtomicInteger();
+        int cursor;
+
+        CursorIterator(int pages, int depth) {
+            super(depth, executor);
+            this.pages = pages;
+        }
+
+        @Override
+        public Iterator<Integer> query() {
+            queries.incrementAndGet();
+            maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+            try {
+                BaseSupport.sleep(2);
+                int index = cursor++;
+                return index < pages ? page(index, 3).iterator() : Collections.<Integer>emptyIterator();
+            } finally {
+                active.decrementAndGet();
+            }
+        }
+    }
+
+    @Test
+    public void cursorPagesQueriedSeriallyInOrder() {
+        CursorIterator it = new CursorIterator(5, 3);
+        assertEquals(page(0, 15), drain(it));
+        assertEquals(1, it.maxActive.get());
+        // 5 页数据加一个空页, 空页之后不再查询
+        assertEquals(6, it.queries.get());
+        assertFalse(it.hasNext());
+    }
+
+    @Test
+    public void cursorPrefetchesAhead() throws Exception {
+        CursorIterator it = new CursorIterator(10, 2);
+        assertTrue(it.hasNext());
+        long deadline = System.currentTimeMillis() + 2000;
+        while (it.queries.get() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        // 消费第一页时, 之后的两页已在查询
+        assertEquals(3, it.queries.get());
+        Thread.sleep(30);
+        assertEquals(3, it.queries.get());
+        it.close();
+        // 关闭后只剩当前页
+        assertEquals(page(0, 3), drain(it));
+    }
+
+    @Test
+    public void closeCancelsPendingQueries() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger queries = new AtomicInteger();
+        PrefetchingCachedIterator<Integer> it = new PrefetchingCachedIterator<Integer>(2, executor) {
+            @Override
+            public Iterator<Integer> query() {
+                if (queries.incrementAndGet() > 1) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return Arrays.asList(1, 2).iterator();
+            }
+        };
+        assertTrue(it.hasNext());
+        long deadline = System.currentTimeMillis() + 2000;
+        while (queries.get() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        it.close();
+        release.countDown();
+        Thread.sleep(30);
+        assertEquals(Arrays.asList(1, 2), drain(it));
+        // 第三页接在第二页之后, 已取消不会执行
+        assertEquals(2, queries.get());
+    }
+
+    @Test
+    public void pagedQueriesOrderedAndBounded() {
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger maxActive = new AtomicInteger();
+        AtomicInteger queries = new AtomicInteger();
+        LazyIterable<Integer> iterable = LazyIterable.prefetching(0, 4, executor, page -> {
+            queries.incrementAndGet();
+            maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+            try {
+                // 后面的页先返回
+                BaseSupport.sleep(20 - page % 5 * 4);
+                return page < 12 ? page(page, 5).iterator() : null;
+            } finally {
+                active.decrementAndGet();
+            }
+        });
+        assertEquals(page(0, 60), drain(iterable.iterator()));
+        assertTrue(maxActive.get() <= 4);
+        assertTrue(maxActive.get() > 1);
+        // 空页之后最多多查 depth 页
+        assertTrue(queries.get() <= 12 + 4);
+    }
+
+    @Test
+    public void pagedStartsFromFirstPageOnEachIterator() {
+        LazyIterable<Integer> iterable = LazyIterable.prefetching(2, 2, executor,
+                page -> page < 4 ? page(page, 2).iterator() : Collections.<Integer>emptyIterator());
+        assertEquals(Arrays.asList(4, 5, 6, 7), drain(iterable.iterator()));
+        assertEquals(Arrays.asList(4, 5, 6, 7), drain(iterable.iterator()));
+    }
+
+    @Test
+    public void queryFailurePropagates() {
+        LazyIterable<Integer> iterable = LazyIterable.prefetching(0, 2, executor, page -> {
+            if (page == 1) {
+                throw new IllegalStateException("boom");
+            }
+            return page(page, 2).iterator();
+        });
+        Iterator<Integer> it = iterable.iterator();
+        assertEquals(Integer.valueOf(0), it.next());
+        assertEquals(Integer.valueOf(1), it.next());
+        try {
+            it.hasNext();
+            fail();
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertFalse(it.hasNext());
+    }
+}
@@ -0,0 +1,118 @@
+package me.heng.tool.support;
+
+import me.heng.tool.support.BaseGuavaCacheSupport.RefreshingSupplier;
+import me.heng.tool.support.BaseGuavaCacheSupport.SingleFlightGetter;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 11:10 PM
+ */
+public class RefreshingSupplierTest {
+
+    /**
+     * 手动执行的 executor, 便于观察后台刷新的次数
+     */
+    private static class ManualExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public synchronized void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        synchronized int runAll() {
+            int n = tasks.size();
+            List<Runnable> copy = new ArrayList<>(tasks);
+            tasks.clear();
+            copy.forEach(Runnable::run);
+            return n;
+        }
+    }
+
+    @Test
+    public void staleValueServedWhileRefreshing() throws Exception {
+        ManualExecutor executor = new ManualExecutor();
+        AtomicInteger version = new AtomicInteger();
+        RefreshingSupplier<Integer> supplier = BaseGuavaCacheSupport.refreshingSupplier(30, 10_000, true, executor,
+                version::incrementAndGet);
+
+        assertEquals(Integer.valueOf(1), supplier.get());
+        assertEquals(Integer.valueOf(1), supplier.get());
+        assertEquals(0, executor.tasks.size());
+
+        Thread.sleep(50);
+        // 过期后多次读取仍返回旧值, 只提交一次刷新
+        for (int i = 0; i < 10; i++) {
+            assertEquals(Integer.valueOf(1), supplier.get());
+        }
+        assertEquals(1, executor.runAll());
+        assertEquals(Integer.valueOf(2), supplier.get());
+        assertEquals(1, supplier.refreshSuccess());
+        assertEquals(2, version.get());
+    }
+
+    @Test
+    public void blockingLoadAfterMaxStale() throws Exception {
+        ManualExecutor executor = new ManualExecutor();
+        AtomicInteger version = new AtomicInteger();
+        RefreshingSupplier<Integer> supplier = BaseGuavaCacheSupport.refreshingSupplier(10, 30, true, executor,
+                version::incrementAndGet);
+
+        assertEquals(Integer.valueOf(1), supplier.get());
+        Thread.sleep(60);
+        assertEquals(Integer.valueOf(2), supplier.get());
+        assertEquals(0, executor.tasks.size());
+    }
+
+    @Test
+    public void failedRefreshKeepsOldValue() throws Exception {
+        ManualExecutor executor = new ManualExecutor();
+        AtomicInteger calls = new AtomicInteger();
+        RefreshingSupplier<String> supplier = BaseGuavaCacheSupport.refreshingSupplier(20, 10_000, true, executor,
+                () -> {
+                    if (calls.incrementAndGet() > 1) {
+                        throw new IllegalStateException("boom");
+                    }
+                    return "v1";
+                });
+        assertEquals("v1", supplier.get());
+        Thread.sleep(40);
+        assertEquals("v1", supplier.get());
+        executor.runAll();
+        assertEquals(1, supplier.refreshFailure());
+        // 失败后允许再次刷新
+        assertEquals("v1", supplier.get());
+        assertEquals(1, executor.runAll());
+        assertEquals(2, supplier.refreshFailure());
+    }
+
+    @Test
+    public void refreshingGetterPerKey() throws Exception {
+        ManualExecutor executor = new ManualExecutor();
+        AtomicInteger loads = new AtomicInteger();
+        SingleFlightGetter<String, String> getter = BaseGuavaCacheSupport.refreshingGetter(30, 10_000, 100, true,
+                executor, key -> key + loads.incrementAndGet());
+
+        assertEquals("a1", getter.get("a"));
+        assertEquals("b2", getter.get("b"));
+        Thread.sleep(50);
+        assertEquals("a1", getter.get("a"));
+        assertEquals("a1", getter.get("a"));
+        assertEquals("b2", getter.get("b"));
+        assertEquals(2, executor.runAll());
+        assertEquals(2, getter.refreshSuccess());
+        assertEquals(4, loads.get());
+        assertEquals("a3", getter.get("a"));
+        assertEquals("b4", getter.get("b"));
+        assertEquals(0, executor.tasks.size());
+    }
+}
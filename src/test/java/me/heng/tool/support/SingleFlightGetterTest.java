@@ -0,0 +1,138 @@
+package me.heng.tool.support;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 11:00 PM
+ */
+public class SingleFlightGetterTest {
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(16);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void concurrentMissesLoadOnce() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        Function<String, String> getter = BaseGuavaCacheSupport.cachedGetter(10_000, true, key -> {
+            loads.incrementAndGet();
+            release.await();
+            return key + "-v";
+        });
+        List<Future<String>> results = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            results.add(executor.submit(() -> getter.apply("k")));
+        }
+        Thread.sleep(50);
+        release.countDown();
+        for (Future<String> f : results) {
+            assertEquals("k-v", f.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, loads.get());
+        assertEquals("k-v", getter.apply("k"));
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void differentKeysLoadInParallel() throws Exception {
+        CountDownLatch bothStarted = new CountDownLatch(2);
+        Function<String, String> getter = BaseGuavaCacheSupport.cachedGetter(10_000, true, key -> {
+            bothStarted.countDown();
+            // 全局锁时第二个key进不来, 这里会超时
+            if (!bothStarted.await(5, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("serialized");
+            }
+            return key;
+        });
+        Future<String> a = executor.submit(() -> getter.apply("a"));
+        Future<String> b = executor.submit(() -> getter.apply("b"));
+        assertEquals("a", a.get(10, TimeUnit.SECONDS));
+        assertEquals("b", b.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void failureIsNotCached() {
+        AtomicInteger loads = new AtomicInteger();
+        Function<String, String> getter = BaseGuavaCacheSupport.cachedGetter(10_000, true, key -> {
+            if (loads.incrementAndGet() == 1) {
+                throw new IllegalStateException("boom");
+            }
+            return "ok";
+        });
+        try {
+            getter.apply("k");
+            fail();
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals("ok", getter.apply("k"));
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void staleValueReturnedOnFailure() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        Function<String, String> getter = BaseGuavaCacheSupport.cachedGetter(30, 100, false, key -> {
+            if (loads.incrementAndGet() > 1) {
+                throw new IllegalStateException("boom");
+            }
+            return "first";
+        });
+        assertNull(BaseGuavaCacheSupport.<String, String>cachedGetter(30, false, key -> {
+            throw new IllegalStateException("boom");
+        }).apply("k"));
+        assertEquals("first", getter.apply("k"));
+        Thread.sleep(60);
+        // 过期后重新加载失败, 返回过期的值
+        assertEquals("first", getter.apply("k"));
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void asyncGetterSharesInFlightLoad() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        CompletableFuture<String> source = new CompletableFuture<>();
+        Function<String, CompletableFuture<String>> getter =
+                BaseGuavaCacheSupport.cachedAsyncGetter(10_000, 100, true, key -> {
+                    loads.incrementAndGet();
+                    return source;
+                });
+        CompletableFuture<String> first = getter.apply("k");
+        CompletableFuture<String> second = getter.apply("k");
+        assertEquals(1, loads.get());
+        source.complete("v");
+        assertEquals("v", first.get(1, TimeUnit.SECONDS));
+        assertEquals("v", second.get(1, TimeUnit.SECONDS));
+        assertEquals("v", getter.apply("k").get(1, TimeUnit.SECONDS));
+        assertEquals(1, loads.get());
+    }
+}
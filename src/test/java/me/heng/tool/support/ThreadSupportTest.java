@@ -0,0 +1,36 @@
+package me.heng.tool.support;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * AUTHOR: wangdi
+ * DATE: 15/06/2018
+ * TIME: 10:20 PM
+ */
+public class ThreadSupportTest {
+
+    @Test
+    public void cancelledTimeoutsRemovedFromQueue() {
+        ScheduledExecutorService scheduler = ThreadSupport.newScheduledThreadPool("test-scheduler", 1);
+        try {
+            for (int i = 0; i < 100; i++) {
+                CompletableFuture<String> future = new CompletableFuture<>();
+                ThreadSupport.watchFutureTimeout(scheduler, 60_000, future, () -> {
+                    future.completeExceptionally(new IllegalStateException("timeout"));
+                });
+                future.complete("ok");
+                assertFalse(future.isCompletedExceptionally());
+            }
+            assertEquals(0, ((ScheduledThreadPoolExecutor) scheduler).getQueue().size());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+}